@@ -0,0 +1,76 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a MessageContext from an HTTP request, with the variables that Apigee would set for it:
+ * request.verb, request.path, request.content, request.header.NAME, request.queryparam.NAME and,
+ * for a form, request.formparam.NAME. Header names are lower case. Properties of a callout can
+ * refer to these as they would in a proxy, for example {request.queryparam.code}.
+ */
+final class HttpMessageContext {
+  private HttpMessageContext() {}
+
+  static InMemoryMessageContext from(HttpExchange exchange) throws IOException {
+    InMemoryMessageContext context = new InMemoryMessageContext();
+    Map<String, Object> variables = context.getVariables();
+    variables.put("request.verb", exchange.getRequestMethod());
+    variables.put("request.path", exchange.getRequestURI().getRawPath());
+    for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+      variables.put(
+          "request.header." + header.getKey().toLowerCase(), String.join(",", header.getValue()));
+    }
+    putParams(variables, "request.queryparam.", exchange.getRequestURI().getRawQuery());
+    String content = readContent(exchange.getRequestBody());
+    variables.put("request.content", content);
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+      putParams(variables, "request.formparam.", content);
+    }
+    return context;
+  }
+
+  private static String readContent(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    for (int n; (n = in.read(chunk)) > 0; ) {
+      out.write(chunk, 0, n);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static void putParams(Map<String, Object> variables, String prefix, String encoded)
+      throws UnsupportedEncodingException {
+    if (encoded == null || encoded.isEmpty()) return;
+    for (String pair : encoded.split("&")) {
+      int eq = pair.indexOf('=');
+      String name = (eq < 0) ? pair : pair.substring(0, eq);
+      String value = (eq < 0) ? "" : pair.substring(eq + 1);
+      variables.putIfAbsent(
+          prefix + URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+    }
+  }
+}
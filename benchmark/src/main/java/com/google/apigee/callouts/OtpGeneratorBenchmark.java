@@ -0,0 +1,84 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.eatthepath.otp.TimeBasedOneTimePasswordGenerator;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares building a new generator for every code, which is what TotpCallout used to do, with
+ * the per-thread OtpGenerator, using either the JCA Mac or the built-in HMAC engine. Run with
+ * {@code -prof gc} to see the allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class OtpGeneratorBenchmark {
+
+  @Param({"HmacSHA1", "HmacSHA256", "HmacSHA512"})
+  public String hashFunction;
+
+  @Param({"6", "8"})
+  public int codeDigits;
+
+  private final int timeStep = 30;
+  private byte[] key;
+  private Instant timestamp;
+
+  @Setup
+  public void setup() {
+    key = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+    timestamp = Instant.ofEpochSecond(1234567890L);
+  }
+
+  @Benchmark
+  public int newGeneratorPerCall() throws Exception {
+    TimeBasedOneTimePasswordGenerator totp =
+        new TimeBasedOneTimePasswordGenerator(
+            Duration.ofSeconds(timeStep), codeDigits, hashFunction);
+    return totp.generateOneTimePassword(new SecretKeySpec(key, "RAW"), timestamp);
+  }
+
+  @Benchmark
+  public int perThreadGenerator() throws Exception {
+    return OtpGenerator.forCurrentThread(hashFunction, timeStep, codeDigits)
+        .generate(key, timestamp);
+  }
+
+  @Benchmark
+  public int perThreadBuiltinEngine() throws Exception {
+    return OtpGenerator.forCurrentThread(hashFunction, timeStep, codeDigits, true)
+        .generate(key, timestamp);
+  }
+}
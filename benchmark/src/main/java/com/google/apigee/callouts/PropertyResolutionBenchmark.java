@@ -0,0 +1,116 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares three ways of resolving a property value: the regex-based resolvePropertyValue that
+ * CalloutBase used to have, which is reproduced here as the baseline; resolvePropertyValue, which
+ * compiles the value on every call; and resolveProperty, which uses the template compiled when
+ * the callout was created.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertyResolutionBenchmark {
+
+  @Param({"constant", "variable", "template"})
+  public String kind;
+
+  private String spec;
+  private CalloutBase callout;
+  private MessageContext msgCtxt;
+
+  @Setup
+  public void setup() {
+    switch (kind) {
+      case "constant":
+        spec = "HmacSHA256";
+        break;
+      case "variable":
+        spec = "{request.header.totp-key}";
+        break;
+      default:
+        spec = "{organization.name}:{apiproxy.name}:{request.header.totp-key}";
+        break;
+    }
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("value", spec);
+    callout = new CalloutBase(properties) {};
+    InMemoryMessageContext context = new InMemoryMessageContext();
+    context.getVariables().put("organization.name", "my-org");
+    context.getVariables().put("apiproxy.name", "totp-verifier");
+    context.getVariables().put("request.header.totp-key", "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ");
+    msgCtxt = context.asMessageContext();
+  }
+
+  @Benchmark
+  public String legacyRegex() {
+    return Legacy.resolvePropertyValue(spec, msgCtxt);
+  }
+
+  @Benchmark
+  public String resolvePropertyValue() {
+    return callout.resolvePropertyValue(spec, msgCtxt);
+  }
+
+  @Benchmark
+  public String resolveCompiledProperty() {
+    return callout.resolveProperty("value", msgCtxt);
+  }
+
+  /** The implementation of resolvePropertyValue before property templates. */
+  static final class Legacy {
+    private static final Pattern variableReferencePattern =
+        Pattern.compile("(.*?)\\{([^\\{\\} ]+?)\\}(.*?)");
+
+    static String resolvePropertyValue(String spec, MessageContext msgCtxt) {
+      Matcher matcher = variableReferencePattern.matcher(spec);
+      StringBuffer sb = new StringBuffer();
+      while (matcher.find()) {
+        matcher.appendReplacement(sb, "");
+        sb.append(matcher.group(1));
+        Object v = msgCtxt.getVariable(matcher.group(2));
+        if (v != null) {
+          sb.append((String) v);
+        }
+        sb.append(matcher.group(3));
+      }
+      matcher.appendTail(sb);
+      return sb.toString();
+    }
+  }
+}
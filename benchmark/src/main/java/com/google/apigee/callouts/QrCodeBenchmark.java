@@ -0,0 +1,73 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding an enrollment URI as a QR code, and rendering it as PNG and SVG, as
+ * EnrollmentCallout does with qr-format set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QrCodeBenchmark {
+  private byte[] uri;
+  private QrCode code;
+
+  @Setup
+  public void setup() {
+    uri =
+        EnrollmentCallout.uri(
+                "alice@example.com",
+                "Example",
+                "JBSWY3DPEHPK3PXPJBSWY3DPEHPK3PXP",
+                "HmacSHA1",
+                6,
+                30)
+            .getBytes(StandardCharsets.UTF_8);
+    code = QrCode.encode(uri, QrCode.Ecc.M);
+  }
+
+  @Benchmark
+  public QrCode encode() {
+    return QrCode.encode(uri, QrCode.Ecc.M);
+  }
+
+  @Benchmark
+  public byte[] renderPng() {
+    return QrImage.forCurrentThread().png(code, 4, 4);
+  }
+
+  @Benchmark
+  public String renderSvg() {
+    return QrImage.forCurrentThread().svg(code, 4);
+  }
+}
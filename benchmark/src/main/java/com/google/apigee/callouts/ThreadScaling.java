@@ -0,0 +1,89 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks once for each of several thread counts, with the GC profiler, and reports the
+ * throughput and the allocation per operation for all of them together, in one table.
+ *
+ * <pre>
+ *   java [-Dthreads=1,2,4,8] -cp target/benchmarks.jar com.google.apigee.callouts.ThreadScaling \
+ *       [JMH options] [benchmark regex]
+ * </pre>
+ *
+ * <p>The default is TotpCalloutBenchmark, with 1 thread and one thread per processor. Any other
+ * JMH options, such as -p to select parameters, apply to every run.
+ */
+public final class ThreadScaling {
+  private ThreadScaling() {}
+
+  private static int[] threadCounts() {
+    String spec = System.getProperty("threads");
+    if (spec == null) {
+      int processors = Runtime.getRuntime().availableProcessors();
+      return (processors > 1) ? new int[] {1, processors} : new int[] {1};
+    }
+    String[] parts = spec.split(",");
+    int[] counts = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      counts[i] = Integer.parseInt(parts[i].trim());
+    }
+    return counts;
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    List<RunResult> results = new ArrayList<RunResult>();
+    for (int threads : threadCounts()) {
+      ChainedOptionsBuilder options =
+          new OptionsBuilder().parent(commandLine).threads(threads).addProfiler(GCProfiler.class);
+      if (commandLine.getIncludes().isEmpty()) {
+        options.include(TotpCalloutBenchmark.class.getSimpleName());
+      }
+      results.addAll(new Runner(options.build()).run());
+    }
+    System.out.println();
+    System.out.printf(
+        "%-50s %-40s %7s %14s %12s%n", "Benchmark", "Params", "Threads", "Score", "B/op");
+    for (RunResult result : results) {
+      BenchmarkParams params = result.getParams();
+      StringBuilder values = new StringBuilder();
+      for (String key : params.getParamsKeys()) {
+        if (values.length() > 0) values.append(',');
+        values.append(params.getParam(key));
+      }
+      Result<?> allocation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+      System.out.printf(
+          "%-50s %-40s %7d %14.1f %12s%n",
+          params.getBenchmark().replaceFirst("^.*\\.([^.]+\\.[^.]+)$", "$1"),
+          values,
+          params.getThreads(),
+          result.getPrimaryResult().getScore(),
+          (allocation == null) ? "-" : String.format("%.1f", allocation.getScore()));
+    }
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.encoding.Base16;
+import com.google.apigee.encoding.Base32;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures TotpCallout.execute end to end, generating a code and verifying one, the way the
+ * gateway calls it: one callout instance shared by all threads, and a message context per
+ * request. The key and the expected value come from context variables.
+ *
+ * <p>Use {@link ThreadScaling} to run this with several thread counts and the GC profiler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TotpCalloutBenchmark {
+
+  @Param({"HmacSHA1", "HmacSHA256", "HmacSHA512"})
+  public String hashFunction;
+
+  @Param({"6", "8"})
+  public int codeDigits;
+
+  @Param({"hex", "base32", "base64", "none"})
+  public String decodeKey;
+
+  private TotpCallout generateCallout;
+  private TotpCallout verifyCallout;
+  private String encodedKey;
+  private String expectedCode;
+
+  private static int keyLength(String hashFunction) {
+    switch (hashFunction) {
+      case "HmacSHA256":
+        return 32;
+      case "HmacSHA512":
+        return 64;
+      default:
+        return 20;
+    }
+  }
+
+  private static String encodeKey(byte[] key, String decodeKey) {
+    switch (decodeKey) {
+      case "hex":
+        return Base16.encode(key);
+      case "base32":
+        return Base32.encode(key);
+      case "base64":
+        return Base64.getEncoder().encodeToString(key);
+      default:
+        // printable ASCII, so that the UTF-8 bytes are the key
+        char[] chars = new char[key.length];
+        for (int i = 0; i < chars.length; i++) {
+          chars[i] = (char) ('!' + (key[i] & 0x3f));
+        }
+        return new String(chars);
+    }
+  }
+
+  private Map<String, String> properties() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("key", "{request.header.totp-key}");
+    properties.put("decode-key", decodeKey);
+    properties.put("hash-function", hashFunction);
+    properties.put("code-digits", Integer.toString(codeDigits));
+    properties.put("fake-time-seconds", "1234567890");
+    return properties;
+  }
+
+  @Setup
+  public void setup() {
+    byte[] key = new byte[keyLength(hashFunction)];
+    new Random(1).nextBytes(key);
+    encodedKey = encodeKey(key, decodeKey);
+
+    generateCallout = new TotpCallout(properties());
+    Map<String, String> verifyProperties = properties();
+    verifyProperties.put("expected-value", "{request.queryparam.code}");
+    verifyCallout = new TotpCallout(verifyProperties);
+
+    InMemoryMessageContext context = new InMemoryMessageContext();
+    context.getVariables().put("request.header.totp-key", encodedKey);
+    if (generateCallout.execute(context.asMessageContext(), null) != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException("setup failed " + context.getVariables());
+    }
+    expectedCode = (String) context.getVariables().get("totp_code");
+  }
+
+  @State(Scope.Thread)
+  public static class Request {
+    InMemoryMessageContext context;
+    MessageContext msgCtxt;
+
+    @Setup
+    public void setup(TotpCalloutBenchmark benchmark) {
+      context = new InMemoryMessageContext();
+      msgCtxt = context.asMessageContext();
+      context.getVariables().put("request.header.totp-key", benchmark.encodedKey);
+      context.getVariables().put("request.queryparam.code", benchmark.expectedCode);
+    }
+  }
+
+  @Benchmark
+  public ExecutionResult generate(Request request) {
+    return generateCallout.execute(request.msgCtxt, null);
+  }
+
+  @Benchmark
+  public ExecutionResult verify(Request request) {
+    ExecutionResult result = verifyCallout.execute(request.msgCtxt, null);
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException("verification failed " + request.context.getVariables());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,212 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves TotpCallout over HTTP, with the JDK's built-in server, so that the callout can be
+ * load-tested on a local machine with any HTTP load generator.
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar com.google.apigee.callouts.VerificationServer \
+ *       [port=8080] [bind=ADDRESS] [executor=fixed] [threads=N] [backlog=N] [PROPERTY=VALUE ...]
+ *
+ *   curl 'http://localhost:8080/generate?key=12345678901234567890'
+ *   curl 'http://localhost:8080/verify?key=12345678901234567890&amp;code=287082'
+ * </pre>
+ *
+ * <p>Each endpoint has one instance of the callout, created at startup and shared by all
+ * requests, as a policy is in a proxy. A request runs the same code path as in Apigee, through a
+ * MessageContext built from the request. By default the key is {request.queryparam.key}, and for
+ * /verify the expected-value is {request.queryparam.code}; any other argument of the form
+ * PROPERTY=VALUE is a property of both callouts, and can override these.
+ *
+ * <p>The server listens on the loopback address only, since /generate returns the code for any
+ * key it is given. To accept connections from other machines, set bind to the address of an
+ * interface, or to 0.0.0.0 for all of them.
+ *
+ * <p>The executor is one of fixed (a pool of threads, one per processor by default), cached,
+ * workstealing (a fork-join pool), or none (the server's own dispatcher thread handles every
+ * request). The response is 200 if the callout succeeds, 401 if it fails with a fault such as
+ * totp_mismatch, 400 if the request cannot be read, and 500 otherwise, with the output variables
+ * of the callout as a JSON object.
+ */
+public final class VerificationServer {
+  private VerificationServer() {}
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = new HashMap<String, String>();
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("key", "{request.queryparam.key}");
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq <= 0) {
+        System.err.println("expected NAME=VALUE but found " + arg);
+        System.exit(1);
+      }
+      String name = arg.substring(0, eq);
+      String value = arg.substring(eq + 1);
+      switch (name) {
+        case "port":
+        case "bind":
+        case "executor":
+        case "threads":
+        case "backlog":
+          options.put(name, value);
+          break;
+        default:
+          properties.put(name, value);
+      }
+    }
+    int port = Integer.parseInt(options.getOrDefault("port", "8080"));
+    int threads =
+        Integer.parseInt(
+            options.getOrDefault(
+                "threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+    int backlog = Integer.parseInt(options.getOrDefault("backlog", "1024"));
+    String executor = options.getOrDefault("executor", "fixed");
+    String bind = options.get("bind");
+    InetAddress address =
+        (bind == null) ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+
+    Map<String, String> verifyProperties = new HashMap<String, String>();
+    verifyProperties.put("expected-value", "{request.queryparam.code}");
+    verifyProperties.putAll(properties);
+    Map<String, String> generateProperties = new HashMap<String, String>(properties);
+    generateProperties.remove("expected-value");
+
+    HttpServer server = HttpServer.create(new InetSocketAddress(address, port), backlog);
+    server.createContext("/generate", handler(new TotpCallout(generateProperties)));
+    server.createContext("/verify", handler(new TotpCallout(verifyProperties)));
+    server.setExecutor(createExecutor(executor, threads));
+    server.start();
+    System.out.println(
+        "listening on http://"
+            + address.getHostAddress()
+            + ":"
+            + port
+            + "/ with executor "
+            + executor
+            + ("none".equals(executor) ? "" : " (" + threads + " threads)"));
+  }
+
+  private static ExecutorService createExecutor(String kind, int threads) {
+    AtomicInteger count = new AtomicInteger();
+    switch (kind) {
+      case "fixed":
+        return Executors.newFixedThreadPool(
+            threads, r -> new Thread(r, "totp-server-" + count.incrementAndGet()));
+      case "cached":
+        return Executors.newCachedThreadPool(
+            r -> new Thread(r, "totp-server-" + count.incrementAndGet()));
+      case "workstealing":
+        return Executors.newWorkStealingPool(threads);
+      case "none":
+        return null;
+      default:
+        throw new IllegalArgumentException("executor " + kind + " is not supported");
+    }
+  }
+
+  private static com.sun.net.httpserver.HttpHandler handler(Execution callout) {
+    return exchange -> {
+      int status;
+      String body;
+      InMemoryMessageContext context;
+      try {
+        context = HttpMessageContext.from(exchange);
+      } catch (IOException e) {
+        respond(exchange, 400, "{\"error\":" + quote(e.toString()) + "}");
+        return;
+      }
+      try {
+        ExecutionResult result = callout.execute(context.asMessageContext(), null);
+        Map<String, Object> variables = context.getVariables();
+        if (result == ExecutionResult.SUCCESS) {
+          status = 200;
+        } else {
+          status = (variables.get("fault.name") != null) ? 401 : 500;
+        }
+        body = render(variables);
+      } catch (RuntimeException e) {
+        status = 500;
+        body = "{\"error\":" + quote(e.toString()) + "}";
+      }
+      respond(exchange, status, body);
+    };
+  }
+
+  // The output variables, without the stack trace, as one JSON object.
+  private static String render(Map<String, Object> variables) {
+    Map<String, Object> output = new TreeMap<String, Object>();
+    for (Map.Entry<String, Object> e : variables.entrySet()) {
+      String name = e.getKey();
+      if ((name.startsWith("totp_") && !name.equals("totp_stacktrace"))
+          || name.equals("fault.name")) {
+        output.put(name, e.getValue());
+      }
+    }
+    StringBuilder sb = new StringBuilder(256).append('{');
+    for (Map.Entry<String, Object> e : output.entrySet()) {
+      if (sb.length() > 1) sb.append(',');
+      sb.append(quote(e.getKey())).append(':').append(quote(String.valueOf(e.getValue())));
+    }
+    return sb.append('}').toString();
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    try {
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.encoding;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the table-driven Base16 codec with the character-conversion implementation it
+ * replaced, which is reproduced here as the baseline. Run with {@code -prof gc} to see the
+ * allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Base16Benchmark {
+
+  // 20 bytes is an HmacSHA1 key, 64 an HmacSHA512 key
+  @Param({"20", "64"})
+  public int keyBytes;
+
+  private byte[] data;
+  private String encoded;
+  private byte[] out;
+  private ByteBuffer outBuffer;
+
+  @Setup
+  public void setup() {
+    data = new byte[keyBytes];
+    new Random(1).nextBytes(data);
+    encoded = Base16.encode(data);
+    out = new byte[keyBytes];
+    outBuffer = ByteBuffer.allocate(keyBytes);
+  }
+
+  @Benchmark
+  public String encodeLegacy() {
+    return Legacy.encode(data);
+  }
+
+  @Benchmark
+  public String encode() {
+    return Base16.encode(data);
+  }
+
+  @Benchmark
+  public byte[] decodeLegacy() {
+    return Legacy.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] decode() {
+    return Base16.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] decodeIntoArray() {
+    Base16.decode(encoded, out, 0);
+    return out;
+  }
+
+  @Benchmark
+  public ByteBuffer decodeIntoBuffer() {
+    outBuffer.clear();
+    Base16.decode(encoded, outBuffer);
+    return outBuffer;
+  }
+
+  /** The implementation of Base16 before it used lookup tables. */
+  static final class Legacy {
+    static byte[] decode(String hexString) {
+      if (hexString.length() % 2 == 1) {
+        throw new IllegalArgumentException("Invalid hexadecimal String supplied.");
+      }
+      byte[] bytes = new byte[hexString.length() / 2];
+      for (int i = 0; i < hexString.length(); i += 2) {
+        bytes[i / 2] = hexToByte(hexString.substring(i, i + 2));
+      }
+      return bytes;
+    }
+
+    static String encode(byte[] byteArray) {
+      StringBuffer hexStringBuffer = new StringBuffer();
+      for (int i = 0; i < byteArray.length; i++) {
+        hexStringBuffer.append(byteToHex(byteArray[i]));
+      }
+      return hexStringBuffer.toString();
+    }
+
+    private static String byteToHex(byte num) {
+      char[] hexDigits = new char[2];
+      hexDigits[0] = Character.forDigit((num >> 4) & 0xF, 16);
+      hexDigits[1] = Character.forDigit((num & 0xF), 16);
+      return new String(hexDigits);
+    }
+
+    private static byte hexToByte(String hexString) {
+      int firstDigit = toDigit(hexString.charAt(0));
+      int secondDigit = toDigit(hexString.charAt(1));
+      return (byte) ((firstDigit << 4) + secondDigit);
+    }
+
+    private static int toDigit(char hexChar) {
+      int digit = Character.digit(hexChar, 16);
+      if (digit == -1) {
+        throw new IllegalArgumentException("Invalid Hexadecimal Character: " + hexChar);
+      }
+      return digit;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.encoding;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the table-driven Base32 decoder with the regex and HashMap implementation it
+ * replaced, which is reproduced here as the baseline. The "grouped" format is lower case with a
+ * separator every four characters, the way keys are often displayed to users.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Base32Benchmark {
+
+  // 20 bytes is an HmacSHA1 key, 64 an HmacSHA512 key
+  @Param({"20", "64"})
+  public int keyBytes;
+
+  @Param({"plain", "grouped"})
+  public String format;
+
+  private byte[] data;
+  private String encoded;
+  private byte[] out;
+
+  @Setup
+  public void setup() {
+    data = new byte[keyBytes];
+    new Random(1).nextBytes(data);
+    encoded = Base32.encode(data);
+    if (format.equals("grouped")) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < encoded.length(); i++) {
+        if (i > 0 && i % 4 == 0) sb.append('-');
+        sb.append(Character.toLowerCase(encoded.charAt(i)));
+      }
+      encoded = sb.toString();
+    }
+    out = new byte[encoded.length()];
+  }
+
+  @Benchmark
+  public byte[] decodeLegacy() {
+    return Legacy.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] decode() {
+    return Base32.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] decodeIntoArray() {
+    Base32.decode(encoded, out, 0);
+    return out;
+  }
+
+  @Benchmark
+  public String encode() {
+    return Base32.encode(data);
+  }
+
+  /** The Base32 decoder before it used a lookup table. */
+  static final class Legacy {
+    private static final char[] DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+    private static final int MASK = DIGITS.length - 1;
+    private static final int SHIFT = Integer.numberOfTrailingZeros(DIGITS.length);
+    private static final HashMap<Character, Integer> CHAR_MAP = new HashMap<Character, Integer>();
+
+    static {
+      for (int i = 0; i < DIGITS.length; i++) {
+        CHAR_MAP.put(DIGITS[i], i);
+      }
+    }
+
+    static byte[] decode(String encoded) {
+      encoded = encoded.trim().replaceAll("-", "").replaceAll(" ", "");
+      encoded = encoded.replaceFirst("[=]*$", "");
+      encoded = encoded.toUpperCase(Locale.US);
+      if (encoded.length() == 0) {
+        return new byte[0];
+      }
+      int encodedLength = encoded.length();
+      int outLength = encodedLength * SHIFT / 8;
+      byte[] result = new byte[outLength];
+      int buffer = 0;
+      int next = 0;
+      int bitsLeft = 0;
+      for (char c : encoded.toCharArray()) {
+        if (!CHAR_MAP.containsKey(c)) {
+          throw new Base32.DecodingException("Illegal character: " + c);
+        }
+        buffer <<= SHIFT;
+        buffer |= CHAR_MAP.get(c) & MASK;
+        bitsLeft += SHIFT;
+        if (bitsLeft >= 8) {
+          result[next++] = (byte) (buffer >> (bitsLeft - 8));
+          bitsLeft -= 8;
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,555 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.encoding.Base16;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An append-only binary log of verification attempts, written off the request path.
+ *
+ * <p>Requests put fixed-size events into a bounded ring buffer, claiming a slot with a single
+ * compare-and-set; a single background thread drains the buffer in batches and appends them to
+ * the file. When the buffer is full, the new event is dropped and counted, so a request never
+ * waits for the disk. The writer records how many events were dropped, as an event of its own,
+ * so the gaps are visible in the log.
+ *
+ * <p>The file is a 16-byte header (magic, version, record size) followed by 32-byte records, all
+ * big-endian: the time in epoch milliseconds, the fingerprint of the key, the time step, the
+ * latency in nanoseconds (an int), and the outcome (a byte: the ordinal of {@link
+ * CalloutMetrics.Outcome}, or {@link #DROPPED}, with the number of dropped events as the step).
+ * When the file reaches its maximum size it is renamed with the suffix .1, older files move up
+ * by one, and the oldest beyond the maximum number is deleted. The fingerprint is an HMAC of the
+ * key under the audit key, so the log cannot be used to test guesses of a key without it.
+ *
+ * <p>One log, and one writer thread, is shared by all the policies that name the same file, for
+ * as long as any of them is reachable; the registry holds logs weakly, and a writer whose log has
+ * been collected appends what is queued, and stops. Only one writer appends to a file at a time,
+ * across class loaders and processes: a writer holds an exclusive lock on the file with the
+ * suffix .lock while it runs, and a new writer waits for the lock before it opens the file, so
+ * that after a redeploy the writer of the new deployment takes over once the old one has stopped.
+ * Events that arrive while it waits are queued, and dropped and counted if the buffer fills.
+ */
+final class AuditLog {
+  static final int MAGIC = 0x54415544; // "TAUD"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final int RECORD_SIZE = 32;
+  static final int DROPPED = 0xff;
+  static final int MIN_AUDIT_KEY_SIZE = 16;
+
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+  static final int MIN_BUFFER_SIZE = 64;
+  static final int MAX_BUFFER_SIZE = 1 << 20;
+  static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+  static final int DEFAULT_MAX_FILES = 4;
+
+  private static final int LONGS_PER_EVENT = 4;
+  private static final int BATCH_SIZE = 512;
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  // guarded by itself, as is the shutdown hook, which is registered while there are logs
+  private static final Map<Path, WeakReference<AuditLog>> logs =
+      new HashMap<Path, WeakReference<AuditLog>>();
+  private static Thread shutdownHook;
+
+  // one Mac per thread, left initialized with the audit key it last used
+  private static final ThreadLocal<KeyedMac> macs =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return new KeyedMac(Mac.getInstance("HmacSHA256"));
+            } catch (GeneralSecurityException e) {
+              throw new IllegalStateException(e);
+            }
+          });
+
+  private static final class KeyedMac {
+    final Mac mac;
+    final byte[] digest;
+    SecretKey key;
+
+    KeyedMac(Mac mac) {
+      this.mac = mac;
+      this.digest = new byte[mac.getMacLength()];
+    }
+  }
+
+  private final Writer writer;
+
+  private AuditLog(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Returns the log for the file, creating it, and its writer, if necessary. The sizes apply when
+   * the log is first opened.
+   */
+  static AuditLog open(Path path, int bufferSize, long maxFileSize, int maxFiles) {
+    Path p = path.toAbsolutePath().normalize();
+    synchronized (logs) {
+      WeakReference<AuditLog> ref = logs.get(p);
+      AuditLog log = (ref == null) ? null : ref.get();
+      if (log != null && !log.writer.closed) return log;
+      log = create(p, bufferSize, maxFileSize, maxFiles);
+      logs.put(p, new WeakReference<AuditLog>(log));
+      if (shutdownHook == null) {
+        shutdownHook = new Thread(AuditLog::closeAll, "totp-audit-close");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+      }
+      return log;
+    }
+  }
+
+  /** Returns a log with a writer of its own, which is not shared through the registry. */
+  static AuditLog create(Path path, int bufferSize, long maxFileSize, int maxFiles) {
+    Writer writer;
+    try {
+      writer = new Writer(path, bufferSize, maxFileSize, maxFiles);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    AuditLog log = new AuditLog(writer);
+    writer.start(log);
+    return log;
+  }
+
+  private static void closeAll() {
+    List<AuditLog> open = new ArrayList<AuditLog>();
+    synchronized (logs) {
+      for (WeakReference<AuditLog> ref : logs.values()) {
+        AuditLog log = ref.get();
+        if (log != null) open.add(log);
+      }
+    }
+    for (AuditLog log : open) {
+      log.close();
+    }
+  }
+
+  // Called by a writer that has stopped. Once no log is left, the shutdown hook is removed, so
+  // that it does not keep this class loader reachable.
+  private static void unregister(Path path) {
+    synchronized (logs) {
+      WeakReference<AuditLog> ref = logs.get(path);
+      if (ref != null && (ref.get() == null || ref.get().writer.closed)) {
+        logs.remove(path);
+      }
+      logs.values().removeIf(r -> r.get() == null);
+      if (logs.isEmpty() && shutdownHook != null) {
+        try {
+          Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+          // the JVM is shutting down, and the hook is running
+        }
+        shutdownHook = null;
+      }
+    }
+  }
+
+  /** Returns the audit key, from its hexadecimal encoding. */
+  static SecretKey auditKey(String hex) {
+    byte[] bytes = Base16.decode(hex);
+    if (bytes.length < MIN_AUDIT_KEY_SIZE) {
+      throw new IllegalStateException(
+          "audit-key must be at least " + MIN_AUDIT_KEY_SIZE + " bytes");
+    }
+    return new SecretKeySpec(bytes, "HmacSHA256");
+  }
+
+  /**
+   * Returns the first 8 bytes of the HMAC-SHA256 of the key under the audit key. The Mac is
+   * initialized only when the audit key differs from the one the thread used last, so a policy
+   * with a constant audit key pays for the HMAC alone.
+   */
+  static long fingerprint(SecretKey auditKey, byte[] key) {
+    KeyedMac m = macs.get();
+    try {
+      if (m.key != auditKey && !auditKey.equals(m.key)) {
+        m.key = null;
+        m.mac.init(auditKey);
+        m.key = auditKey;
+      }
+      m.mac.update(key);
+      m.mac.doFinal(m.digest, 0);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    long fp = 0L;
+    for (int i = 0; i < 8; i++) {
+      fp = (fp << 8) | (m.digest[i] & 0xff);
+    }
+    return fp;
+  }
+
+  /**
+   * Queues an event for the writer. Returns false, and counts the event as dropped, if the buffer
+   * is full or the log is closed. Never blocks.
+   */
+  boolean record(
+      long timeMillis,
+      long fingerprint,
+      long step,
+      long latencyNanos,
+      CalloutMetrics.Outcome outcome) {
+    return writer.offer(timeMillis, fingerprint, step, latencyNanos, outcome.ordinal());
+  }
+
+  /** Stops accepting events, and waits for the writer to append the ones already queued. */
+  void close() {
+    writer.close();
+  }
+
+  long getRecorded() {
+    return writer.recorded.sum();
+  }
+
+  long getDropped() {
+    return writer.dropped.sum();
+  }
+
+  long getWritten() {
+    return writer.written.get();
+  }
+
+  long getRolls() {
+    return writer.rolls.get();
+  }
+
+  long getWriteFailures() {
+    return writer.writeFailures.get();
+  }
+
+  /**
+   * The buffer and the file of a log. The writer thread refers to the log only weakly, so that the
+   * log can be collected while the thread runs.
+   */
+  private static final class Writer implements Runnable {
+    private final Path path;
+    private final Path lockPath;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    // The ring buffer. The sequence of a slot tells whether it is free for the producer with that
+    // ticket (sequence == ticket), or holds an event for the writer (sequence == ticket + 1).
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] events;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // only the writer thread reads and writes this
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong rolls = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+
+    private final FileChannel lockChannel;
+    private FileLock lock; // null until this writer holds the lock
+    private WeakReference<AuditLog> owner;
+    private Thread thread;
+    private volatile boolean closed;
+    private FileChannel channel;
+    private long fileSize;
+
+    Writer(Path path, int bufferSize, long maxFileSize, int maxFiles) throws IOException {
+      this.path = path;
+      this.lockPath = path.resolveSibling(path.getFileName() + ".lock");
+      this.maxFileSize = maxFileSize;
+      this.maxFiles = maxFiles;
+      int capacity = Integer.highestOneBit(bufferSize - 1) << 1; // next power of two
+      this.mask = capacity - 1;
+      this.sequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) {
+        sequences.set(i, i);
+      }
+      this.events = new long[capacity * LONGS_PER_EVENT];
+      this.lockChannel =
+          FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      // Taken here if it is free, so that of two writers, the one created first writes first.
+      try {
+        this.lock = tryLock();
+      } catch (IOException e) {
+        lockChannel.close();
+        throw e;
+      }
+    }
+
+    private FileLock tryLock() throws IOException {
+      try {
+        return lockChannel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // held by a writer in this process, possibly in another class loader
+        return null;
+      }
+    }
+
+    void start(AuditLog log) {
+      this.owner = new WeakReference<AuditLog>(log);
+      this.thread = new Thread(this, "totp-audit-writer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private boolean stopping() {
+      return closed || owner.get() == null;
+    }
+
+    boolean offer(long timeMillis, long fingerprint, long step, long latencyNanos, int code) {
+      if (closed) {
+        dropped.increment();
+        return false;
+      }
+      for (; ; ) {
+        long ticket = tail.get();
+        int slot = (int) ticket & mask;
+        long available = sequences.get(slot) - ticket;
+        if (available < 0) {
+          // the writer has not yet drained the event in this slot from the previous lap
+          dropped.increment();
+          return false;
+        }
+        if (available == 0 && tail.compareAndSet(ticket, ticket + 1)) {
+          int base = slot * LONGS_PER_EVENT;
+          events[base] = timeMillis;
+          events[base + 1] = fingerprint;
+          events[base + 2] = step;
+          events[base + 3] = (Math.min(Math.max(latencyNanos, 0L), Integer.MAX_VALUE) << 8) | code;
+          sequences.lazySet(slot, ticket + 1); // publishes the event to the writer
+          recorded.increment();
+          return true;
+        }
+        // another request claimed the slot; try the next one
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (awaitLock()) {
+          openFile();
+          drainLoop();
+        }
+      } catch (IOException e) {
+        writeFailures.incrementAndGet();
+      } finally {
+        closeQuietly();
+        unregister(path);
+      }
+    }
+
+    // Waits until no other writer holds the lock, or this one is stopped.
+    private boolean awaitLock() throws IOException {
+      while (lock == null) {
+        lock = tryLock();
+        if (lock == null && stopping()) {
+          // the queued events are never written
+          dropped.add(tail.get() - head);
+          return false;
+        }
+        if (lock == null) {
+          LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+      }
+      return true;
+    }
+
+    private void closeQuietly() {
+      try {
+        if (channel != null) {
+          channel.force(false);
+          channel.close();
+        }
+        if (lock != null) {
+          lock.release();
+        }
+        lockChannel.close();
+      } catch (IOException e) {
+        writeFailures.incrementAndGet();
+      }
+    }
+
+    private void drainLoop() {
+      ByteBuffer batch = ByteBuffer.allocateDirect((BATCH_SIZE + 1) * RECORD_SIZE);
+      long reportedDrops = 0L;
+      for (; ; ) {
+        boolean stopping = stopping();
+        int count = 0;
+        while (count < BATCH_SIZE) {
+          int slot = (int) head & mask;
+          if (sequences.get(slot) != head + 1) break;
+          int base = slot * LONGS_PER_EVENT;
+          long packed = events[base + 3];
+          putRecord(
+              batch,
+              events[base],
+              events[base + 1],
+              events[base + 2],
+              packed >>> 8,
+              (int) packed & 0xff);
+          sequences.lazySet(slot, head + mask + 1); // frees the slot for the next lap
+          head++;
+          count++;
+        }
+        long drops = dropped.sum();
+        if (drops > reportedDrops) {
+          putRecord(batch, System.currentTimeMillis(), 0L, drops - reportedDrops, 0L, DROPPED);
+          reportedDrops = drops;
+        }
+        if (batch.position() > 0) {
+          write(batch, count);
+        }
+        if (count == 0) {
+          if (stopping) break;
+          LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+      }
+    }
+
+    private static void putRecord(
+        ByteBuffer batch,
+        long timeMillis,
+        long fingerprint,
+        long step,
+        long latencyNanos,
+        int code) {
+      batch.putLong(timeMillis).putLong(fingerprint).putLong(step).putInt((int) latencyNanos);
+      batch.put((byte) code).put((byte) 0).putShort((short) 0);
+    }
+
+    private void write(ByteBuffer batch, int count) {
+      batch.flip();
+      try {
+        if (!channel.isOpen()) {
+          openFile(); // a previous roll did not complete
+        }
+        if (fileSize + batch.remaining() > maxFileSize && fileSize > HEADER_SIZE) {
+          roll();
+        }
+        while (batch.hasRemaining()) {
+          fileSize += channel.write(batch);
+        }
+        written.addAndGet(count);
+      } catch (IOException e) {
+        // the batch is lost; the writer goes on with the next one
+        writeFailures.incrementAndGet();
+      }
+      batch.clear();
+    }
+
+    private void openFile() throws IOException {
+      channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+      fileSize = channel.size();
+      if (fileSize == 0L) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).flip();
+        while (header.hasRemaining()) {
+          fileSize += channel.write(header);
+        }
+      }
+    }
+
+    private Path rolled(int n) {
+      return path.resolveSibling(path.getFileName() + "." + n);
+    }
+
+    private void roll() throws IOException {
+      channel.force(false);
+      channel.close();
+      Files.deleteIfExists(rolled(maxFiles));
+      for (int n = maxFiles - 1; n >= 1; n--) {
+        if (Files.exists(rolled(n))) {
+          Files.move(rolled(n), rolled(n + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(path, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+      rolls.incrementAndGet();
+      openFile();
+    }
+
+    void close() {
+      closed = true;
+      LockSupport.unpark(thread);
+      try {
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Prints the records of an audit file as CSV: time, fingerprint, step, latency, outcome. */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("usage: AuditLog FILE");
+      System.exit(1);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(args[0])));
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+      throw new IllegalStateException("not an audit file");
+    }
+    buffer.position(HEADER_SIZE);
+    CalloutMetrics.Outcome[] outcomes = CalloutMetrics.Outcome.values();
+    while (buffer.remaining() >= RECORD_SIZE) {
+      long timeMillis = buffer.getLong();
+      long fingerprint = buffer.getLong();
+      long step = buffer.getLong();
+      int latencyNanos = buffer.getInt();
+      int code = buffer.get() & 0xff;
+      buffer.position(buffer.position() + 3);
+      String outcome = (code < outcomes.length) ? outcomes[code].label : "dropped";
+      System.out.println(
+          timeMillis
+              + ","
+              + String.format("%016x", fingerprint)
+              + ","
+              + step
+              + ","
+              + latencyNanos
+              + ","
+              + outcome);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The one scheduler, per class loader, for the periodic tasks of the callouts.
+ *
+ * <p>A task holds its owner through a weak reference, and cancels itself once the owner has been
+ * collected, so a task never keeps an owner, or the secrets the owner holds, reachable. The
+ * scheduler thread is a daemon, and exits once it has had no task to run for a while, so that
+ * after a redeploy, when the callouts of the old deployment are no longer reachable, nothing is
+ * left running in the old class loader.
+ */
+final class BackgroundTasks {
+  static final long IDLE_MILLIS = 5000L;
+
+  private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+  private BackgroundTasks() {}
+
+  private static ScheduledThreadPoolExecutor createScheduler() {
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(
+            1,
+            r -> {
+              Thread thread = new Thread(r, "totp-background");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.setKeepAliveTime(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    executor.allowCoreThreadTimeOut(true);
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /**
+   * Runs the task on the owner at a fixed rate, for as long as the owner is reachable from
+   * elsewhere. The task must not itself refer to the owner; it is given the owner on each run.
+   */
+  static <T> ScheduledFuture<?> scheduleAtFixedRate(
+      T owner, Consumer<? super T> task, long period, TimeUnit unit) {
+    Registration<T> registration = new Registration<T>(owner, task);
+    synchronized (registration) {
+      registration.future = scheduler.scheduleAtFixedRate(registration, period, period, unit);
+    }
+    return registration.future;
+  }
+
+  /** As {@link #scheduleAtFixedRate}, with the period counted from the end of each run. */
+  static <T> ScheduledFuture<?> scheduleWithFixedDelay(
+      T owner, Consumer<? super T> task, long delay, TimeUnit unit) {
+    Registration<T> registration = new Registration<T>(owner, task);
+    synchronized (registration) {
+      registration.future = scheduler.scheduleWithFixedDelay(registration, delay, delay, unit);
+    }
+    return registration.future;
+  }
+
+  private static final class Registration<T> implements Runnable {
+    private final WeakReference<T> owner;
+    private final Consumer<? super T> task;
+    private ScheduledFuture<?> future; // guarded by this
+
+    Registration(T owner, Consumer<? super T> task) {
+      this.owner = new WeakReference<T>(owner);
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      T o = owner.get();
+      if (o == null) {
+        synchronized (this) {
+          future.cancel(false);
+        }
+        return;
+      }
+      task.accept(o);
+    }
+  }
+}
@@ -0,0 +1,424 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.crypto.SecretKey;
+
+/**
+ * Generates or verifies codes for every record of a large file, from the command line.
+ *
+ * <pre>
+ *   java -cp 'target/apigee-google-authenticator-totp-20230628.jar:target/lib/*' \
+ *       com.google.apigee.callouts.BulkTool [NAME=VALUE ...] INPUT OUTPUT
+ * </pre>
+ *
+ * <p>Each line of the input is a record: in CSV, {@code id,key} to generate a code, or {@code
+ * id,key,code} to verify one; in JSONL, an object with id, key, and optionally code and
+ * decode-key. CSV fields are not quoted, and a first line that begins with "id," is a header. For
+ * each record the output has one line, in the same order and format as the input: the id and the
+ * code, or the id and whether the code is valid, or the id and an error. The key is not written.
+ *
+ * <p>The options are the properties of TotpCallout that describe the code (decode-key,
+ * code-digits, leading-zeros, time-step, hash-function, hmac-engine, window-behind,
+ * window-ahead, key-wrapping, key-encryption-key), plus format (csv or jsonl; by default, from
+ * the name of the input), time (the epoch seconds for every code; by default, now), parallelism
+ * (default, the number of processors) and chunk-size (bytes; default 4 MiB).
+ *
+ * <p>The input is mapped into memory one chunk at a time; each chunk ends at a line break. The
+ * chunks are processed in parallel on a fork-join pool, with the same decoding and HMAC code as
+ * the callout, and written in order as they complete. Lines are found in the mapped bytes, and
+ * only the fields of a record are decoded to strings, so the input is never copied to the heap as
+ * a whole. At most two chunks per thread are in flight at once, and the heap holds their output,
+ * which is a line of a few dozen bytes per record; that does not grow with the size of the input.
+ * OUTPUT can be - for standard output.
+ */
+public final class BulkTool {
+  static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+  private static final int CHUNKS_PER_THREAD = 2;
+  private static final String USAGE = "usage: BulkTool [NAME=VALUE ...] INPUT OUTPUT";
+
+  private final TotpConfig config;
+  private final SecretKey keyEncryptionKey; // null unless key-wrapping is set
+  private final boolean jsonl;
+  private final long nowMillis;
+  private final int parallelism;
+  private final int chunkSize;
+
+  /** The counts for a run, or for one chunk of it. */
+  static final class Summary {
+    long records;
+    long valid;
+    long invalid;
+    long errors;
+
+    void add(Summary other) {
+      records += other.records;
+      valid += other.valid;
+      invalid += other.invalid;
+      errors += other.errors;
+    }
+
+    @Override
+    public String toString() {
+      return "records="
+          + records
+          + " valid="
+          + valid
+          + " invalid="
+          + invalid
+          + " errors="
+          + errors;
+    }
+  }
+
+  /** The output for one chunk, and its counts. */
+  private static final class ChunkResult {
+    final byte[] output;
+    final Summary summary;
+
+    ChunkResult(byte[] output, Summary summary) {
+      this.output = output;
+      this.summary = summary;
+    }
+  }
+
+  BulkTool(Map<String, String> options, Path input) {
+    final Map<String, PropertyTemplate> templates = new HashMap<String, PropertyTemplate>();
+    for (Map.Entry<String, String> e : options.entrySet()) {
+      PropertyTemplate template = PropertyTemplate.compile(e.getValue().trim());
+      if (!template.isConstant()) {
+        throw new IllegalArgumentException(e.getKey() + " cannot refer to variables");
+      }
+      templates.put(e.getKey(), template);
+    }
+    this.config = new TotpConfig(templates::get);
+    if (config.keyWrapping.get(null) && config.keyEncryptionKey.get(null) == null) {
+      throw new IllegalArgumentException("key-encryption-key must be set when key-wrapping is set");
+    }
+    this.keyEncryptionKey = CalloutBase.getKeyEncryptionKey(config, null);
+    String format = options.get("format");
+    if (format == null) {
+      format = input.toString().toLowerCase().endsWith(".jsonl") ? "jsonl" : "csv";
+    }
+    if (!format.equals("csv") && !format.equals("jsonl")) {
+      throw new IllegalArgumentException("format " + format + " is not supported");
+    }
+    this.jsonl = format.equals("jsonl");
+    this.nowMillis = getTimeMillis(options);
+    this.parallelism =
+        getInteger(options, "parallelism", Runtime.getRuntime().availableProcessors(), 1, 256);
+    this.chunkSize =
+        getInteger(options, "chunk-size", DEFAULT_CHUNK_SIZE, 1024, Integer.MAX_VALUE / 2);
+  }
+
+  private static long getTimeMillis(Map<String, String> options) {
+    String value = options.get("time");
+    if (value == null) return System.currentTimeMillis();
+    long seconds;
+    try {
+      seconds = Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("time " + value + " is not an integer");
+    }
+    // keeps the milliseconds within a long
+    long max = Long.MAX_VALUE / 1000L;
+    if (seconds < -max || seconds > max) {
+      throw new IllegalStateException(
+          "time must be between " + -max + " and " + max + ", found " + value);
+    }
+    return seconds * 1000L;
+  }
+
+  private static int getInteger(
+      Map<String, String> options, String name, int defaultValue, int min, int max) {
+    String value = options.get(name);
+    if (value == null) return defaultValue;
+    return TotpConfig.parseInteger(name, value.trim(), min, max);
+  }
+
+  /** Reads the input, and writes one line per record to the output. */
+  Summary run(Path input, OutputStream out)
+      throws IOException, InterruptedException, ExecutionException {
+    Summary total = new Summary();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    ArrayDeque<ForkJoinTask<ChunkResult>> inFlight = new ArrayDeque<ForkJoinTask<ChunkResult>>();
+    try (FileChannel channel = FileChannel.open(input)) {
+      long size = channel.size();
+      long start = 0L;
+      while (start < size) {
+        final MappedByteBuffer chunk = mapChunk(channel, start, size);
+        final boolean first = (start == 0L);
+        inFlight.add(pool.submit(() -> process(chunk, first)));
+        if (inFlight.size() >= parallelism * CHUNKS_PER_THREAD) {
+          write(inFlight.poll().get(), out, total);
+        }
+        start += chunk.limit();
+      }
+      while (!inFlight.isEmpty()) {
+        write(inFlight.poll().get(), out, total);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    out.flush();
+    return total;
+  }
+
+  private static void write(ChunkResult result, OutputStream out, Summary total)
+      throws IOException {
+    out.write(result.output);
+    total.add(result.summary);
+  }
+
+  // Maps the chunk that starts at start, with its limit just past the last line break within
+  // chunkSize bytes. A line longer than that makes the chunk as long as the line.
+  private MappedByteBuffer mapChunk(FileChannel channel, long start, long size)
+      throws IOException {
+    long length = Math.min(chunkSize, size - start);
+    for (; ; ) {
+      MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      if (start + length == size) return chunk;
+      for (int i = (int) length - 1; i >= 0; i--) {
+        if (chunk.get(i) == '\n') {
+          chunk.limit(i + 1);
+          return chunk;
+        }
+      }
+      if (length == Integer.MAX_VALUE) {
+        throw new IOException("a line at offset " + start + " is longer than 2 GiB");
+      }
+      length = Math.min(Math.min(length * 2, Integer.MAX_VALUE), size - start);
+    }
+  }
+
+  private ChunkResult process(ByteBuffer chunk, boolean first) throws Exception {
+    StringBuilder out = new StringBuilder(chunk.limit() / 2);
+    Summary summary = new Summary();
+    OtpGenerator totp =
+        OtpGenerator.forCurrentThread(
+            config.hashFunction.get(null),
+            config.timeStep.get(null),
+            config.codeDigits.get(null),
+            config.builtinEngine.get(null));
+    long currentStep = totp.timeStepFor(nowMillis);
+    int limit = chunk.limit();
+    int lineStart = 0;
+    for (int i = 0; i <= limit; i++) {
+      if (i < limit && chunk.get(i) != '\n') continue;
+      int from = lineStart;
+      int to = (i > from && chunk.get(i - 1) == '\r') ? i - 1 : i;
+      lineStart = i + 1;
+      if (isBlank(chunk, from, to)) continue;
+      if (first && from == 0 && !jsonl && startsWith(chunk, from, to, "id,")) continue;
+      summary.records++;
+      processRecord(chunk, from, to, totp, currentStep, out, summary);
+    }
+    return new ChunkResult(out.toString().getBytes(StandardCharsets.UTF_8), summary);
+  }
+
+  private static boolean isBlank(ByteBuffer bytes, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if ((bytes.get(i) & 0xff) > ' ') return false;
+    }
+    return true;
+  }
+
+  private static boolean startsWith(ByteBuffer bytes, int from, int to, String prefix) {
+    if (to - from < prefix.length()) return false;
+    for (int i = 0; i < prefix.length(); i++) {
+      if (bytes.get(from + i) != prefix.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static int indexOf(ByteBuffer bytes, char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (bytes.get(i) == c) return i;
+    }
+    return -1;
+  }
+
+  // Decodes the bytes from to to, without leading and trailing whitespace, as String.trim() would.
+  private static String decode(ByteBuffer bytes, int from, int to) {
+    while (from < to && (bytes.get(from) & 0xff) <= ' ') from++;
+    while (to > from && (bytes.get(to - 1) & 0xff) <= ' ') to--;
+    byte[] field = new byte[to - from];
+    for (int i = 0; i < field.length; i++) {
+      field[i] = bytes.get(from + i);
+    }
+    String decoded = new String(field, StandardCharsets.UTF_8);
+    // the field can be a key
+    Arrays.fill(field, (byte) 0);
+    return decoded;
+  }
+
+  private void processRecord(
+      ByteBuffer chunk,
+      int from,
+      int to,
+      OtpGenerator totp,
+      long currentStep,
+      StringBuilder out,
+      Summary summary) {
+    String id = null;
+    byte[] key = null;
+    try {
+      String keyString;
+      String code;
+      String decodeKey = null;
+      if (jsonl) {
+        Object parsed = Json.parse(decode(chunk, from, to));
+        if (!(parsed instanceof Map)) {
+          throw new IllegalArgumentException("a record must be a JSON object");
+        }
+        Map record = (Map) parsed;
+        id = asString(record.get("id"));
+        keyString = asString(record.get("key"));
+        code = asString(record.get("code"));
+        decodeKey = asString(record.get("decode-key"));
+      } else {
+        int comma = indexOf(chunk, ',', from, to);
+        int nextComma = (comma < 0) ? -1 : indexOf(chunk, ',', comma + 1, to);
+        if (comma < 0 || (nextComma >= 0 && indexOf(chunk, ',', nextComma + 1, to) >= 0)) {
+          throw new IllegalArgumentException("expected id,key or id,key,code");
+        }
+        id = decode(chunk, from, comma);
+        keyString = decode(chunk, comma + 1, (nextComma < 0) ? to : nextComma);
+        code = (nextComma < 0) ? null : decode(chunk, nextComma + 1, to);
+      }
+      if (keyString == null || keyString.isEmpty()) {
+        throw new IllegalArgumentException("the key is missing");
+      }
+      KeyEncoding encoding =
+          (decodeKey == null) ? config.decodeKey.get(null) : KeyEncoding.parse(decodeKey);
+      key = CalloutBase.decodeKey(encoding, keyString, keyEncryptionKey);
+      int generated = totp.generateForCounter(key, currentStep);
+      boolean leadingZeros = config.leadingZeros.get(null);
+      if (code == null || code.isEmpty()) {
+        String formatted = CodeFormat.format(generated, totp.getCodeDigits(), leadingZeros);
+        writeResult(out, id, "code", formatted);
+        return;
+      }
+      boolean valid =
+          TotpCallout.findMatchingOffset(
+                  code,
+                  totp,
+                  key,
+                  currentStep,
+                  generated,
+                  leadingZeros,
+                  config.windowBehind.get(null),
+                  config.windowAhead.get(null))
+              != null;
+      if (valid) {
+        summary.valid++;
+      } else {
+        summary.invalid++;
+      }
+      writeResult(out, id, "valid", Boolean.toString(valid));
+    } catch (Exception e) {
+      summary.errors++;
+      String message = (e.getMessage() == null) ? e.toString() : e.getMessage();
+      writeResult(out, id, "error", message);
+    } finally {
+      if (key != null) {
+        Arrays.fill(key, (byte) 0);
+      }
+    }
+  }
+
+  private static String asString(Object value) {
+    if (value instanceof String) return (String) value;
+    if (value instanceof Long) return value.toString();
+    return null;
+  }
+
+  private void writeResult(StringBuilder out, String id, String name, String value) {
+    if (jsonl) {
+      out.append("{\"id\":");
+      if (id == null) {
+        out.append("null");
+      } else {
+        Json.appendString(out, id);
+      }
+      out.append(",\"").append(name).append("\":");
+      if (name.equals("valid")) {
+        out.append(value);
+      } else {
+        Json.appendString(out, value);
+      }
+      out.append("}\n");
+    } else {
+      out.append((id == null) ? "" : id).append(',');
+      if (name.equals("error")) {
+        out.append("error ").append(value.replace(',', ';'));
+      } else {
+        out.append(value);
+      }
+      out.append('\n');
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    int i = 0;
+    for (; i < args.length && args[i].indexOf('=') > 0; i++) {
+      int eq = args[i].indexOf('=');
+      options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+    }
+    if (args.length - i != 2) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    Path input = Paths.get(args[i]);
+    BulkTool tool = null;
+    try {
+      tool = new BulkTool(options, input);
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    long started = System.nanoTime();
+    Summary summary;
+    if (args[i + 1].equals("-")) {
+      summary = tool.run(input, System.out);
+    } else {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[i + 1]))) {
+        summary = tool.run(input, out);
+      }
+    }
+    long millis = (System.nanoTime() - started) / 1_000_000L;
+    System.err.println(summary + " in " + millis + " ms");
+  }
+}
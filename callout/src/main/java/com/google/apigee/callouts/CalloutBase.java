@@ -18,19 +18,59 @@ package com.google.apigee.callouts;
 import com.apigee.flow.message.MessageContext;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import javax.crypto.SecretKey;
 
 public abstract class CalloutBase {
   private static final String _varprefix = "totp_";
   protected final Map properties; // read-only
-  private static final String variableReferencePatternString = "(.*?)\\{([^\\{\\} ]+?)\\}(.*?)";
-  private static final Pattern variableReferencePattern =
-      Pattern.compile(variableReferencePatternString);
+  private final Map<String, PropertyTemplate> templates; // compiled once, from properties
+  private final TotpClock clock;
+  private final SecretIndex secretIndex; // null unless key-ref is set
+  private final SecretKey secretIndexKey; // null if the property refers to variables
 
   public CalloutBase(Map properties) {
     this.properties = properties;
+    this.templates = compileTemplates(properties);
+    this.clock = TotpClock.fromProperties(templates::get);
+    this.secretIndex = createSecretIndex();
+    this.secretIndexKey = createSecretIndexKey();
+  }
+
+  // The secret index is opened when the callout is created, if key-ref is set.
+  private SecretIndex createSecretIndex() {
+    if (templates.get("key-ref") == null) return null;
+    String file = (String) this.properties.get("secret-index");
+    if (file == null || file.trim().equals("")) {
+      throw new IllegalStateException("secret-index must be set when key-ref is set");
+    }
+    return SecretIndex.open(file.trim());
+  }
+
+  private SecretKey createSecretIndexKey() {
+    if (secretIndex == null) return null;
+    PropertyTemplate template = templates.get("secret-index-key");
+    if (template == null) {
+      throw new IllegalStateException("secret-index-key must be set when key-ref is set");
+    }
+    return template.isConstant() ? SecretIndex.indexKey(template.getConstant()) : null;
+  }
+
+  private static Map<String, PropertyTemplate> compileTemplates(Map properties) {
+    Map<String, PropertyTemplate> templates = new HashMap<String, PropertyTemplate>();
+    if (properties != null) {
+      for (Object o : properties.entrySet()) {
+        Map.Entry entry = (Map.Entry) o;
+        if (entry.getKey() instanceof String && entry.getValue() instanceof String) {
+          String value = ((String) entry.getValue()).trim();
+          templates.put((String) entry.getKey(), PropertyTemplate.compile(value));
+        }
+      }
+    }
+    return Collections.unmodifiableMap(templates);
   }
 
   protected String varName(String s) {
@@ -66,15 +106,7 @@ public abstract class CalloutBase {
 
   protected String getSimpleOptionalProperty(String propName, MessageContext msgCtxt)
       throws Exception {
-    String value = (String) this.properties.get(propName);
-    if (value == null) {
-      return null;
-    }
-    value = value.trim();
-    if (value.equals("")) {
-      return null;
-    }
-    value = resolvePropertyValue(value, msgCtxt);
+    String value = resolveProperty(propName, msgCtxt);
     if (value == null || value.equals("")) {
       return null;
     }
@@ -83,38 +115,87 @@ public abstract class CalloutBase {
 
   protected String getSimpleRequiredProperty(String propName, MessageContext msgCtxt)
       throws Exception {
-    String value = (String) this.properties.get(propName);
-    if (value == null) {
-      throw new IllegalStateException(propName + " resolves to an empty string");
-    }
-    value = value.trim();
-    if (value.equals("")) {
-      throw new IllegalStateException(propName + " resolves to an empty string");
-    }
-    value = resolvePropertyValue(value, msgCtxt);
+    String value = resolveProperty(propName, msgCtxt);
     if (value == null || value.equals("")) {
       throw new IllegalStateException(propName + " resolves to an empty string");
     }
     return value;
   }
 
+  // Returns the trimmed value of the property, with any references to context
+  // variables resolved, or null if the property is not set.
+  protected String resolveProperty(String propName, MessageContext msgCtxt) {
+    PropertyTemplate template = templates.get(propName);
+    if (template == null) {
+      return null;
+    }
+    return template.resolve(msgCtxt);
+  }
+
+  // Returns the compiled template for the property, or null if the property is not set.
+  PropertyTemplate getPropertyTemplate(String propName) {
+    return templates.get(propName);
+  }
+
   // If the value of a property contains any pairs of curlies,
   // eg, {apiproxy.name}, then "resolve" the value by de-referencing
   // the context variables whose names appear between curlies.
+  // Property values are compiled once, in the constructor; use resolveProperty
+  // for those. This is for values that are not known in advance.
   protected String resolvePropertyValue(String spec, MessageContext msgCtxt) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      Object v = msgCtxt.getVariable(matcher.group(2));
-      if (v != null) {
-        sb.append((String) v);
-      }
-      sb.append(matcher.group(3));
+    return PropertyTemplate.compile(spec).resolve(msgCtxt);
+  }
+
+  // Returns the key, before it is decoded. That is the value of the key property, or, when key-ref
+  // is set, the key stored for that user ID in the secret index.
+  protected String getKeyString(MessageContext msgCtxt) throws Exception {
+    if (secretIndex == null) {
+      return getSimpleRequiredProperty("key", msgCtxt);
+    }
+    String userId = getSimpleRequiredProperty("key-ref", msgCtxt);
+    SecretKey indexKey =
+        (secretIndexKey != null)
+            ? secretIndexKey
+            : SecretIndex.indexKey(getSimpleRequiredProperty("secret-index-key", msgCtxt));
+    String key = secretIndex.lookup(userId, indexKey);
+    if (key == null) {
+      throw new IllegalStateException("key-ref not found in the secret index");
+    }
+    return key;
+  }
+
+  // Returns the key-encryption key if key-wrapping is set, or null if it is not.
+  static SecretKey getKeyEncryptionKey(TotpConfig config, MessageContext msgCtxt) {
+    if (!config.keyWrapping.get(msgCtxt)) return null;
+    SecretKey kek = config.keyEncryptionKey.get(msgCtxt);
+    if (kek == null) {
+      throw new IllegalStateException("key-encryption-key must be set when key-wrapping is set");
+    }
+    return kek;
+  }
+
+  // Decodes the key and, if kek is not null, unwraps it. Every callout that accepts a key decodes
+  // it here, so that none of them ignores key-wrapping.
+  static byte[] decodeKey(KeyEncoding encoding, String keyString, SecretKey kek) {
+    byte[] key = encoding.decode(keyString);
+    if (kek == null) return key;
+    try {
+      return KeyWrapping.unwrap(key, kek);
+    } finally {
+      Arrays.fill(key, (byte) 0);
     }
-    matcher.appendTail(sb);
-    return sb.toString();
+  }
+
+  // Returns the key for this request, decoded and, if key-wrapping is set, unwrapped.
+  protected byte[] getDecodedKey(TotpConfig config, KeyEncoding encoding, MessageContext msgCtxt)
+      throws Exception {
+    return decodeKey(encoding, getKeyString(msgCtxt), getKeyEncryptionKey(config, msgCtxt));
+  }
+
+  // Returns the current time in milliseconds, which is the fake time if the
+  // fake-time-millis or fake-time-seconds property is set.
+  protected long currentTimeMillis(MessageContext msgCtxt) {
+    return clock.currentTimeMillis(msgCtxt);
   }
 
   protected void setExceptionVariables(Exception exc1, MessageContext msgCtxt) {
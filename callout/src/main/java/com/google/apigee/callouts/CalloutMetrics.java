@@ -0,0 +1,178 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms for the phases of execute, and counters for its outcomes, for one policy.
+ *
+ * <p>Each histogram has one bucket per power of two nanoseconds, each a LongAdder, so recording
+ * never takes a lock. When metrics are disabled, {@link #lap} does not read the clock and records
+ * nothing. A snapshot is a compact string, cumulative since the policy was created:
+ *
+ * <pre>
+ *   success=1180,mismatch=15,replay=0,locked=0,exception=5;resolve=1200/511/2047/9120;decode=...
+ * </pre>
+ *
+ * <p>For each phase the numbers are count/p50/p99/max, in nanoseconds. The percentiles are the
+ * upper bounds of their buckets, so they are accurate to within a factor of two.
+ */
+final class CalloutMetrics {
+  enum Phase {
+    RESOLVE, // resolving the properties
+    DECODE, // resolving and decoding the key
+    GENERATOR, // obtaining the generator, and with it the Mac
+    HMAC, // computing the code
+    FORMAT, // rendering the code and setting the output variables
+    VERIFY; // checking the expected value, and replay protection
+
+    final String label = name().toLowerCase();
+  }
+
+  enum Outcome {
+    SUCCESS,
+    MISMATCH,
+    REPLAY,
+    LOCKED,
+    EXCEPTION;
+
+    final String label = name().toLowerCase();
+  }
+
+  private static final int BUCKETS = 40; // the last bucket holds everything from 2^39 ns, 9 min
+
+  static final CalloutMetrics DISABLED = new CalloutMetrics(false, 0L);
+
+  private final boolean enabled;
+  private final long intervalNanos;
+  private final AtomicLong nextSnapshot;
+  private final Histogram[] histograms = new Histogram[Phase.values().length];
+  private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+  private static final class Histogram {
+    final LongAdder[] buckets = new LongAdder[BUCKETS];
+    final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    Histogram() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      int bucket = 64 - Long.numberOfLeadingZeros(Math.max(nanos, 0L));
+      buckets[Math.min(bucket, BUCKETS - 1)].increment();
+      max.accumulate(nanos);
+    }
+
+    void appendTo(StringBuilder sb) {
+      long[] counts = new long[BUCKETS];
+      long total = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = buckets[i].sum();
+        total += counts[i];
+      }
+      sb.append(total)
+          .append('/')
+          .append(percentile(counts, total, 0.50))
+          .append('/')
+          .append(percentile(counts, total, 0.99))
+          .append('/')
+          .append(max.get());
+    }
+
+    // bucket i holds values below 2^i
+    private static long percentile(long[] counts, long total, double q) {
+      long rank = (long) Math.ceil(total * q);
+      long seen = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return (1L << i) - 1;
+        }
+      }
+      return 0L;
+    }
+  }
+
+  /**
+   * @param intervalSeconds how often {@link #snapshotDue} returns true, or 0 for never.
+   */
+  CalloutMetrics(boolean enabled, long intervalSeconds) {
+    this(enabled, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  CalloutMetrics(boolean enabled, long interval, TimeUnit unit) {
+    this.enabled = enabled;
+    this.intervalNanos = unit.toNanos(interval);
+    this.nextSnapshot = new AtomicLong(System.nanoTime() + intervalNanos);
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new Histogram();
+    }
+    for (int i = 0; i < outcomes.length; i++) {
+      outcomes[i] = new LongAdder();
+    }
+  }
+
+  /** Returns the time to pass to the first call to {@link #lap}. */
+  long start() {
+    return enabled ? System.nanoTime() : 0L;
+  }
+
+  /**
+   * Records the time since the mark as the duration of the phase, and returns the new mark.
+   */
+  long lap(Phase phase, long mark) {
+    if (!enabled) return 0L;
+    long now = System.nanoTime();
+    histograms[phase.ordinal()].record(now - mark);
+    return now;
+  }
+
+  void count(Outcome outcome) {
+    if (enabled) {
+      outcomes[outcome.ordinal()].increment();
+    }
+  }
+
+  /**
+   * True once per interval, for exactly one caller, if an interval is set. The first snapshot is
+   * due one interval after the policy was created.
+   */
+  boolean snapshotDue() {
+    if (!enabled || intervalNanos == 0L) return false;
+    long now = System.nanoTime();
+    long due = nextSnapshot.get();
+    return now - due >= 0 && nextSnapshot.compareAndSet(due, now + intervalNanos);
+  }
+
+  String snapshot() {
+    StringBuilder sb = new StringBuilder(256);
+    for (Outcome outcome : Outcome.values()) {
+      if (outcome.ordinal() > 0) sb.append(',');
+      sb.append(outcome.label).append('=').append(outcomes[outcome.ordinal()].sum());
+    }
+    for (Phase phase : Phase.values()) {
+      sb.append(';').append(phase.label).append('=');
+      histograms[phase.ordinal()].appendTo(sb);
+    }
+    return sb.toString();
+  }
+}
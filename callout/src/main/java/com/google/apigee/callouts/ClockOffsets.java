@@ -0,0 +1,160 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers, per key, the offset in time steps between the clock of the device and the clock of
+ * the message processor, as learned by a resync, so that later verifications can be centered on
+ * the step that the device is at. It also remembers the last step of the device for which a code
+ * was accepted, so that neither a verification nor a resync accepts a code for that step or an
+ * earlier one; without that, a captured pair of codes could be replayed as a resync for as long as
+ * its step is within resync-range.
+ *
+ * <p>The table has a fixed number of slots, allocated up front, split into stripes that each have
+ * their own lock. A key is identified by a 64-bit fingerprint. A key without an entry has an
+ * offset of zero and no last step. A key can use one of a few slots; if all of them hold entries
+ * for other keys, an entry with an offset of zero is overwritten if there is one, else the first,
+ * and either is counted as an eviction.
+ */
+final class ClockOffsets {
+  private static final int MAX_STRIPES = 64;
+  private static final int PROBES = 4;
+  static final int MAX_CAPACITY = 1 << 24;
+
+  private final long seed;
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final int slotMask;
+  private final LongAdder evictions = new LongAdder();
+
+  private static final class Stripe {
+    final long[] fingerprints; // 0 for a free slot
+    final int[] offsets;
+    final long[] lastSteps;
+
+    Stripe(int slots) {
+      fingerprints = new long[slots];
+      offsets = new int[slots];
+      lastSteps = new long[slots];
+    }
+  }
+
+  ClockOffsets(int capacity) {
+    if (capacity < PROBES || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException(
+          "offset-table-size must be between " + PROBES + " and " + MAX_CAPACITY);
+    }
+    int total = Integer.highestOneBit(capacity - 1) << 1; // next power of two
+    int stripeCount = Math.min(MAX_STRIPES, total / PROBES);
+    int slotsPerStripe = total / stripeCount;
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe(slotsPerStripe);
+    }
+    this.stripeMask = stripeCount - 1;
+    this.slotMask = slotsPerStripe - 1;
+    this.seed = new SecureRandom().nextLong();
+  }
+
+  private long fingerprint(byte[] key) {
+    long fp = ReplayGuard.fingerprint(seed, key);
+    return (fp == 0L) ? 1L : fp;
+  }
+
+  private Stripe stripeFor(long fp) {
+    return stripes[(int) (fp >>> 58) & stripeMask];
+  }
+
+  // Returns the slot of the key, or -1 if it has none. The caller holds the lock of the stripe.
+  private int find(Stripe stripe, long fp) {
+    for (int i = 0; i < PROBES; i++) {
+      int slot = ((int) fp + i) & slotMask;
+      if (stripe.fingerprints[slot] == fp) return slot;
+    }
+    return -1;
+  }
+
+  // Returns the slot of the key, claiming one if it has none. The caller holds the lock.
+  private int claim(Stripe stripe, long fp) {
+    int slot = find(stripe, fp);
+    if (slot >= 0) return slot;
+    int zero = -1;
+    for (int i = 0; i < PROBES; i++) {
+      int s = ((int) fp + i) & slotMask;
+      if (stripe.fingerprints[s] == 0L) {
+        slot = s;
+        break;
+      }
+      if (zero < 0 && stripe.offsets[s] == 0) zero = s;
+    }
+    if (slot < 0) {
+      slot = (zero >= 0) ? zero : ((int) fp & slotMask);
+      evictions.increment();
+    }
+    stripe.fingerprints[slot] = fp;
+    stripe.offsets[slot] = 0;
+    stripe.lastSteps[slot] = Long.MIN_VALUE;
+    return slot;
+  }
+
+  /** Returns the offset learned for the key, or zero if there is none. */
+  int get(byte[] key) {
+    long fp = fingerprint(key);
+    Stripe stripe = stripeFor(fp);
+    synchronized (stripe) {
+      int slot = find(stripe, fp);
+      return (slot < 0) ? 0 : stripe.offsets[slot];
+    }
+  }
+
+  /**
+   * Records that a code for the given step of the device was accepted for the key, unless one for
+   * that step or a later one already was. Returns false, and records nothing, in that case.
+   */
+  boolean accept(byte[] key, long deviceStep) {
+    long fp = fingerprint(key);
+    Stripe stripe = stripeFor(fp);
+    synchronized (stripe) {
+      int slot = claim(stripe, fp);
+      if (deviceStep <= stripe.lastSteps[slot]) return false;
+      stripe.lastSteps[slot] = deviceStep;
+      return true;
+    }
+  }
+
+  /**
+   * As {@link #accept}, for the second code of a resync, and stores the offset it found for the
+   * key, replacing any earlier one.
+   */
+  boolean resync(byte[] key, long deviceStep, int offset) {
+    long fp = fingerprint(key);
+    Stripe stripe = stripeFor(fp);
+    synchronized (stripe) {
+      int slot = claim(stripe, fp);
+      if (deviceStep <= stripe.lastSteps[slot]) return false;
+      stripe.lastSteps[slot] = deviceStep;
+      stripe.offsets[slot] = offset;
+      return true;
+    }
+  }
+
+  long getEvictions() {
+    return evictions.sum();
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds the time step that a device is at, from two consecutive codes it has shown, by searching
+ * a wide range of steps around the current one: the step that matches is one whose code is the
+ * first value, and whose next code is the second.
+ *
+ * <p>The range is split into chunks that are searched in parallel on a fork-join pool. Each chunk
+ * uses the generator of the worker thread, so that its Mac is reused, and computes the code for
+ * each step once. If several steps match, which for a range of a few hundred steps and 6-digit
+ * codes is very unlikely, the one nearest the current step wins.
+ */
+final class ClockResync {
+  static final int STEPS_PER_TASK = 64;
+  private static final long NONE = Long.MIN_VALUE;
+
+  private final String hashFunction;
+  private final int timeStep;
+  private final int codeDigits;
+  private final boolean builtinEngine;
+  private final boolean leadingZeros;
+  private final byte[] key;
+  private final long firstValue;
+  private final int firstLength;
+  private final long secondValue;
+  private final int secondLength;
+  private final long currentStep;
+
+  ClockResync(
+      String hashFunction,
+      int timeStep,
+      int codeDigits,
+      boolean builtinEngine,
+      boolean leadingZeros,
+      byte[] key,
+      String firstValue,
+      String secondValue,
+      long currentStep) {
+    this.hashFunction = hashFunction;
+    this.timeStep = timeStep;
+    this.codeDigits = codeDigits;
+    this.builtinEngine = builtinEngine;
+    this.leadingZeros = leadingZeros;
+    this.key = key;
+    this.firstValue = CodeFormat.parse(firstValue);
+    this.firstLength = firstValue.length();
+    this.secondValue = CodeFormat.parse(secondValue);
+    this.secondLength = secondValue.length();
+    this.currentStep = currentStep;
+  }
+
+  /**
+   * Returns the step of the second code, within rangeSteps of the current step, or null if no
+   * step matches. The pool may be null, to search on the calling thread.
+   */
+  Long find(ForkJoinPool pool, int rangeSteps) throws GeneralSecurityException {
+    if (firstValue < 0 || secondValue < 0) {
+      return null;
+    }
+    // the first code is for the step before the one the device is at
+    long from = currentStep - rangeSteps - 1;
+    long to = currentStep + rangeSteps;
+    long step =
+        (pool == null || rangeSteps * 2 <= STEPS_PER_TASK)
+            ? search(from, to)
+            : pool.invoke(new SearchTask(from, to));
+    return (step == NONE) ? null : step + 1;
+  }
+
+  // Searches the steps from (inclusive) to to (exclusive) for the first code.
+  private long search(long from, long to) throws GeneralSecurityException {
+    OtpGenerator totp =
+        OtpGenerator.forCurrentThread(hashFunction, timeStep, codeDigits, builtinEngine);
+    long best = NONE;
+    int code = totp.generateForCounter(key, from);
+    for (long step = from; step < to; step++) {
+      int next = totp.generateForCounter(key, step + 1);
+      if (CodeFormat.matches(firstValue, firstLength, code, codeDigits, leadingZeros)
+          && CodeFormat.matches(secondValue, secondLength, next, codeDigits, leadingZeros)) {
+        best = nearer(best, step);
+      }
+      code = next;
+    }
+    return best;
+  }
+
+  private long nearer(long a, long b) {
+    if (a == NONE) return b;
+    if (b == NONE) return a;
+    return (Math.abs(b + 1 - currentStep) < Math.abs(a + 1 - currentStep)) ? b : a;
+  }
+
+  private final class SearchTask extends RecursiveTask<Long> {
+    private final long from;
+    private final long to;
+
+    SearchTask(long from, long to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Long compute() {
+      if (to - from <= STEPS_PER_TASK) {
+        try {
+          return search(from, to);
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      long middle = from + (to - from) / 2;
+      SearchTask right = new SearchTask(middle, to);
+      right.fork();
+      long left = new SearchTask(from, middle).compute();
+      return nearer(left, right.join());
+    }
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+/**
+ * Renders codes as decimal digits, and compares codes with expected values, without format
+ * strings or intermediate objects.
+ *
+ * <p>A code is rendered with no leading zeros, unless leading zeros are wanted, in which case it is
+ * padded to the number of code digits. An expected value matches only if it is exactly the string
+ * the code renders to. The comparison takes the same time whatever the code is.
+ */
+final class CodeFormat {
+  static final int MAX_DIGITS = 10;
+  private static final long[] POWERS_OF_TEN = {
+    10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+  };
+
+  private static final ThreadLocal<char[]> buffers =
+      ThreadLocal.withInitial(() -> new char[MAX_DIGITS]);
+
+  private CodeFormat() {}
+
+  // The number of decimal digits in a non-negative int, computed without branching on it.
+  static int digitCount(int code) {
+    int count = 1;
+    for (long power : POWERS_OF_TEN) {
+      count += (int) (((power - 1) - code) >>> 63);
+    }
+    return count;
+  }
+
+  static int renderedLength(int code, int codeDigits, boolean leadingZeros) {
+    int length = digitCount(code);
+    return (leadingZeros && length < codeDigits) ? codeDigits : length;
+  }
+
+  /** Writes the code into buf, which must hold at least MAX_DIGITS chars; returns the length. */
+  static int render(int code, int codeDigits, boolean leadingZeros, char[] buf) {
+    int length = renderedLength(code, codeDigits, leadingZeros);
+    int v = code;
+    for (int i = length - 1; i >= 0; i--) {
+      buf[i] = (char) ('0' + (v % 10));
+      v /= 10;
+    }
+    return length;
+  }
+
+  static String format(int code, int codeDigits, boolean leadingZeros) {
+    char[] buf = buffers.get();
+    int length = render(code, codeDigits, leadingZeros, buf);
+    return new String(buf, 0, length);
+  }
+
+  /**
+   * Returns the value of a string of 1 to MAX_DIGITS decimal digits, or -1 if the string is
+   * anything else.
+   */
+  static long parse(CharSequence expected) {
+    int length = expected.length();
+    if (length == 0 || length > MAX_DIGITS) {
+      return -1L;
+    }
+    long value = 0L;
+    for (int i = 0; i < length; i++) {
+      char c = expected.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1L;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /** True if the expected value is exactly the string that the code renders to. */
+  static boolean matches(CharSequence expected, int code, int codeDigits, boolean leadingZeros) {
+    return matches(parse(expected), expected.length(), code, codeDigits, leadingZeros);
+  }
+
+  /**
+   * Like {@link #matches(CharSequence,int,int,boolean)}, for an expected value that has already
+   * been parsed, so that it can be checked against several codes.
+   */
+  static boolean matches(
+      long expectedValue, int expectedLength, int code, int codeDigits, boolean leadingZeros) {
+    int length = renderedLength(code, codeDigits, leadingZeros);
+    long difference = (expectedValue ^ code) | (expectedLength ^ length);
+    return difference == 0L;
+  }
+}
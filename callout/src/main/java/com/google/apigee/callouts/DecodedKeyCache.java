@@ -0,0 +1,221 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of decoded keys, mapping (decode-key mode, encoded key) to the decoded key
+ * bytes. The map is keyed by the encoded key as the caller passes it, so that a lookup costs no
+ * more than comparing strings.
+ *
+ * <p>The cache is split into segments, each an LRU map guarded by its own lock, so that the number
+ * of entries never exceeds the configured size. Entries also expire after a fixed time-to-live,
+ * and a background task removes them soon after they expire, whether or not they are looked up
+ * again. The bytes of an entry are zeroed when it leaves the cache, but only once no caller is
+ * still using them; callers must {@link Entry#release} every entry they obtain from {@link
+ * #acquire}.
+ */
+final class DecodedKeyCache {
+  private static final int SEGMENTS = 8;
+  // Encoded keys longer than this are decoded but never cached.
+  static final int MAX_ENCODED_KEY_LENGTH = 1024;
+  static final int MAX_ENTRIES = 1 << 24;
+  // Expired entries are removed at least this often.
+  private static final long MAX_SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Segment[] segments;
+  private final long ttlNanos;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  DecodedKeyCache(int maxEntries, long ttlSeconds) {
+    this(maxEntries, ttlSeconds, TimeUnit.SECONDS);
+  }
+
+  DecodedKeyCache(int maxEntries, long ttl, TimeUnit unit) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("key-cache-size must be positive");
+    }
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("key-cache-ttl must be positive");
+    }
+    int segmentCount = Math.min(SEGMENTS, maxEntries);
+    this.segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      // distribute the capacity so that the segments add up to exactly maxEntries
+      int capacity = maxEntries / segmentCount + ((i < maxEntries % segmentCount) ? 1 : 0);
+      segments[i] = new Segment(capacity);
+    }
+    this.ttlNanos = unit.toNanos(ttl);
+    long sweepInterval = Math.min(ttlNanos, MAX_SWEEP_INTERVAL_NANOS);
+    BackgroundTasks.scheduleWithFixedDelay(
+        this, c -> c.sweep(System.nanoTime()), sweepInterval, TimeUnit.NANOSECONDS);
+  }
+
+  static final class Entry {
+    private final byte[] key;
+    private final long expiry;
+    // one reference held by the cache itself, plus one per caller
+    private final AtomicInteger refs;
+
+    private Entry(byte[] key, long expiry, int refs) {
+      this.key = key;
+      this.expiry = expiry;
+      this.refs = new AtomicInteger(refs);
+    }
+
+    byte[] getKey() {
+      return key;
+    }
+
+    private boolean retain() {
+      for (; ; ) {
+        int r = refs.get();
+        if (r == 0) return false;
+        if (refs.compareAndSet(r, r + 1)) return true;
+      }
+    }
+
+    void release() {
+      if (refs.decrementAndGet() == 0) {
+        Arrays.fill(key, (byte) 0);
+      }
+    }
+  }
+
+  private static final class CacheKey {
+    private final String mode;
+    private final String encodedKey;
+
+    CacheKey(String mode, String encodedKey) {
+      this.mode = mode;
+      this.encodedKey = encodedKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CacheKey)) return false;
+      CacheKey other = (CacheKey) o;
+      return encodedKey.equals(other.encodedKey) && mode.equals(other.mode);
+    }
+
+    @Override
+    public int hashCode() {
+      return encodedKey.hashCode() * 31 + mode.hashCode();
+    }
+  }
+
+  private static final class Segment extends LinkedHashMap<CacheKey, Entry> {
+    private final int capacity;
+
+    Segment(int capacity) {
+      super(Math.min(capacity, 1024) * 2, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+      if (size() > capacity) {
+        eldest.getValue().release();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private Segment segmentFor(CacheKey cacheKey) {
+    int h = cacheKey.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % segments.length];
+  }
+
+  /**
+   * Returns the entry for the encoded key, decoding it with the given function if it is not
+   * present or has expired. The caller must release the returned entry.
+   */
+  Entry acquire(String mode, String encodedKey, Function<String, byte[]> decoder) {
+    if (encodedKey.length() > MAX_ENCODED_KEY_LENGTH) {
+      misses.increment();
+      return new Entry(decoder.apply(encodedKey), 0L, 1);
+    }
+    CacheKey cacheKey = new CacheKey(mode, encodedKey);
+    Segment segment = segmentFor(cacheKey);
+    long now = System.nanoTime();
+    synchronized (segment) {
+      Entry entry = segment.get(cacheKey);
+      if (entry != null) {
+        if (now - entry.expiry < 0 && entry.retain()) {
+          hits.increment();
+          return entry;
+        }
+        segment.remove(cacheKey);
+        entry.release();
+      }
+    }
+    misses.increment();
+    // decode outside of the lock
+    Entry entry = new Entry(decoder.apply(encodedKey), now + ttlNanos, 2);
+    synchronized (segment) {
+      Entry previous = segment.put(cacheKey, entry);
+      if (previous != null) {
+        previous.release();
+      }
+    }
+    return entry;
+  }
+
+  // Removes, and releases, the entries that have expired.
+  void sweep(long nowNanos) {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        Iterator<Entry> it = segment.values().iterator();
+        while (it.hasNext()) {
+          Entry entry = it.next();
+          if (nowNanos - entry.expiry >= 0) {
+            it.remove();
+            entry.release();
+          }
+        }
+      }
+    }
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,274 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.encoding.Base16;
+import com.google.apigee.encoding.Base32;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates new secrets for enrolling users, each with the otpauth URI that an authenticator app
+ * reads from a QR code. Secrets come from a {@link SecretGenerator}, one per thread.
+ *
+ * <p>Without a source, the policy generates one secret, for the label; or, if the key property is
+ * set, it uses that key, so that a user can be enrolled again with an existing secret. With a
+ * source, a variable that holds a JSON array of labels, it generates one secret per label, in a
+ * single JSON array. The code-digits, hash-function and time-step settings of TotpCallout go into
+ * the URI. If qr-format is set, the URI is also rendered as a QR code, by {@link QrCode} and
+ * {@link QrImage}, without any external service.
+ */
+public class EnrollmentCallout extends CalloutBase implements Execution {
+  static final int DEFAULT_SECRET_LENGTH = 20;
+  static final int MIN_SECRET_LENGTH = 10;
+  static final int MAX_SECRET_LENGTH = 64;
+  static final int DEFAULT_MAX_ITEMS = 10000;
+  static final int DEFAULT_QR_SCALE = 4;
+  static final int DEFAULT_QR_BORDER = 4;
+
+  private final TotpConfig config;
+  private final TotpConfig.Setting<Integer> secretLength;
+  private final TotpConfig.Setting<String> encodeKey;
+  private final TotpConfig.Setting<QrImage.Format> qrFormat;
+  private final TotpConfig.Setting<Integer> qrScale;
+  private final TotpConfig.Setting<Integer> qrBorder;
+  private final TotpConfig.Setting<QrCode.Ecc> qrEcc;
+  private final int maxItems;
+  private final boolean hasKey;
+
+  public EnrollmentCallout(Map properties) {
+    super(properties);
+    this.config = new TotpConfig(this::getPropertyTemplate);
+    this.secretLength =
+        new TotpConfig.Setting<Integer>(
+            "secret-length",
+            this::getPropertyTemplate,
+            DEFAULT_SECRET_LENGTH,
+            v -> TotpConfig.parseInteger("secret-length", v, MIN_SECRET_LENGTH, MAX_SECRET_LENGTH));
+    this.encodeKey =
+        new TotpConfig.Setting<String>(
+            "encode-key", this::getPropertyTemplate, "base32", EnrollmentCallout::parseEncodeKey);
+    this.qrFormat =
+        new TotpConfig.Setting<QrImage.Format>(
+            "qr-format", this::getPropertyTemplate, null, QrImage.Format::parse);
+    this.qrScale =
+        new TotpConfig.Setting<Integer>(
+            "qr-scale",
+            this::getPropertyTemplate,
+            DEFAULT_QR_SCALE,
+            v -> TotpConfig.parseInteger("qr-scale", v, 1, QrImage.MAX_SCALE));
+    this.qrBorder =
+        new TotpConfig.Setting<Integer>(
+            "qr-border",
+            this::getPropertyTemplate,
+            DEFAULT_QR_BORDER,
+            v -> TotpConfig.parseInteger("qr-border", v, 0, QrImage.MAX_BORDER));
+    this.qrEcc =
+        new TotpConfig.Setting<QrCode.Ecc>(
+            "qr-ecc", this::getPropertyTemplate, QrCode.Ecc.M, QrCode.Ecc::parse);
+    this.maxItems = createMaxItems();
+    this.hasKey = getPropertyTemplate("key") != null || getPropertyTemplate("key-ref") != null;
+  }
+
+  // An instance-level setting; it cannot refer to context variables.
+  private int createMaxItems() {
+    String value = (String) this.properties.get("max-items");
+    if (value == null || value.trim().equals("")) return DEFAULT_MAX_ITEMS;
+    return TotpConfig.parseInteger("max-items", value.trim(), 1, Integer.MAX_VALUE);
+  }
+
+  static String parseEncodeKey(String value) {
+    String v = value.toLowerCase();
+    if (v.equals("base16")) return "hex";
+    if (v.equals("base32") || v.equals("hex") || v.equals("base64") || v.equals("base64url")) {
+      return v;
+    }
+    throw new IllegalStateException("encode-key " + value + " is not supported");
+  }
+
+  static String encode(byte[] secret, String encoding) {
+    if (encoding.equals("hex")) return Base16.encode(secret);
+    if (encoding.equals("base64")) return Base64.getEncoder().encodeToString(secret);
+    if (encoding.equals("base64url")) return Base64.getUrlEncoder().encodeToString(secret);
+    return Base32.encode(secret);
+  }
+
+  private static String escape(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the otpauth URI for the secret, in the format of the Google Authenticator key URI.
+   * The issuer, if any, prefixes the label and is repeated as a parameter.
+   */
+  static String uri(
+      String label,
+      String issuer,
+      String base32Secret,
+      String hashFunction,
+      int codeDigits,
+      int timeStep) {
+    StringBuilder sb = new StringBuilder(128).append("otpauth://totp/");
+    if (issuer != null) {
+      sb.append(escape(issuer)).append(':');
+    }
+    sb.append(escape(label)).append("?secret=").append(base32Secret);
+    if (issuer != null) {
+      sb.append("&issuer=").append(escape(issuer));
+    }
+    // "HmacSHA1" becomes "SHA1"
+    sb.append("&algorithm=").append(hashFunction.substring(4));
+    sb.append("&digits=").append(codeDigits);
+    sb.append("&period=").append(timeStep);
+    return sb.toString();
+  }
+
+  /** The settings for one execution, resolved once for every secret it generates. */
+  private static final class Enrollment {
+    final String issuer;
+    final int length;
+    final String encoding;
+    final String hashFunction;
+    final int codeDigits;
+    final int timeStep;
+    final QrImage.Format qrFormat;
+    final int qrScale;
+    final int qrBorder;
+    final QrCode.Ecc qrEcc;
+    final SecretGenerator generator = SecretGenerator.forCurrentThread();
+
+    Enrollment(EnrollmentCallout callout, MessageContext c) throws Exception {
+      this.issuer = callout.getSimpleOptionalProperty("issuer", c);
+      this.length = callout.secretLength.get(c);
+      this.encoding = callout.encodeKey.get(c);
+      this.hashFunction = callout.config.hashFunction.get(c);
+      this.codeDigits = callout.config.codeDigits.get(c);
+      this.timeStep = callout.config.timeStep.get(c);
+      this.qrFormat = callout.qrFormat.get(c);
+      this.qrScale = callout.qrScale.get(c);
+      this.qrBorder = callout.qrBorder.get(c);
+      this.qrEcc = callout.qrEcc.get(c);
+    }
+
+    /** Returns the encoded secret, the URI, and the QR code if one was requested. */
+    String[] enroll(String label) {
+      byte[] secret = generator.next(length);
+      try {
+        return enroll(label, secret);
+      } finally {
+        Arrays.fill(secret, (byte) 0);
+      }
+    }
+
+    String[] enroll(String label, byte[] secret) {
+      String base32 = Base32.encode(secret);
+      String encoded = encoding.equals("base32") ? base32 : encode(secret, encoding);
+      String uri = uri(label, issuer, base32, hashFunction, codeDigits, timeStep);
+      return new String[] {encoded, uri, qr(uri)};
+    }
+
+    private String qr(String uri) {
+      if (qrFormat == null) return null;
+      QrCode code = QrCode.encode(uri.getBytes(StandardCharsets.UTF_8), qrEcc);
+      return QrImage.forCurrentThread().render(code, qrFormat, qrScale, qrBorder);
+    }
+  }
+
+  private List readLabels(String source, MessageContext msgCtxt) {
+    Object content = msgCtxt.getVariable(source);
+    if (content == null) {
+      throw new IllegalStateException("source variable " + source + " is not set");
+    }
+    Object parsed = Json.parse(content.toString(), maxItems);
+    if (!(parsed instanceof List)) {
+      throw new IllegalStateException("the labels must be a JSON array");
+    }
+    List labels = (List) parsed;
+    for (Object label : labels) {
+      if (!(label instanceof String) || ((String) label).isEmpty()) {
+        throw new IllegalStateException("each label must be a non-empty string");
+      }
+    }
+    return labels;
+  }
+
+  public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    try {
+      Enrollment enrollment = new Enrollment(this, msgCtxt);
+      String source = getSimpleOptionalProperty("source", msgCtxt);
+      if (source == null) {
+        String label = getSimpleRequiredProperty("label", msgCtxt);
+        String[] result;
+        if (hasKey) {
+          byte[] key = getDecodedKey(config, config.decodeKey.get(msgCtxt), msgCtxt);
+          try {
+            result = enrollment.enroll(label, key);
+          } finally {
+            Arrays.fill(key, (byte) 0);
+          }
+        } else {
+          result = enrollment.enroll(label);
+          msgCtxt.setVariable(varName("secret"), result[0]);
+        }
+        msgCtxt.setVariable(varName("uri"), result[1]);
+        if (result[2] != null) {
+          msgCtxt.setVariable(varName("qr"), result[2]);
+          msgCtxt.setVariable(varName("qr_content_type"), enrollment.qrFormat.contentType);
+        }
+        return ExecutionResult.SUCCESS;
+      }
+
+      List labels = readLabels(source, msgCtxt);
+      StringBuilder sb = new StringBuilder(2 + labels.size() * 192);
+      sb.append('[');
+      for (int i = 0; i < labels.size(); i++) {
+        String label = (String) labels.get(i);
+        String[] result = enrollment.enroll(label);
+        if (i > 0) sb.append(',');
+        sb.append("{\"label\":");
+        Json.appendString(sb, label);
+        sb.append(",\"secret\":");
+        Json.appendString(sb, result[0]);
+        sb.append(",\"uri\":");
+        Json.appendString(sb, result[1]);
+        if (result[2] != null) {
+          sb.append(",\"qr\":");
+          Json.appendString(sb, result[2]);
+        }
+        sb.append('}');
+      }
+      msgCtxt.setVariable(varName("enroll_batch"), sb.append(']').toString());
+      msgCtxt.setVariable(varName("batch_count"), Integer.toString(labels.size()));
+      return ExecutionResult.SUCCESS;
+    } catch (Exception e) {
+      setExceptionVariables(e, msgCtxt);
+      return ExecutionResult.ABORT;
+    }
+  }
+}
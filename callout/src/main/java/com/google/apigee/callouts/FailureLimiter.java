@@ -0,0 +1,207 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts failed verifications per key over a sliding window, so that a key can be locked once it
+ * has too many, before any HMAC is computed for it.
+ *
+ * <p>Every verification acquires an attempt before it computes an HMAC, and the attempt counts as
+ * a failure until the verification succeeds and resets the key. Checking the limit and counting
+ * the attempt are one compare-and-set, so concurrent requests for a key cannot together make more
+ * attempts than the limit allows.
+ *
+ * <p>The table has a fixed number of slots, allocated up front. Each slot is one long, holding a
+ * 16-bit tag from the fingerprint of the key, the index of the current window, and the failure
+ * counts for the current and the previous window; every update is a single compare-and-set, so
+ * there are no locks. The number of failures in the last window is estimated as the count for the
+ * current window plus the count for the previous one, weighted by how much of it is still inside
+ * the sliding window. A key can use one of a few slots. A new key takes a slot that is free, or
+ * whose failures have aged out of the window; if all of them hold recent failures for other keys,
+ * it takes the one with the fewest, so that a full table never refuses a key, and a flood of
+ * single failures for many keys evicts those first, rather than a key that is close to its limit.
+ */
+final class FailureLimiter {
+  enum Result {
+    ALLOWED,
+    LOCKED
+  }
+
+  private static final int PROBES = 8;
+  static final int MAX_FAILURES = 4095;
+  static final int MAX_CAPACITY = 1 << 24;
+
+  // tag (16) | window (24) | previous count (12) | current count (12)
+  private static final int COUNT_BITS = 12;
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+  private static final long WINDOW_MASK = (1L << 24) - 1;
+
+  private final long seed;
+  private final AtomicLongArray slots;
+  private final int slotMask;
+  private final int maxFailures;
+  private final long windowMillis;
+  private final LongAdder lockedOut = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  FailureLimiter(int maxFailures, long windowSeconds, int capacity) {
+    if (capacity < PROBES || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException(
+          "failure-table-size must be between " + PROBES + " and " + MAX_CAPACITY);
+    }
+    int total = Integer.highestOneBit(capacity - 1) << 1; // next power of two
+    this.slots = new AtomicLongArray(total);
+    this.slotMask = total - 1;
+    this.maxFailures = maxFailures;
+    this.windowMillis = windowSeconds * 1000L;
+    this.seed = new SecureRandom().nextLong();
+  }
+
+  private static int tagOf(long state) {
+    return (int) (state >>> 48);
+  }
+
+  private static long windowOf(long state) {
+    return (state >>> (2 * COUNT_BITS)) & WINDOW_MASK;
+  }
+
+  private static long previousOf(long state) {
+    return (state >>> COUNT_BITS) & COUNT_MASK;
+  }
+
+  private static long currentOf(long state) {
+    return state & COUNT_MASK;
+  }
+
+  private static long pack(int tag, long window, long previous, long current) {
+    return ((long) tag << 48)
+        | ((window & WINDOW_MASK) << (2 * COUNT_BITS))
+        | (previous << COUNT_BITS)
+        | current;
+  }
+
+  private static int tagFor(long fp) {
+    int tag = (int) (fp >>> 48);
+    return (tag == 0) ? 1 : tag;
+  }
+
+  /**
+   * Returns the estimated number of failures in the window that ends now, multiplied by the
+   * length of the window in milliseconds, so that the estimate is an integer.
+   */
+  private long scaledFailures(long state, long nowMillis) {
+    if (state == 0L) return 0L;
+    long window = nowMillis / windowMillis;
+    long age = (window - windowOf(state)) & WINDOW_MASK;
+    if (age > 1) return 0L;
+    long previous = (age == 0) ? previousOf(state) : currentOf(state);
+    long current = (age == 0) ? currentOf(state) : 0L;
+    long elapsed = nowMillis - window * windowMillis;
+    return current * windowMillis + previous * (windowMillis - elapsed);
+  }
+
+  private int findSlot(int home, int tag) {
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (home + i) & slotMask;
+      long state = slots.get(slot);
+      if (state != 0L && tagOf(state) == tag) return slot;
+    }
+    return -1;
+  }
+
+  /**
+   * Counts an attempt to verify a code for the key, unless the key has had at least the maximum
+   * number of failures in the window that ends now. The attempt is a failure until {@link #reset}
+   * clears it.
+   */
+  Result acquire(byte[] key, long nowMillis) {
+    long fp = ReplayGuard.fingerprint(seed, key);
+    int tag = tagFor(fp);
+    int home = (int) fp;
+    long window = nowMillis / windowMillis;
+    for (; ; ) {
+      int target = -1;
+      long targetState = 0L;
+      long targetFailures = Long.MAX_VALUE;
+      boolean found = false;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = (home + i) & slotMask;
+        long state = slots.get(slot);
+        if (state != 0L && tagOf(state) == tag) {
+          target = slot;
+          targetState = state;
+          found = true;
+          break;
+        }
+        // zero when free, or when its failures have aged out
+        long failures = scaledFailures(state, nowMillis);
+        if (failures < targetFailures) {
+          target = slot;
+          targetState = state;
+          targetFailures = failures;
+        }
+      }
+      long next;
+      if (found) {
+        if (scaledFailures(targetState, nowMillis) >= maxFailures * windowMillis) {
+          lockedOut.increment();
+          return Result.LOCKED;
+        }
+        long age = (window - windowOf(targetState)) & WINDOW_MASK;
+        if (age == 0) {
+          next = pack(tag, window, previousOf(targetState), currentOf(targetState) + 1);
+        } else if (age == 1) {
+          next = pack(tag, window, currentOf(targetState), 1L);
+        } else {
+          next = pack(tag, window, 0L, 1L);
+        }
+      } else {
+        next = pack(tag, window, 0L, 1L);
+      }
+      if (slots.compareAndSet(target, targetState, next)) {
+        if (!found && targetFailures > 0L) {
+          evictions.increment();
+        }
+        return Result.ALLOWED;
+      }
+      // another request changed the slot; start over
+    }
+  }
+
+  /** Forgets the failures of the key, after it has been verified. */
+  void reset(byte[] key) {
+    long fp = ReplayGuard.fingerprint(seed, key);
+    int tag = tagFor(fp);
+    for (; ; ) {
+      int slot = findSlot((int) fp, tag);
+      if (slot < 0) return;
+      long state = slots.get(slot);
+      if (tagOf(state) != tag || slots.compareAndSet(slot, state, 0L)) return;
+    }
+  }
+
+  long getLockedOut() {
+    return lockedOut.sum();
+  }
+
+  long getEvictions() {
+    return evictions.sum();
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+
+/**
+ * A clock set by the fake-time-millis or fake-time-seconds property, for testing. The property is
+ * parsed once, when the policy is created, unless it refers to context variables, in which case it
+ * is resolved and parsed on each request. A value that is not an integer means the current time,
+ * as it always has.
+ */
+final class FakeClock implements TotpClock {
+  private final PropertyTemplate template;
+  private final long millisPerUnit;
+  private final boolean fixed;
+  private final long fixedMillis;
+
+  FakeClock(PropertyTemplate template, long millisPerUnit) {
+    this.template = template;
+    this.millisPerUnit = millisPerUnit;
+    Long millis = template.isConstant() ? parse(template.getConstant()) : null;
+    this.fixed = (millis != null);
+    this.fixedMillis = fixed ? millis : 0L;
+  }
+
+  private Long parse(String value) {
+    try {
+      return Long.parseLong(value) * millisPerUnit;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public long currentTimeMillis(MessageContext msgCtxt) {
+    if (fixed) {
+      return fixedMillis;
+    }
+    Long millis = template.isConstant() ? null : parse(template.resolve(msgCtxt));
+    return (millis != null) ? millis : System.currentTimeMillis();
+  }
+}
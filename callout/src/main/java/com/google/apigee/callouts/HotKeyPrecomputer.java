@@ -0,0 +1,375 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Precomputes the codes of the keys that are used most often, so that verifying a code for one of
+ * those keys is a lookup rather than an HMAC.
+ *
+ * <p>Every lookup counts towards the hotness of its key, in a fixed-size table that keeps
+ * approximate counts for the most frequent keys: a key that collides with a slot held by another
+ * key decrements that key's count, and takes over the slot when the count reaches zero. A
+ * background task runs every second. It picks the keys with the highest counts, at most the
+ * configured number, computes the codes for their current and next time steps, and publishes the
+ * result as an immutable table. It then halves all counts, so that keys that are no longer used
+ * drop out. Codes for a step that has passed are never returned, so entries lapse at each step
+ * boundary, and are replaced by the next run.
+ *
+ * <p>A key is identified by its bytes together with the hash function, time step and digits, since
+ * all of these determine the code.
+ */
+final class HotKeyPrecomputer {
+  static final int MAX_HOT_KEYS = 4096;
+  private static final int MIN_COUNT = 2;
+  private static final int STRIPES = 16;
+  private static final int PROBES = 4;
+  private static final long REFRESH_INTERVAL_MILLIS = 1000L;
+
+  private final int maxHotKeys;
+  private final long seed;
+  private final Stripe[] stripes;
+  private final int slotMask;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private volatile Table published = Table.EMPTY;
+  // entries dropped by the previous refresh; zeroed by the next one, when no lookup can still
+  // be reading them
+  private List<Entry> retired = new ArrayList<Entry>();
+  private ScheduledFuture<?> task;
+
+  /** The identity of a key, and, once precomputed, its codes. */
+  static final class Entry {
+    final byte[] key;
+    final String algorithm;
+    final int timeStepSeconds;
+    final int codeDigits;
+    final long step;
+    final int code;
+    final int nextCode;
+    // lookups that this entry answered since the last refresh
+    final LongAdder uses = new LongAdder();
+
+    Entry(byte[] key, String algorithm, int timeStepSeconds, int codeDigits) {
+      this(key, algorithm, timeStepSeconds, codeDigits, Long.MIN_VALUE, -1, -1);
+    }
+
+    private Entry(
+        byte[] key,
+        String algorithm,
+        int timeStepSeconds,
+        int codeDigits,
+        long step,
+        int code,
+        int nextCode) {
+      this.key = key;
+      this.algorithm = algorithm;
+      this.timeStepSeconds = timeStepSeconds;
+      this.codeDigits = codeDigits;
+      this.step = step;
+      this.code = code;
+      this.nextCode = nextCode;
+    }
+
+    boolean matches(byte[] key, String algorithm, int timeStepSeconds, int codeDigits) {
+      return this.timeStepSeconds == timeStepSeconds
+          && this.codeDigits == codeDigits
+          && this.algorithm.equals(algorithm)
+          && MessageDigest.isEqual(this.key, key);
+    }
+  }
+
+  private static final class Stripe {
+    final long[] fingerprints;
+    final int[] counts;
+    final Entry[] entries;
+
+    Stripe(int slots) {
+      fingerprints = new long[slots];
+      counts = new int[slots];
+      entries = new Entry[slots];
+    }
+  }
+
+  // An open-addressing table, never modified once published.
+  private static final class Table {
+    static final Table EMPTY = new Table(new ArrayList<Entry>(), new long[0]);
+
+    final long[] fingerprints;
+    final Entry[] entries;
+    final int mask;
+    final int size;
+
+    Table(List<Entry> list, long[] listFingerprints) {
+      this.size = list.size();
+      int capacity = 1;
+      while (capacity < size * 2) capacity <<= 1;
+      this.fingerprints = new long[capacity];
+      this.entries = new Entry[capacity];
+      this.mask = capacity - 1;
+      for (int i = 0; i < list.size(); i++) {
+        int slot = (int) listFingerprints[i] & mask;
+        while (entries[slot] != null) slot = (slot + 1) & mask;
+        fingerprints[slot] = listFingerprints[i];
+        entries[slot] = list.get(i);
+      }
+    }
+
+    Entry get(long fp) {
+      for (int slot = (int) fp & mask; entries[slot] != null; slot = (slot + 1) & mask) {
+        if (fingerprints[slot] == fp) return entries[slot];
+      }
+      return null;
+    }
+  }
+
+  HotKeyPrecomputer(int maxHotKeys) {
+    if (maxHotKeys < 1 || maxHotKeys > MAX_HOT_KEYS) {
+      throw new IllegalArgumentException(
+          "precompute-hot-keys must be between 1 and " + MAX_HOT_KEYS);
+    }
+    this.maxHotKeys = maxHotKeys;
+    // track several times as many keys as are kept hot, so that the counts are meaningful
+    int total = Integer.highestOneBit(Math.max(maxHotKeys * 8, STRIPES * PROBES) - 1) << 1;
+    int slotsPerStripe = total / STRIPES;
+    this.stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(slotsPerStripe);
+    }
+    this.slotMask = slotsPerStripe - 1;
+    this.seed = new SecureRandom().nextLong();
+  }
+
+  /**
+   * Starts the background task, on the shared scheduler of {@link BackgroundTasks}. The task stops
+   * once this instance is no longer reachable.
+   */
+  synchronized void start() {
+    if (task != null) return;
+    task =
+        BackgroundTasks.scheduleAtFixedRate(
+            this,
+            p -> p.refresh(System.currentTimeMillis()),
+            REFRESH_INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  long fingerprint(byte[] key, String algorithm, int timeStepSeconds, int codeDigits) {
+    long h = seed ^ algorithm.hashCode();
+    h = h * 31 + timeStepSeconds;
+    h = h * 31 + codeDigits;
+    for (byte b : key) {
+      h ^= (b & 0xff);
+      h *= 0x100000001b3L;
+    }
+    // finalizer from MurmurHash3
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Returns the precomputed code for the key at the given step, or -1 if there is none. Either
+   * way, the lookup counts towards the hotness of the key.
+   */
+  int lookup(byte[] key, String algorithm, int timeStepSeconds, int codeDigits, long step) {
+    long fp = fingerprint(key, algorithm, timeStepSeconds, codeDigits);
+    Entry entry = published.get(fp);
+    if (entry != null && entry.matches(key, algorithm, timeStepSeconds, codeDigits)) {
+      if (step == entry.step || step == entry.step + 1) {
+        hits.increment();
+        entry.uses.increment();
+        return (step == entry.step) ? entry.code : entry.nextCode;
+      }
+    }
+    misses.increment();
+    record(fp, key, algorithm, timeStepSeconds, codeDigits);
+    return -1;
+  }
+
+  private void record(long fp, byte[] key, String algorithm, int timeStepSeconds, int codeDigits) {
+    Stripe stripe = stripes[(int) (fp >>> 32) & (STRIPES - 1)];
+    int home = (int) fp;
+    synchronized (stripe) {
+      int victim = -1;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = (home + i) & slotMask;
+        if (stripe.counts[slot] == 0) {
+          if (victim < 0) victim = slot;
+          continue;
+        }
+        if (stripe.fingerprints[slot] == fp
+            && stripe.entries[slot].matches(key, algorithm, timeStepSeconds, codeDigits)) {
+          stripe.counts[slot]++;
+          return;
+        }
+        if (victim < 0 || stripe.counts[slot] < stripe.counts[victim]) {
+          victim = slot;
+        }
+      }
+      if (stripe.counts[victim] > 0) {
+        // another key holds every slot; wear down the least used one
+        stripe.counts[victim]--;
+        if (stripe.counts[victim] > 0) return;
+      }
+      if (stripe.entries[victim] != null) {
+        Arrays.fill(stripe.entries[victim].key, (byte) 0);
+      }
+      stripe.fingerprints[victim] = fp;
+      stripe.counts[victim] = 1;
+      stripe.entries[victim] = new Entry(key.clone(), algorithm, timeStepSeconds, codeDigits);
+    }
+  }
+
+  private static final class Candidate {
+    final long fingerprint;
+    long count;
+    final Entry identity; // a copy, owned by the refresh
+
+    Candidate(long fingerprint, long count, Entry identity) {
+      this.fingerprint = fingerprint;
+      this.count = count;
+      this.identity = identity;
+    }
+  }
+
+  private static Entry copyOf(Entry entry) {
+    return new Entry(entry.key.clone(), entry.algorithm, entry.timeStepSeconds, entry.codeDigits);
+  }
+
+  /** Recomputes the hot set for the given time; called by the background task. */
+  synchronized void refresh(long nowMillis) {
+    for (Entry entry : retired) {
+      Arrays.fill(entry.key, (byte) 0);
+    }
+    retired = new ArrayList<Entry>();
+
+    // A key is counted in the tracking table when a lookup misses, and in its published entry
+    // when a lookup hits; the two counts are added.
+    Table previous = published;
+    Map<Long, Candidate> candidates = new HashMap<Long, Candidate>();
+    for (int i = 0; i < previous.entries.length; i++) {
+      Entry entry = previous.entries[i];
+      if (entry != null) {
+        long fp = previous.fingerprints[i];
+        candidates.put(fp, new Candidate(fp, entry.uses.sumThenReset(), copyOf(entry)));
+      }
+    }
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (int slot = 0; slot < stripe.counts.length; slot++) {
+          int count = stripe.counts[slot];
+          if (count > 0) {
+            Candidate candidate = candidates.get(stripe.fingerprints[slot]);
+            if (candidate != null) {
+              candidate.count += count;
+            } else if (count >= MIN_COUNT) {
+              long fp = stripe.fingerprints[slot];
+              candidates.put(fp, new Candidate(fp, count, copyOf(stripe.entries[slot])));
+            }
+          }
+          // age the counts, so that keys that are no longer used drop out
+          stripe.counts[slot] >>= 1;
+          if (stripe.counts[slot] == 0 && stripe.entries[slot] != null) {
+            Arrays.fill(stripe.entries[slot].key, (byte) 0);
+            stripe.entries[slot] = null;
+          }
+        }
+      }
+    }
+    List<Candidate> ranked = new ArrayList<Candidate>(candidates.values());
+    ranked.sort((a, b) -> Long.compare(b.count, a.count));
+
+    List<Entry> hot = new ArrayList<Entry>();
+    Set<Entry> kept = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+    long[] fingerprints = new long[Math.min(ranked.size(), maxHotKeys)];
+    for (Candidate candidate : ranked) {
+      Entry entry = null;
+      if (hot.size() < fingerprints.length && candidate.count >= MIN_COUNT) {
+        entry = precompute(candidate.identity, previous.get(candidate.fingerprint), nowMillis);
+      } else {
+        Arrays.fill(candidate.identity.key, (byte) 0);
+      }
+      if (entry != null) {
+        fingerprints[hot.size()] = candidate.fingerprint;
+        hot.add(entry);
+        kept.add(entry);
+      }
+    }
+    published = new Table(hot, Arrays.copyOf(fingerprints, hot.size()));
+    for (Entry entry : previous.entries) {
+      if (entry != null && !kept.contains(entry)) {
+        retired.add(entry);
+      }
+    }
+  }
+
+  // Reuses the previous entry if it is for the same key and step, else computes a new one.
+  private static Entry precompute(Entry identity, Entry previous, long nowMillis) {
+    long step = nowMillis / (identity.timeStepSeconds * 1000L);
+    if (previous != null
+        && previous.step == step
+        && previous.matches(
+            identity.key, identity.algorithm, identity.timeStepSeconds, identity.codeDigits)) {
+      Arrays.fill(identity.key, (byte) 0);
+      return previous;
+    }
+    try {
+      OtpGenerator totp =
+          OtpGenerator.forCurrentThread(
+              identity.algorithm, identity.timeStepSeconds, identity.codeDigits);
+      return new Entry(
+          identity.key,
+          identity.algorithm,
+          identity.timeStepSeconds,
+          identity.codeDigits,
+          step,
+          totp.generateForCounter(identity.key, step),
+          totp.generateForCounter(identity.key, step + 1));
+    } catch (Exception e) {
+      Arrays.fill(identity.key, (byte) 0);
+      return null;
+    }
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  int getHotSetSize() {
+    return published.size;
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.MessageContext;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Generates and verifies counter-based codes, as described in RFC 4226 (HOTP). The counter for
+ * each user is kept in a {@link HotpCounterStore}, a local file that is shared by all the policies
+ * on the message processor that name it.
+ *
+ * <p>A code is accepted if it matches the counter expected for the user, or one of the next
+ * look-ahead counters; the counter then moves past the one that matched, so that no code is
+ * accepted twice. The settings of TotpCallout that describe the code apply, except the time step
+ * and the windows.
+ */
+public class HotpCallout extends CalloutBase implements Execution {
+  static final int DEFAULT_LOOK_AHEAD = 10;
+  static final int MAX_LOOK_AHEAD = 1000;
+
+  private final TotpConfig config;
+  private final TotpConfig.Setting<Integer> lookAhead;
+  private final HotpCounterStore store;
+
+  public HotpCallout(Map properties) {
+    super(properties);
+    this.config = new TotpConfig(this::getPropertyTemplate);
+    this.lookAhead =
+        new TotpConfig.Setting<Integer>(
+            "look-ahead",
+            this::getPropertyTemplate,
+            DEFAULT_LOOK_AHEAD,
+            v -> TotpConfig.parseInteger("look-ahead", v, 0, MAX_LOOK_AHEAD));
+    this.store = createStore();
+  }
+
+  // The counter file is opened, and created if necessary, when the callout is created; it cannot
+  // refer to context variables.
+  private HotpCounterStore createStore() {
+    String file = (String) this.properties.get("counter-file");
+    if (file == null || file.trim().equals("")) {
+      throw new IllegalStateException("counter-file must be set");
+    }
+    int slots = HotpCounterStore.DEFAULT_SLOTS;
+    String size = (String) this.properties.get("counter-slots");
+    if (size != null && !size.trim().equals("")) {
+      slots =
+          TotpConfig.parseInteger(
+              "counter-slots",
+              size.trim(),
+              HotpCounterStore.MIN_SLOTS,
+              HotpCounterStore.MAX_SLOTS);
+    }
+    return HotpCounterStore.open(Paths.get(file.trim()), slots);
+  }
+
+  /**
+   * Checks the expected value against the codes for the counter and the look-ahead counters after
+   * it, in order. Returns the counter that matches, or -1 if none does. All candidates use the
+   * same generator, so the Mac is initialized at most once.
+   */
+  static long findMatchingCounter(
+      String expectedValue,
+      OtpGenerator hotp,
+      byte[] key,
+      long counter,
+      int lookAhead,
+      boolean leadingZeros)
+      throws Exception {
+    final long expected = CodeFormat.parse(expectedValue);
+    if (expected < 0) {
+      return -1L;
+    }
+    final int expectedLength = expectedValue.length();
+    final int codeDigits = hotp.getCodeDigits();
+    for (long candidate = counter; candidate <= counter + lookAhead; candidate++) {
+      int code = hotp.generateForCounter(key, candidate);
+      if (CodeFormat.matches(expected, expectedLength, code, codeDigits, leadingZeros)) {
+        return candidate;
+      }
+    }
+    return -1L;
+  }
+
+  public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    byte[] key = null;
+    try {
+      final int codeDigits = config.codeDigits.get(msgCtxt);
+      final KeyEncoding keyEncoding = config.decodeKey.get(msgCtxt);
+      final String hashAlgorithm = config.hashFunction.get(msgCtxt);
+      final boolean builtinEngine = config.builtinEngine.get(msgCtxt);
+      final boolean leadingZeros = config.leadingZeros.get(msgCtxt);
+      final int lookAheadCounters = lookAhead.get(msgCtxt);
+      final String userId = getSimpleRequiredProperty("user-id", msgCtxt);
+      final String expectedValue = getSimpleOptionalProperty("expected-value", msgCtxt);
+      key = getDecodedKey(config, keyEncoding, msgCtxt);
+
+      msgCtxt.setVariable(varName("hashfunction"), hashAlgorithm);
+      // The time step does not apply; the default lets this share a generator with TotpCallout.
+      final OtpGenerator hotp =
+          OtpGenerator.forCurrentThread(
+              hashAlgorithm, TotpConfig.DEFAULT_TIME_STEP_SECONDS, codeDigits, builtinEngine);
+      // Only a verified code claims a slot, so codes for unknown users cannot fill the store.
+      int slot = store.findSlot(userId);
+
+      if (expectedValue == null) {
+        long counter = (slot < 0) ? 0L : store.getCounter(slot);
+        int code = hotp.generateForCounter(key, counter);
+        msgCtxt.setVariable(varName("counter"), Long.toString(counter));
+        msgCtxt.setVariable(varName("code"), CodeFormat.format(code, codeDigits, leadingZeros));
+        return ExecutionResult.SUCCESS;
+      }
+
+      for (; ; ) {
+        long counter = (slot < 0) ? 0L : store.getCounter(slot);
+        long matched =
+            findMatchingCounter(expectedValue, hotp, key, counter, lookAheadCounters, leadingZeros);
+        if (matched < 0) {
+          msgCtxt.setVariable(varName("counter"), Long.toString(counter));
+          msgCtxt.setVariable(varName("error"), "HOTP mismatch");
+          msgCtxt.setVariable("fault.name", "totp_mismatch");
+          return ExecutionResult.ABORT;
+        }
+        if (slot < 0) {
+          slot = store.slotFor(userId);
+        }
+        if (store.compareAndSetCounter(slot, counter, matched + 1)) {
+          msgCtxt.setVariable(varName("counter"), Long.toString(matched + 1));
+          msgCtxt.setVariable(varName("offset"), Long.toString(matched - counter));
+          return ExecutionResult.SUCCESS;
+        }
+        // Another request for this user moved the counter. Search again from where it is now;
+        // if that request accepted this same code, it no longer matches.
+      }
+    } catch (Exception e) {
+      setExceptionVariables(e, msgCtxt);
+      return ExecutionResult.ABORT;
+    } finally {
+      if (key != null) {
+        Arrays.fill(key, (byte) 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * HOTP counters, one per user, kept in a local file that is mapped into memory.
+ *
+ * <p>The file is a 16-byte header followed by a fixed number of 16-byte slots. A slot holds the
+ * fingerprint of a user ID, which is the first 8 bytes of its SHA-256 digest, and the next counter
+ * value expected for that user. A user's slot is found by open addressing from the fingerprint,
+ * and claimed when the user's counter first advances; slots are never released, so a user with no
+ * slot has the counter 0, and looking one up does not claim it. A fingerprint of zero marks a free
+ * slot.
+ *
+ * <p>Fingerprints and counters are read and updated under striped locks, one per group of slots,
+ * so verifications for different users rarely contend, and two verifications for the same user
+ * cannot both advance its counter from the same value. The counters are written to the page cache
+ * as they change, so they survive a restart of the process; they reach the disk when the
+ * operating system writes the pages back.
+ *
+ * <p>Every callout that names the same file shares one instance, and with it one mapping.
+ */
+final class HotpCounterStore {
+  static final int DEFAULT_SLOTS = 65536;
+  static final int MIN_SLOTS = 16;
+  static final int MAX_SLOTS = 1 << 26; // 1 GiB
+  private static final int MAGIC = 0x484f5450; // "HOTP"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOT_SIZE = 16;
+  private static final int MAX_PROBES = 32;
+  private static final int LOCK_STRIPES = 64;
+
+  private static final ConcurrentMap<Path, HotpCounterStore> stores =
+      new ConcurrentHashMap<Path, HotpCounterStore>();
+
+  private static final ThreadLocal<MessageDigest> digests =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+              throw new IllegalStateException(e);
+            }
+          });
+
+  private final Path path;
+  private final MappedByteBuffer buffer;
+  private final int slots;
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  /**
+   * Returns the store for the file, creating the file with the given number of slots if it does
+   * not exist. The slot count of an existing file is kept.
+   */
+  static HotpCounterStore open(Path path, int slots) {
+    return stores.computeIfAbsent(
+        path.toAbsolutePath().normalize(),
+        p -> {
+          try {
+            return new HotpCounterStore(p, slots);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+  }
+
+  private HotpCounterStore(Path path, int requestedSlots) throws IOException {
+    this.path = path;
+    try (FileChannel channel =
+            FileChannel.open(
+                path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        FileLock lock = channel.lock()) {
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.order(ByteOrder.BIG_ENDIAN);
+      int byteOrder = (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) ? 0 : 1;
+      if (header.getInt(0) == 0) {
+        // a new file, or one whose header was never written
+        this.slots = requestedSlots;
+        this.buffer = map(channel, slots);
+        header.putInt(4, VERSION).putInt(8, slots).putInt(12, byteOrder);
+        header.force();
+        header.putInt(0, MAGIC);
+        header.force();
+      } else {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+          throw new IllegalStateException(path + " is not a HOTP counter file");
+        }
+        if (header.getInt(12) != byteOrder) {
+          throw new IllegalStateException(path + " was written with a different byte order");
+        }
+        this.slots = header.getInt(8);
+        if (slots < MIN_SLOTS
+            || slots > MAX_SLOTS
+            || channel.size() < HEADER_SIZE + (long) slots * SLOT_SIZE) {
+          throw new IllegalStateException(path + " is truncated or corrupt");
+        }
+        this.buffer = map(channel, slots);
+      }
+    }
+    buffer.order(ByteOrder.nativeOrder());
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  // The mapping covers the slots only. It starts 16 bytes into a page, so every fingerprint and
+  // counter is 8-byte aligned.
+  private static MappedByteBuffer map(FileChannel channel, int slots) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) slots * SLOT_SIZE);
+  }
+
+  static long fingerprint(String userId) {
+    MessageDigest digest = digests.get();
+    byte[] hash = digest.digest(userId.getBytes(StandardCharsets.UTF_8));
+    long fp = 0L;
+    for (int i = 0; i < 8; i++) {
+      fp = (fp << 8) | (hash[i] & 0xff);
+    }
+    return (fp == 0L) ? 1L : fp;
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  int getSlots() {
+    return slots;
+  }
+
+  /** Returns the slot for the user, or -1 if the user has none. Never claims a slot. */
+  int findSlot(String userId) {
+    long fp = fingerprint(userId);
+    int start = (int) Long.remainderUnsigned(fp, slots);
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      long current = getLong(((start + probe) % slots) * SLOT_SIZE);
+      if (current == fp) return (start + probe) % slots;
+      if (current == 0L) return -1;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the slot for the user, claiming a free one if the user has none. Throws if the user
+   * has no slot and every slot near its fingerprint is taken.
+   */
+  int slotFor(String userId) {
+    long fp = fingerprint(userId);
+    int start = (int) Long.remainderUnsigned(fp, slots);
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = (start + probe) % slots;
+      int offset = slot * SLOT_SIZE;
+      long current = getLong(offset);
+      if (current == fp) return slot;
+      if (current == 0L) {
+        if (compareAndSet(offset, 0L, fp)) return slot;
+        // another thread claimed it just now, maybe for the same user
+        if (getLong(offset) == fp) return slot;
+      }
+    }
+    throw new IllegalStateException("the HOTP counter store " + path + " is full");
+  }
+
+  /** Returns the next counter value expected in the slot. */
+  long getCounter(int slot) {
+    return getLong(slot * SLOT_SIZE + 8);
+  }
+
+  /** Sets the counter in the slot to update, if it is still the expected value. */
+  boolean compareAndSetCounter(int slot, long expect, long update) {
+    return compareAndSet(slot * SLOT_SIZE + 8, expect, update);
+  }
+
+  private long getLong(int offset) {
+    synchronized (locks[(offset / SLOT_SIZE) % LOCK_STRIPES]) {
+      return buffer.getLong(offset);
+    }
+  }
+
+  private boolean compareAndSet(int offset, long expect, long update) {
+    synchronized (locks[(offset / SLOT_SIZE) % LOCK_STRIPES]) {
+      if (buffer.getLong(offset) != expect) return false;
+      buffer.putLong(offset, update);
+      return true;
+    }
+  }
+}
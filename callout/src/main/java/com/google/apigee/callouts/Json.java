@@ -0,0 +1,297 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small JSON parser, so that the callout does not need a JSON library on the gateway. It can
+ * also write strings, for output that is built by hand.
+ *
+ * <p>Objects become a LinkedHashMap, arrays an ArrayList, strings a String, true and false a
+ * Boolean, null null, and numbers a Long if they are integers that fit, else a Double.
+ *
+ * <p>The input may come from a request, so the parser is bounded: arrays and objects nest at most
+ * {@link #MAX_DEPTH} deep, and a caller can limit the number of elements of the top-level array,
+ * which is checked as they are read rather than once the whole document has been built.
+ */
+final class Json {
+  static final int MAX_DEPTH = 32;
+
+  private final CharSequence text;
+  private final int maxItems;
+  private int pos;
+  private int depth;
+
+  private Json(CharSequence text, int maxItems) {
+    this.text = text;
+    this.maxItems = maxItems;
+  }
+
+  static Object parse(CharSequence text) {
+    return parse(text, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Parses the text, failing as soon as the top-level value is an array with more than maxItems
+   * elements.
+   */
+  static Object parse(CharSequence text, int maxItems) {
+    Json parser = new Json(text, maxItems);
+    Object value = parser.readValue();
+    parser.skipWhitespace();
+    if (parser.pos != text.length()) {
+      throw parser.error();
+    }
+    return value;
+  }
+
+  /** Appends the string as a JSON string literal, with quotes and escapes. */
+  static void appendString(StringBuilder out, String s) {
+    out.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  private IllegalArgumentException error() {
+    return new IllegalArgumentException("invalid JSON at offset " + pos);
+  }
+
+  private void skipWhitespace() {
+    while (pos < text.length()) {
+      char c = text.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+      pos++;
+    }
+  }
+
+  private char peek() {
+    skipWhitespace();
+    if (pos >= text.length()) {
+      throw error();
+    }
+    return text.charAt(pos);
+  }
+
+  private void expect(char c) {
+    if (peek() != c) {
+      throw error();
+    }
+    pos++;
+  }
+
+  private Object readValue() {
+    char c = peek();
+    switch (c) {
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString();
+      case 't':
+        return readLiteral("true", Boolean.TRUE);
+      case 'f':
+        return readLiteral("false", Boolean.FALSE);
+      case 'n':
+        return readLiteral("null", null);
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          return readNumber();
+        }
+        throw error();
+    }
+  }
+
+  private Object readLiteral(String literal, Object value) {
+    int end = pos + literal.length();
+    if (end > text.length() || !literal.contentEquals(text.subSequence(pos, end))) {
+      throw error();
+    }
+    pos = end;
+    return value;
+  }
+
+  private void enter() {
+    if (++depth > MAX_DEPTH) {
+      throw error();
+    }
+  }
+
+  private Map<String, Object> readObject() {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    enter();
+    expect('{');
+    if (peek() == '}') {
+      pos++;
+      depth--;
+      return map;
+    }
+    for (; ; ) {
+      if (peek() != '"') {
+        throw error();
+      }
+      String name = readString();
+      expect(':');
+      map.put(name, readValue());
+      if (peek() == ',') {
+        pos++;
+        continue;
+      }
+      expect('}');
+      depth--;
+      return map;
+    }
+  }
+
+  private List<Object> readArray() {
+    List<Object> list = new ArrayList<Object>();
+    enter();
+    boolean topLevel = (depth == 1);
+    expect('[');
+    if (peek() == ']') {
+      pos++;
+      depth--;
+      return list;
+    }
+    for (; ; ) {
+      if (topLevel && list.size() == maxItems) {
+        throw new IllegalStateException("the batch has more items than max-items " + maxItems);
+      }
+      list.add(readValue());
+      if (peek() == ',') {
+        pos++;
+        continue;
+      }
+      expect(']');
+      depth--;
+      return list;
+    }
+  }
+
+  private String readString() {
+    expect('"');
+    StringBuilder sb = null;
+    int start = pos;
+    while (pos < text.length()) {
+      char c = text.charAt(pos);
+      if (c == '"') {
+        String s =
+            (sb == null)
+                ? text.subSequence(start, pos).toString()
+                : sb.append(text, start, pos).toString();
+        pos++;
+        return s;
+      }
+      if (c < 0x20) {
+        throw error();
+      }
+      if (c != '\\') {
+        pos++;
+        continue;
+      }
+      if (sb == null) {
+        sb = new StringBuilder();
+      }
+      sb.append(text, start, pos);
+      pos++;
+      if (pos >= text.length()) {
+        throw error();
+      }
+      char escaped = text.charAt(pos++);
+      switch (escaped) {
+        case '"':
+        case '\\':
+        case '/':
+          sb.append(escaped);
+          break;
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > text.length()) {
+            throw error();
+          }
+          int cp = 0;
+          for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(text.charAt(pos++), 16);
+            if (digit < 0) {
+              throw error();
+            }
+            cp = (cp << 4) | digit;
+          }
+          sb.append((char) cp);
+          break;
+        default:
+          pos--;
+          throw error();
+      }
+      start = pos;
+    }
+    throw error();
+  }
+
+  private Object readNumber() {
+    int start = pos;
+    boolean integral = true;
+    if (text.charAt(pos) == '-') pos++;
+    while (pos < text.length()) {
+      char c = text.charAt(pos);
+      if (c >= '0' && c <= '9') {
+        pos++;
+      } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+        integral = false;
+        pos++;
+      } else {
+        break;
+      }
+    }
+    String number = text.subSequence(start, pos).toString();
+    try {
+      if (integral && number.length() < 19) {
+        return Long.parseLong(number);
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      pos = start;
+      throw error();
+    }
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.encoding.Base16;
+import com.google.apigee.encoding.Base32;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/** The ways a key can be encoded, as selected by the decode-key property. */
+enum KeyEncoding {
+  UTF8 {
+    byte[] decode(String encoded) {
+      return encoded.getBytes(StandardCharsets.UTF_8);
+    }
+  },
+  BASE16 {
+    byte[] decode(String encoded) {
+      return Base16.decode(encoded);
+    }
+  },
+  BASE32 {
+    byte[] decode(String encoded) {
+      return Base32.decode(encoded);
+    }
+  },
+  BASE64 {
+    byte[] decode(String encoded) {
+      return Base64.getDecoder().decode(encoded);
+    }
+  },
+  BASE64URL {
+    byte[] decode(String encoded) {
+      return Base64.getUrlDecoder().decode(encoded);
+    }
+  };
+
+  abstract byte[] decode(String encoded);
+
+  static KeyEncoding parse(String value) {
+    String v = value.trim().toLowerCase();
+    if ("hex".equals(v) || "base16".equals(v)) return BASE16;
+    if ("base32".equals(v)) return BASE32;
+    if ("base64".equals(v)) return BASE64;
+    if ("base64url".equals(v)) return BASE64URL;
+    if ("none".equals(v) || "utf8".equals(v) || "utf-8".equals(v)) return UTF8;
+    throw new IllegalStateException("decode-key " + value + " is not supported");
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.encoding.Base16;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keys wrapped with AES-GCM under a key-encryption key. A wrapped key is a 12-byte nonce, then the
+ * key encrypted, then the 16-byte tag. The same format holds the records of a {@link SecretIndex},
+ * which also bind each record to a user ID as additional authenticated data.
+ */
+final class KeyWrapping {
+  static final int NONCE_SIZE = 12;
+  static final int TAG_SIZE = 16;
+  static final int OVERHEAD = NONCE_SIZE + TAG_SIZE;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private static final ThreadLocal<Cipher> ciphers =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+              throw new IllegalStateException(e);
+            }
+          });
+
+  private static final ThreadLocal<MessageDigest> digests =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+              throw new IllegalStateException(e);
+            }
+          });
+
+  private KeyWrapping() {}
+
+  /** Returns the AES key encoded in hex in the named property. */
+  static SecretKey aesKey(String propertyName, String hex) {
+    byte[] bytes = Base16.decode(hex);
+    if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+      throw new IllegalStateException(propertyName + " must be 16, 24 or 32 bytes");
+    }
+    return new SecretKeySpec(bytes, "AES");
+  }
+
+  static boolean parseKeyWrapping(String value) {
+    String v = value.toLowerCase();
+    if ("aes-gcm".equals(v)) return true;
+    if ("none".equals(v)) return false;
+    throw new IllegalStateException("key-wrapping " + value + " is not supported");
+  }
+
+  static byte[] wrap(byte[] plaintext, SecretKey kek, byte[] aad) throws GeneralSecurityException {
+    byte[] wrapped = new byte[NONCE_SIZE + plaintext.length + TAG_SIZE];
+    byte[] nonce = new byte[NONCE_SIZE];
+    random.nextBytes(nonce);
+    System.arraycopy(nonce, 0, wrapped, 0, NONCE_SIZE);
+    Cipher cipher = ciphers.get();
+    cipher.init(Cipher.ENCRYPT_MODE, kek, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+    if (aad != null) {
+      cipher.updateAAD(aad);
+    }
+    cipher.doFinal(plaintext, 0, plaintext.length, wrapped, NONCE_SIZE);
+    return wrapped;
+  }
+
+  /**
+   * Returns the key wrapped in the given bytes, or null if they do not authenticate under the
+   * key-encryption key and the additional data.
+   */
+  static byte[] unwrap(byte[] wrapped, int offset, int length, SecretKey kek, byte[] aad)
+      throws GeneralSecurityException {
+    if (length < OVERHEAD) return null;
+    Cipher cipher = ciphers.get();
+    cipher.init(
+        Cipher.DECRYPT_MODE, kek, new GCMParameterSpec(TAG_SIZE * 8, wrapped, offset, NONCE_SIZE));
+    if (aad != null) {
+      cipher.updateAAD(aad);
+    }
+    try {
+      return cipher.doFinal(wrapped, offset + NONCE_SIZE, length - NONCE_SIZE);
+    } catch (AEADBadTagException e) {
+      return null;
+    }
+  }
+
+  /** Unwraps a key with no additional data, and throws if it does not unwrap. */
+  static byte[] unwrap(byte[] wrapped, SecretKey kek) {
+    byte[] key;
+    try {
+      key = unwrap(wrapped, 0, wrapped.length, kek, null);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    if (key == null) {
+      throw new IllegalStateException("the key does not unwrap with key-encryption-key");
+    }
+    return key;
+  }
+
+  /**
+   * Returns the digest of the key-encryption key and the encoded wrapped key, which identifies the
+   * unwrapped key in a cache without holding the wrapped key itself.
+   */
+  static String cacheKey(SecretKey kek, String encodedWrappedKey) {
+    MessageDigest digest = digests.get();
+    byte[] kekBytes = kek.getEncoded();
+    digest.update(kekBytes);
+    Arrays.fill(kekBytes, (byte) 0);
+    digest.update(encodedWrappedKey.getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().encodeToString(digest.digest());
+  }
+}
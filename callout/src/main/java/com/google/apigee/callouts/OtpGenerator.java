@@ -0,0 +1,244 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Generates one-time passwords as described in RFC 4226 (HOTP) and RFC 6238 (TOTP), using a Mac
+ * that is created once and then reused.
+ *
+ * <p>Instances are not thread-safe. Obtain them via {@link #forCurrentThread}, which keeps a small
+ * set of generators per thread, keyed by (hash-function, time-step, code-digits). This avoids the
+ * provider lookup in Mac.getInstance() on every request, and also skips Mac.init() when
+ * consecutive requests on a thread use the same key. Keys are recognized by their SHA-256 digest,
+ * so a generator never holds a copy of a key after the call that passed it returns.
+ *
+ * <p>A generator can instead use the built-in HMAC engine, {@link PrecomputedHmac}. In that case
+ * it keeps the precomputed pad states for the keys it has seen most recently, and a code costs two
+ * compression-function calls.
+ */
+final class OtpGenerator {
+  private static final int MAX_GENERATORS_PER_THREAD = 16;
+  private static final int MAX_PRECOMPUTED_KEYS = 32;
+  private static final int[] DIGITS_POWER = {
+    1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+  };
+
+  private static final ThreadLocal<OtpGenerator[]> generators =
+      ThreadLocal.withInitial(() -> new OtpGenerator[MAX_GENERATORS_PER_THREAD]);
+
+  private final String algorithm;
+  private final int timeStepSeconds;
+  private final int codeDigits;
+  private final boolean builtinEngine;
+  private final Mac mac;
+  private final byte[] message = new byte[8];
+  private final byte[] hash;
+  private final MessageDigest keyDigest;
+  private final byte[] digest;
+  private byte[] currentKeyDigest;
+  private final Map<ByteBuffer, PrecomputedHmac> precomputed;
+
+  private OtpGenerator(
+      String algorithm, int timeStepSeconds, int codeDigits, boolean builtinEngine)
+      throws NoSuchAlgorithmException {
+    if (codeDigits < 6 || codeDigits > 10) {
+      throw new IllegalArgumentException("code-digits must be between 6 and 10");
+    }
+    if (timeStepSeconds <= 0) {
+      throw new IllegalArgumentException("time-step must be positive");
+    }
+    this.algorithm = algorithm;
+    this.timeStepSeconds = timeStepSeconds;
+    this.codeDigits = codeDigits;
+    this.builtinEngine = builtinEngine;
+    this.keyDigest = MessageDigest.getInstance("SHA-256");
+    this.digest = new byte[keyDigest.getDigestLength()];
+    if (builtinEngine) {
+      if (!PrecomputedHmac.supports(algorithm)) {
+        throw new NoSuchAlgorithmException("no built-in engine for " + algorithm);
+      }
+      this.mac = null;
+      this.hash = null;
+      this.precomputed =
+          new LinkedHashMap<ByteBuffer, PrecomputedHmac>(MAX_PRECOMPUTED_KEYS * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PrecomputedHmac> eldest) {
+              if (size() > MAX_PRECOMPUTED_KEYS) {
+                eldest.getValue().destroy();
+                return true;
+              }
+              return false;
+            }
+          };
+    } else {
+      this.mac = Mac.getInstance(algorithm);
+      this.hash = new byte[mac.getMacLength()];
+      this.precomputed = null;
+    }
+  }
+
+  /**
+   * Returns a generator for the given settings that belongs to the calling thread. The same
+   * instance is returned for subsequent calls with the same settings on the same thread.
+   */
+  static OtpGenerator forCurrentThread(String algorithm, int timeStepSeconds, int codeDigits)
+      throws NoSuchAlgorithmException {
+    return forCurrentThread(algorithm, timeStepSeconds, codeDigits, false);
+  }
+
+  /**
+   * Like {@link #forCurrentThread(String,int,int)}, optionally selecting the built-in HMAC engine
+   * rather than the JCA Mac.
+   */
+  static OtpGenerator forCurrentThread(
+      String algorithm, int timeStepSeconds, int codeDigits, boolean builtinEngine)
+      throws NoSuchAlgorithmException {
+    OtpGenerator[] slots = generators.get();
+    for (int i = 0; i < slots.length; i++) {
+      OtpGenerator g = slots[i];
+      if (g == null) {
+        g = new OtpGenerator(algorithm, timeStepSeconds, codeDigits, builtinEngine);
+        slots[i] = g;
+        return g;
+      }
+      if (g.matches(algorithm, timeStepSeconds, codeDigits, builtinEngine)) {
+        return g;
+      }
+    }
+    // All slots are taken by other settings. This happens only when the settings
+    // are driven by context variables; evict the oldest and keep going.
+    OtpGenerator g = new OtpGenerator(algorithm, timeStepSeconds, codeDigits, builtinEngine);
+    System.arraycopy(slots, 1, slots, 0, slots.length - 1);
+    slots[slots.length - 1] = g;
+    return g;
+  }
+
+  private boolean matches(
+      String algorithm, int timeStepSeconds, int codeDigits, boolean builtinEngine) {
+    return this.timeStepSeconds == timeStepSeconds
+        && this.codeDigits == codeDigits
+        && this.builtinEngine == builtinEngine
+        && this.algorithm.equals(algorithm);
+  }
+
+  String getAlgorithm() {
+    return algorithm;
+  }
+
+  int getTimeStepSeconds() {
+    return timeStepSeconds;
+  }
+
+  int getCodeDigits() {
+    return codeDigits;
+  }
+
+  long timeStepFor(Instant timestamp) {
+    return timeStepFor(timestamp.toEpochMilli());
+  }
+
+  long timeStepFor(long epochMillis) {
+    return epochMillis / (timeStepSeconds * 1000L);
+  }
+
+  /** Generates the TOTP for the time step that contains the given timestamp. */
+  int generate(byte[] key, Instant timestamp) throws InvalidKeyException {
+    return generateForCounter(key, timeStepFor(timestamp));
+  }
+
+  /** Generates the HOTP for the given counter value; for TOTP, the counter is the time step. */
+  int generateForCounter(byte[] key, long counter) throws InvalidKeyException {
+    if (builtinEngine) {
+      return reduce(precomputedFor(key).truncatedHmac(counter), codeDigits);
+    }
+    init(key);
+    for (int i = 7; i >= 0; i--) {
+      message[i] = (byte) counter;
+      counter >>>= 8;
+    }
+    mac.update(message);
+    try {
+      mac.doFinal(hash, 0);
+    } catch (ShortBufferException e) {
+      throw new IllegalStateException(e);
+    }
+    return truncate(hash, codeDigits);
+  }
+
+  private PrecomputedHmac precomputedFor(byte[] key) throws InvalidKeyException {
+    PrecomputedHmac hmac = precomputed.get(ByteBuffer.wrap(digestOf(key)));
+    if (hmac == null) {
+      if (key.length == 0) {
+        throw new InvalidKeyException("Empty key");
+      }
+      try {
+        hmac = PrecomputedHmac.forKey(algorithm, key);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      precomputed.put(ByteBuffer.wrap(digest.clone()), hmac);
+    }
+    return hmac;
+  }
+
+  private void init(byte[] key) throws InvalidKeyException {
+    byte[] d = digestOf(key);
+    if (currentKeyDigest != null && MessageDigest.isEqual(currentKeyDigest, d)) {
+      return;
+    }
+    currentKeyDigest = null;
+    mac.init(new SecretKeySpec(key, "RAW"));
+    currentKeyDigest = d.clone();
+  }
+
+  // Returns the digest of the key, in a buffer that the next call overwrites.
+  private byte[] digestOf(byte[] key) {
+    keyDigest.update(key);
+    try {
+      keyDigest.digest(digest, 0, digest.length);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    return digest;
+  }
+
+  /** Dynamic truncation as described in RFC 4226, section 5.3. */
+  static int truncate(byte[] hash, int codeDigits) {
+    int offset = hash[hash.length - 1] & 0x0f;
+    int binary =
+        ((hash[offset] & 0x7f) << 24)
+            | ((hash[offset + 1] & 0xff) << 16)
+            | ((hash[offset + 2] & 0xff) << 8)
+            | (hash[offset + 3] & 0xff);
+    return reduce(binary, codeDigits);
+  }
+
+  private static int reduce(int binary, int codeDigits) {
+    return (codeDigits >= 10) ? binary : binary % DIGITS_POWER[codeDigits];
+  }
+}
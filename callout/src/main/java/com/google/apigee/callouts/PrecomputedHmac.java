@@ -0,0 +1,436 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * HMAC-SHA1, HMAC-SHA256 and HMAC-SHA512 over a single 8-byte counter, with the inner and outer
+ * pad states computed once per key.
+ *
+ * <p>An HOTP/TOTP message is always 8 bytes, so after the ipad and opad blocks have been absorbed,
+ * the inner hash and the outer hash each fit into a single block. Each code then costs exactly two
+ * compression-function calls. The dynamic truncation from RFC 4226 reads directly from the final
+ * state words, so the digest is never serialized to bytes.
+ *
+ * <p>Instances are immutable and may be shared across threads. The message schedule is kept per
+ * thread, so computing a code does not allocate.
+ */
+abstract class PrecomputedHmac {
+
+  /** Returns the 31-bit value produced by the dynamic truncation of HMAC(key, counter). */
+  abstract int truncatedHmac(long counter);
+
+  /** Overwrites the pad states. The instance must not be used afterwards. */
+  abstract void destroy();
+
+  static boolean supports(String algorithm) {
+    return "HmacSHA1".equals(algorithm)
+        || "HmacSHA256".equals(algorithm)
+        || "HmacSHA512".equals(algorithm);
+  }
+
+  static PrecomputedHmac forKey(String algorithm, byte[] key) throws NoSuchAlgorithmException {
+    if ("HmacSHA1".equals(algorithm)) {
+      return new Sha1(key);
+    }
+    if ("HmacSHA256".equals(algorithm)) {
+      return new Sha256(key);
+    }
+    if ("HmacSHA512".equals(algorithm)) {
+      return new Sha512(key);
+    }
+    throw new NoSuchAlgorithmException("no built-in engine for " + algorithm);
+  }
+
+  // Per RFC 2104, keys longer than the block size are hashed first, and all keys are
+  // then zero-padded to the block size.
+  private static byte[] paddedKey(byte[] key, int blockSize, String digestAlgorithm) {
+    byte[] k = key;
+    if (key.length > blockSize) {
+      try {
+        k = MessageDigest.getInstance(digestAlgorithm).digest(key);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    byte[] padded = Arrays.copyOf(k, blockSize);
+    if (k != key) {
+      Arrays.fill(k, (byte) 0);
+    }
+    return padded;
+  }
+
+  private static int intAt(byte[] b, int i) {
+    return ((b[i] & 0xff) << 24)
+        | ((b[i + 1] & 0xff) << 16)
+        | ((b[i + 2] & 0xff) << 8)
+        | (b[i + 3] & 0xff);
+  }
+
+  private static long longAt(byte[] b, int i) {
+    return ((long) intAt(b, i) << 32) | (intAt(b, i + 4) & 0xffffffffL);
+  }
+
+  // Dynamic truncation over a digest held as big-endian 32-bit words in s[base..].
+  private static int truncate(int[] s, int base, int digestLength) {
+    int offset = s[base + ((digestLength - 1) >> 2)] & 0x0f;
+    int binary = 0;
+    for (int i = offset; i < offset + 4; i++) {
+      binary = (binary << 8) | ((s[base + (i >> 2)] >>> (24 - 8 * (i & 3))) & 0xff);
+    }
+    return binary & 0x7fffffff;
+  }
+
+  // Dynamic truncation over a digest held as big-endian 64-bit words in s[base..].
+  private static int truncate(long[] s, int base, int digestLength) {
+    int offset = (int) s[base + ((digestLength - 1) >> 3)] & 0x0f;
+    int binary = 0;
+    for (int i = offset; i < offset + 4; i++) {
+      binary = (binary << 8) | ((int) (s[base + (i >> 3)] >>> (56 - 8 * (i & 7))) & 0xff);
+    }
+    return binary & 0x7fffffff;
+  }
+
+  static final class Sha1 extends PrecomputedHmac {
+    private static final int BLOCK_SIZE = 64;
+    private static final int DIGEST_LENGTH = 20;
+    private static final int[] IV = {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0};
+    private static final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[85]);
+
+    private final int[] inner = new int[5];
+    private final int[] outer = new int[5];
+
+    Sha1(byte[] key) {
+      byte[] k = paddedKey(key, BLOCK_SIZE, "SHA-1");
+      int[] s = new int[85];
+      absorbPad(k, 0x36, inner, s);
+      absorbPad(k, 0x5c, outer, s);
+      Arrays.fill(k, (byte) 0);
+      Arrays.fill(s, 0);
+    }
+
+    private static void absorbPad(byte[] k, int pad, int[] state, int[] s) {
+      int p = (pad << 24) | (pad << 16) | (pad << 8) | pad;
+      for (int i = 0; i < 16; i++) {
+        s[i] = intAt(k, i * 4) ^ p;
+      }
+      System.arraycopy(IV, 0, s, 80, 5);
+      compress(s);
+      System.arraycopy(s, 80, state, 0, 5);
+    }
+
+    int truncatedHmac(long counter) {
+      int[] s = scratch.get(); // w occupies s[0..79], the state s[80..84]
+      System.arraycopy(inner, 0, s, 80, 5);
+      s[0] = (int) (counter >>> 32);
+      s[1] = (int) counter;
+      s[2] = 0x80000000;
+      Arrays.fill(s, 3, 15, 0);
+      s[15] = (BLOCK_SIZE + 8) * 8;
+      compress(s);
+      System.arraycopy(s, 80, s, 0, 5);
+      System.arraycopy(outer, 0, s, 80, 5);
+      s[5] = 0x80000000;
+      Arrays.fill(s, 6, 15, 0);
+      s[15] = (BLOCK_SIZE + DIGEST_LENGTH) * 8;
+      compress(s);
+      return truncate(s, 80, DIGEST_LENGTH);
+    }
+
+    // Compresses the block in s[0..15] into the state held in s[80..84].
+    private static void compress(int[] s) {
+      for (int t = 16; t < 80; t++) {
+        s[t] = Integer.rotateLeft(s[t - 3] ^ s[t - 8] ^ s[t - 14] ^ s[t - 16], 1);
+      }
+      int a = s[80];
+      int b = s[81];
+      int c = s[82];
+      int d = s[83];
+      int e = s[84];
+      for (int t = 0; t < 80; t++) {
+        int f;
+        int k;
+        if (t < 20) {
+          f = (b & c) | (~b & d);
+          k = 0x5a827999;
+        } else if (t < 40) {
+          f = b ^ c ^ d;
+          k = 0x6ed9eba1;
+        } else if (t < 60) {
+          f = (b & c) | (b & d) | (c & d);
+          k = 0x8f1bbcdc;
+        } else {
+          f = b ^ c ^ d;
+          k = 0xca62c1d6;
+        }
+        int temp = Integer.rotateLeft(a, 5) + f + e + k + s[t];
+        e = d;
+        d = c;
+        c = Integer.rotateLeft(b, 30);
+        b = a;
+        a = temp;
+      }
+      s[80] += a;
+      s[81] += b;
+      s[82] += c;
+      s[83] += d;
+      s[84] += e;
+    }
+
+    void destroy() {
+      Arrays.fill(inner, 0);
+      Arrays.fill(outer, 0);
+    }
+  }
+
+  static final class Sha256 extends PrecomputedHmac {
+    private static final int BLOCK_SIZE = 64;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int[] IV = {
+      0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+      0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+    private static final int[] K = {
+      0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+      0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+      0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f,
+      0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+      0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc,
+      0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+      0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116,
+      0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+      0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+      0xc67178f2
+    };
+    private static final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[72]);
+
+    private final int[] inner = new int[8];
+    private final int[] outer = new int[8];
+
+    Sha256(byte[] key) {
+      byte[] k = paddedKey(key, BLOCK_SIZE, "SHA-256");
+      int[] s = new int[72];
+      absorbPad(k, 0x36, inner, s);
+      absorbPad(k, 0x5c, outer, s);
+      Arrays.fill(k, (byte) 0);
+      Arrays.fill(s, 0);
+    }
+
+    private static void absorbPad(byte[] k, int pad, int[] state, int[] s) {
+      int p = (pad << 24) | (pad << 16) | (pad << 8) | pad;
+      for (int i = 0; i < 16; i++) {
+        s[i] = intAt(k, i * 4) ^ p;
+      }
+      System.arraycopy(IV, 0, s, 64, 8);
+      compress(s);
+      System.arraycopy(s, 64, state, 0, 8);
+    }
+
+    int truncatedHmac(long counter) {
+      int[] s = scratch.get(); // w occupies s[0..63], the state s[64..71]
+      System.arraycopy(inner, 0, s, 64, 8);
+      s[0] = (int) (counter >>> 32);
+      s[1] = (int) counter;
+      s[2] = 0x80000000;
+      Arrays.fill(s, 3, 15, 0);
+      s[15] = (BLOCK_SIZE + 8) * 8;
+      compress(s);
+      System.arraycopy(s, 64, s, 0, 8);
+      System.arraycopy(outer, 0, s, 64, 8);
+      s[8] = 0x80000000;
+      Arrays.fill(s, 9, 15, 0);
+      s[15] = (BLOCK_SIZE + DIGEST_LENGTH) * 8;
+      compress(s);
+      return truncate(s, 64, DIGEST_LENGTH);
+    }
+
+    // Compresses the block in s[0..15] into the state held in s[64..71].
+    private static void compress(int[] s) {
+      for (int t = 16; t < 64; t++) {
+        int x = s[t - 15];
+        int y = s[t - 2];
+        int s0 = Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+        int s1 = Integer.rotateRight(y, 17) ^ Integer.rotateRight(y, 19) ^ (y >>> 10);
+        s[t] = s[t - 16] + s0 + s[t - 7] + s1;
+      }
+      int a = s[64];
+      int b = s[65];
+      int c = s[66];
+      int d = s[67];
+      int e = s[68];
+      int f = s[69];
+      int g = s[70];
+      int h = s[71];
+      for (int t = 0; t < 64; t++) {
+        int sum1 =
+            Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+        int ch = (e & f) ^ (~e & g);
+        int temp1 = h + sum1 + ch + K[t] + s[t];
+        int sum0 =
+            Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+        int maj = (a & b) ^ (a & c) ^ (b & c);
+        int temp2 = sum0 + maj;
+        h = g;
+        g = f;
+        f = e;
+        e = d + temp1;
+        d = c;
+        c = b;
+        b = a;
+        a = temp1 + temp2;
+      }
+      s[64] += a;
+      s[65] += b;
+      s[66] += c;
+      s[67] += d;
+      s[68] += e;
+      s[69] += f;
+      s[70] += g;
+      s[71] += h;
+    }
+
+    void destroy() {
+      Arrays.fill(inner, 0);
+      Arrays.fill(outer, 0);
+    }
+  }
+
+  static final class Sha512 extends PrecomputedHmac {
+    private static final int BLOCK_SIZE = 128;
+    private static final int DIGEST_LENGTH = 64;
+    private static final long[] IV = {
+      0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+      0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+    private static final long[] K = {
+      0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+      0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+      0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+      0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+      0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+      0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+      0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+      0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+      0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+      0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+      0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+      0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+      0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+      0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+      0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+      0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+      0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+      0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+      0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+      0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+    };
+    private static final ThreadLocal<long[]> scratch =
+        ThreadLocal.withInitial(() -> new long[88]);
+
+    private final long[] inner = new long[8];
+    private final long[] outer = new long[8];
+
+    Sha512(byte[] key) {
+      byte[] k = paddedKey(key, BLOCK_SIZE, "SHA-512");
+      long[] s = new long[88];
+      absorbPad(k, 0x36, inner, s);
+      absorbPad(k, 0x5c, outer, s);
+      Arrays.fill(k, (byte) 0);
+      Arrays.fill(s, 0L);
+    }
+
+    private static void absorbPad(byte[] k, int pad, long[] state, long[] s) {
+      long p = pad & 0xffL;
+      p |= p << 8;
+      p |= p << 16;
+      p |= p << 32;
+      for (int i = 0; i < 16; i++) {
+        s[i] = longAt(k, i * 8) ^ p;
+      }
+      System.arraycopy(IV, 0, s, 80, 8);
+      compress(s);
+      System.arraycopy(s, 80, state, 0, 8);
+    }
+
+    int truncatedHmac(long counter) {
+      long[] s = scratch.get(); // w occupies s[0..79], the state s[80..87]
+      System.arraycopy(inner, 0, s, 80, 8);
+      s[0] = counter;
+      s[1] = 0x8000000000000000L;
+      Arrays.fill(s, 2, 15, 0L);
+      s[15] = (BLOCK_SIZE + 8) * 8;
+      compress(s);
+      System.arraycopy(s, 80, s, 0, 8);
+      System.arraycopy(outer, 0, s, 80, 8);
+      s[8] = 0x8000000000000000L;
+      Arrays.fill(s, 9, 15, 0L);
+      s[15] = (BLOCK_SIZE + DIGEST_LENGTH) * 8;
+      compress(s);
+      return truncate(s, 80, DIGEST_LENGTH);
+    }
+
+    // Compresses the block in s[0..15] into the state held in s[80..87].
+    private static void compress(long[] s) {
+      for (int t = 16; t < 80; t++) {
+        long x = s[t - 15];
+        long y = s[t - 2];
+        long s0 = Long.rotateRight(x, 1) ^ Long.rotateRight(x, 8) ^ (x >>> 7);
+        long s1 = Long.rotateRight(y, 19) ^ Long.rotateRight(y, 61) ^ (y >>> 6);
+        s[t] = s[t - 16] + s0 + s[t - 7] + s1;
+      }
+      long a = s[80];
+      long b = s[81];
+      long c = s[82];
+      long d = s[83];
+      long e = s[84];
+      long f = s[85];
+      long g = s[86];
+      long h = s[87];
+      for (int t = 0; t < 80; t++) {
+        long sum1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+        long ch = (e & f) ^ (~e & g);
+        long temp1 = h + sum1 + ch + K[t] + s[t];
+        long sum0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+        long maj = (a & b) ^ (a & c) ^ (b & c);
+        long temp2 = sum0 + maj;
+        h = g;
+        g = f;
+        f = e;
+        e = d + temp1;
+        d = c;
+        c = b;
+        b = a;
+        a = temp1 + temp2;
+      }
+      s[80] += a;
+      s[81] += b;
+      s[82] += c;
+      s[83] += d;
+      s[84] += e;
+      s[85] += f;
+      s[86] += g;
+      s[87] += h;
+    }
+
+    void destroy() {
+      Arrays.fill(inner, 0L);
+      Arrays.fill(outer, 0L);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A property value, parsed once into literal text and references to context variables.
+ *
+ * <p>A reference is a variable name between curly braces, eg {apiproxy.name}. The name must be
+ * non-empty, and must not contain curly braces or spaces; anything else is literal text. A
+ * reference to a variable that is not set resolves to the empty string.
+ */
+final class PropertyTemplate {
+  // literals.length == variables.length + 1
+  private final String[] literals;
+  private final String[] variables;
+  private final int literalLength;
+  // non-null when the template has no variable references
+  private final String constant;
+
+  private PropertyTemplate(String[] literals, String[] variables) {
+    this.literals = literals;
+    this.variables = variables;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+    this.constant = (variables.length == 0) ? literals[0] : null;
+  }
+
+  static PropertyTemplate compile(String spec) {
+    List<String> literals = new ArrayList<String>();
+    List<String> variables = new ArrayList<String>();
+    int length = spec.length();
+    int literalStart = 0;
+    int i = 0;
+    while (i < length) {
+      if (spec.charAt(i) == '{') {
+        int j = i + 1;
+        while (j < length) {
+          char c = spec.charAt(j);
+          if (c == '}' || c == '{' || c == ' ') break;
+          j++;
+        }
+        if (j < length && j > i + 1 && spec.charAt(j) == '}') {
+          literals.add(spec.substring(literalStart, i));
+          variables.add(spec.substring(i + 1, j));
+          i = j + 1;
+          literalStart = i;
+          continue;
+        }
+      }
+      i++;
+    }
+    literals.add(spec.substring(literalStart));
+    return new PropertyTemplate(
+        literals.toArray(new String[literals.size()]),
+        variables.toArray(new String[variables.size()]));
+  }
+
+  boolean isConstant() {
+    return constant != null;
+  }
+
+  /** Returns the literal value of a template that has no variable references, else null. */
+  String getConstant() {
+    return constant;
+  }
+
+  String resolve(MessageContext msgCtxt) {
+    if (constant != null) {
+      return constant;
+    }
+    if (variables.length == 1 && literalLength == 0) {
+      String v = (String) msgCtxt.getVariable(variables[0]);
+      return (v == null) ? "" : v;
+    }
+    String[] values = new String[variables.length];
+    int length = literalLength;
+    for (int i = 0; i < variables.length; i++) {
+      values[i] = (String) msgCtxt.getVariable(variables[i]);
+      if (values[i] != null) {
+        length += values[i].length();
+      }
+    }
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(literals[i]);
+      if (values[i] != null) {
+        sb.append(values[i]);
+      }
+    }
+    sb.append(literals[variables.length]);
+    return sb.toString();
+  }
+}
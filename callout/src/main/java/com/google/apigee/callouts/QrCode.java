@@ -0,0 +1,534 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A QR code encoder, for the otpauth URIs of enrollment; see ISO/IEC 18004. It encodes bytes in
+ * byte mode, in the smallest version (1 to 40) that holds them at the requested error correction
+ * level, and picks the mask with the lowest penalty.
+ *
+ * <p>The tables are static: the Galois field logarithms, the block structure of each version, and
+ * the Reed-Solomon divisors, which are computed once per degree. The function patterns of each
+ * version (finders, timing, alignment, version information) are drawn once, into a template that
+ * every code of that version copies, and its eight masks are computed once. The modules of a code
+ * are one byte each, 1 for dark.
+ */
+final class QrCode {
+  static final int MIN_VERSION = 1;
+  static final int MAX_VERSION = 40;
+
+  enum Ecc {
+    L(1),
+    M(0),
+    Q(3),
+    H(2);
+
+    final int formatBits;
+
+    Ecc(int formatBits) {
+      this.formatBits = formatBits;
+    }
+
+    static Ecc parse(String value) {
+      try {
+        return Ecc.valueOf(value.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("qr-ecc " + value + " is not supported");
+      }
+    }
+  }
+
+  // Indexed by Ecc ordinal, then version; index 0 is unused.
+  private static final byte[][] ECC_CODEWORDS_PER_BLOCK = {
+    {-1, 7, 10, 15, 20, 26, 18, 20, 24, 30, 18, 20, 24, 26, 30, 22, 24, 28, 30, 28, 28, 28, 28, 30,
+      30, 26, 28, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30},
+    {-1, 10, 16, 26, 18, 24, 16, 18, 22, 22, 26, 30, 22, 22, 24, 24, 28, 28, 26, 26, 26, 26, 28,
+      28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28},
+    {-1, 13, 22, 18, 26, 18, 24, 18, 22, 20, 24, 28, 26, 24, 20, 30, 24, 28, 28, 26, 30, 28, 30,
+      30, 30, 30, 28, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30},
+    {-1, 17, 28, 22, 16, 22, 28, 26, 26, 24, 28, 24, 28, 22, 24, 24, 30, 28, 28, 26, 28, 30, 24,
+      30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30}
+  };
+
+  private static final byte[][] NUM_ERROR_CORRECTION_BLOCKS = {
+    {-1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 4, 4, 4, 4, 4, 6, 6, 6, 6, 7, 8, 8, 9, 9, 10, 12, 12, 12, 13,
+      14, 15, 16, 17, 18, 19, 19, 20, 21, 22, 24, 25},
+    {-1, 1, 1, 1, 2, 2, 4, 4, 4, 5, 5, 5, 8, 9, 9, 10, 10, 11, 13, 14, 16, 17, 17, 18, 20, 21, 23,
+      25, 26, 28, 29, 31, 33, 35, 37, 38, 40, 43, 45, 47, 49},
+    {-1, 1, 1, 2, 2, 4, 4, 6, 6, 8, 8, 8, 10, 12, 16, 12, 17, 16, 18, 21, 20, 23, 23, 25, 27, 29,
+      34, 34, 35, 38, 40, 43, 45, 48, 51, 53, 56, 59, 62, 65, 68},
+    {-1, 1, 1, 2, 4, 4, 4, 5, 6, 8, 8, 11, 11, 16, 16, 18, 16, 19, 21, 25, 25, 25, 34, 30, 32, 35,
+      37, 40, 42, 45, 48, 51, 54, 57, 60, 63, 66, 70, 74, 77, 81}
+  };
+
+  // GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1
+  private static final int[] EXP = new int[512];
+  private static final int[] LOG = new int[256];
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= 0x100) x ^= 0x11d;
+    }
+    for (int i = 255; i < EXP.length; i++) {
+      EXP[i] = EXP[i - 255];
+    }
+  }
+
+  private static final AtomicReferenceArray<byte[]> divisors = new AtomicReferenceArray<byte[]>(31);
+  private static final AtomicReferenceArray<Template> templates =
+      new AtomicReferenceArray<Template>(MAX_VERSION + 1);
+
+  private static final int PENALTY_N1 = 3;
+  private static final int PENALTY_N2 = 3;
+  private static final int PENALTY_N3 = 40;
+  private static final int PENALTY_N4 = 10;
+
+  final int version;
+  final int size;
+  final Ecc ecc;
+  final int mask;
+  private final byte[] modules;
+
+  private QrCode(int version, Ecc ecc, int mask, byte[] modules) {
+    this.version = version;
+    this.size = version * 4 + 17;
+    this.ecc = ecc;
+    this.mask = mask;
+    this.modules = modules;
+  }
+
+  /** True if the module at column x and row y is dark. */
+  boolean isDark(int x, int y) {
+    return modules[y * size + x] != 0;
+  }
+
+  /** True if the module is part of a function pattern, rather than data. */
+  boolean isFunction(int x, int y) {
+    return template(version).isFunction[y * size + x];
+  }
+
+  static int multiply(int x, int y) {
+    return (x == 0 || y == 0) ? 0 : EXP[LOG[x] + LOG[y]];
+  }
+
+  static int getNumRawDataModules(int version) {
+    int result = (16 * version + 128) * version + 64;
+    if (version >= 2) {
+      int numAlign = version / 7 + 2;
+      result -= (25 * numAlign - 10) * numAlign - 55;
+      if (version >= 7) result -= 36;
+    }
+    return result;
+  }
+
+  static int getNumDataCodewords(int version, Ecc ecc) {
+    return getNumRawDataModules(version) / 8
+        - ECC_CODEWORDS_PER_BLOCK[ecc.ordinal()][version]
+            * NUM_ERROR_CORRECTION_BLOCKS[ecc.ordinal()][version];
+  }
+
+  static int getNumBlocks(int version, Ecc ecc) {
+    return NUM_ERROR_CORRECTION_BLOCKS[ecc.ordinal()][version];
+  }
+
+  static int getEccCodewordsPerBlock(int version, Ecc ecc) {
+    return ECC_CODEWORDS_PER_BLOCK[ecc.ordinal()][version];
+  }
+
+  /** Returns the largest number of bytes that the version holds, in byte mode. */
+  static int getByteCapacity(int version, Ecc ecc) {
+    int countBits = (version <= 9) ? 8 : 16;
+    return (getNumDataCodewords(version, ecc) * 8 - 4 - countBits) / 8;
+  }
+
+  /** Returns the Reed-Solomon divisor of the degree, coefficients from the highest power down. */
+  static byte[] divisor(int degree) {
+    byte[] result = divisors.get(degree);
+    if (result != null) return result;
+    result = new byte[degree];
+    result[degree - 1] = 1;
+    int root = 1;
+    for (int i = 0; i < degree; i++) {
+      for (int j = 0; j < degree; j++) {
+        int coefficient = multiply(result[j] & 0xff, root);
+        if (j + 1 < degree) coefficient ^= result[j + 1] & 0xff;
+        result[j] = (byte) coefficient;
+      }
+      root = multiply(root, 0x02);
+    }
+    divisors.set(degree, result);
+    return result;
+  }
+
+  /** Computes the error correction codewords for data[offset, offset + length) into ecc. */
+  static void remainder(byte[] data, int offset, int length, byte[] divisor, byte[] ecc) {
+    int degree = divisor.length;
+    Arrays.fill(ecc, 0, degree, (byte) 0);
+    for (int i = offset; i < offset + length; i++) {
+      int factor = (data[i] ^ ecc[0]) & 0xff;
+      System.arraycopy(ecc, 1, ecc, 0, degree - 1);
+      ecc[degree - 1] = 0;
+      if (factor == 0) continue;
+      int logFactor = LOG[factor];
+      for (int j = 0; j < degree; j++) {
+        int d = divisor[j] & 0xff;
+        if (d != 0) ecc[j] ^= (byte) EXP[LOG[d] + logFactor];
+      }
+    }
+  }
+
+  /** The function patterns of one version, and its eight masks, computed once. */
+  private static final class Template {
+    final byte[] modules; // the function patterns, with the format bits light
+    final boolean[] isFunction;
+    final byte[][] masks = new byte[8][]; // 1 where the mask inverts a data module
+
+    Template(int size, byte[] modules, boolean[] isFunction) {
+      this.modules = modules;
+      this.isFunction = isFunction;
+      for (int mask = 0; mask < 8; mask++) {
+        masks[mask] = new byte[size * size];
+        for (int y = 0; y < size; y++) {
+          for (int x = 0; x < size; x++) {
+            int i = y * size + x;
+            if (!isFunction[i] && masked(mask, x, y)) masks[mask][i] = 1;
+          }
+        }
+      }
+    }
+  }
+
+  static int[] getAlignmentPatternPositions(int version) {
+    if (version == 1) return new int[0];
+    int numAlign = version / 7 + 2;
+    int step = (version * 8 + numAlign * 3 + 5) / (numAlign * 4 - 4) * 2;
+    int[] result = new int[numAlign];
+    result[0] = 6;
+    for (int i = numAlign - 1, position = version * 4 + 10; i >= 1; i--, position -= step) {
+      result[i] = position;
+    }
+    return result;
+  }
+
+  private static Template template(int version) {
+    Template template = templates.get(version);
+    if (template != null) return template;
+    final int size = version * 4 + 17;
+    final byte[] modules = new byte[size * size];
+    final boolean[] isFunction = new boolean[size * size];
+    Painter painter =
+        (x, y, dark) -> {
+          modules[y * size + x] = (byte) (dark ? 1 : 0);
+          isFunction[y * size + x] = true;
+        };
+    for (int i = 0; i < size; i++) {
+      painter.set(6, i, i % 2 == 0);
+      painter.set(i, 6, i % 2 == 0);
+    }
+    int[][] finders = {{3, 3}, {size - 4, 3}, {3, size - 4}};
+    for (int[] finder : finders) {
+      for (int dy = -4; dy <= 4; dy++) {
+        for (int dx = -4; dx <= 4; dx++) {
+          int x = finder[0] + dx;
+          int y = finder[1] + dy;
+          if (x < 0 || x >= size || y < 0 || y >= size) continue;
+          int distance = Math.max(Math.abs(dx), Math.abs(dy));
+          painter.set(x, y, distance != 2 && distance != 4);
+        }
+      }
+    }
+    int[] positions = getAlignmentPatternPositions(version);
+    int numAlign = positions.length;
+    for (int i = 0; i < numAlign; i++) {
+      for (int j = 0; j < numAlign; j++) {
+        // not where a finder pattern is
+        if ((i == 0 && j == 0) || (i == 0 && j == numAlign - 1) || (i == numAlign - 1 && j == 0)) {
+          continue;
+        }
+        for (int dy = -2; dy <= 2; dy++) {
+          for (int dx = -2; dx <= 2; dx++) {
+            painter.set(
+                positions[i] + dx, positions[j] + dy, Math.max(Math.abs(dx), Math.abs(dy)) != 1);
+          }
+        }
+      }
+    }
+    // reserve the format areas; the bits are drawn for each mask
+    drawFormatBits(0, size, painter);
+    painter.set(8, size - 8, true); // the dark module
+    if (version >= 7) {
+      int remainder = version;
+      for (int i = 0; i < 12; i++) {
+        remainder = (remainder << 1) ^ ((remainder >>> 11) * 0x1f25);
+      }
+      int bits = version << 12 | remainder;
+      for (int i = 0; i < 18; i++) {
+        boolean bit = ((bits >>> i) & 1) != 0;
+        int a = size - 11 + i % 3;
+        int b = i / 3;
+        painter.set(a, b, bit);
+        painter.set(b, a, bit);
+      }
+    }
+    template = new Template(size, modules, isFunction);
+    templates.set(version, template);
+    return template;
+  }
+
+  private interface Painter {
+    void set(int x, int y, boolean dark);
+  }
+
+  static int formatBits(Ecc ecc, int mask) {
+    int data = ecc.formatBits << 3 | mask;
+    int remainder = data;
+    for (int i = 0; i < 10; i++) {
+      remainder = (remainder << 1) ^ ((remainder >>> 9) * 0x537);
+    }
+    return (data << 10 | remainder) ^ 0x5412;
+  }
+
+  private static void drawFormatBits(int bits, int size, Painter painter) {
+    for (int i = 0; i <= 5; i++) {
+      painter.set(8, i, ((bits >>> i) & 1) != 0);
+    }
+    painter.set(8, 7, ((bits >>> 6) & 1) != 0);
+    painter.set(8, 8, ((bits >>> 7) & 1) != 0);
+    painter.set(7, 8, ((bits >>> 8) & 1) != 0);
+    for (int i = 9; i < 15; i++) {
+      painter.set(14 - i, 8, ((bits >>> i) & 1) != 0);
+    }
+    for (int i = 0; i < 8; i++) {
+      painter.set(size - 1 - i, 8, ((bits >>> i) & 1) != 0);
+    }
+    for (int i = 8; i < 15; i++) {
+      painter.set(8, size - 15 + i, ((bits >>> i) & 1) != 0);
+    }
+  }
+
+  private static void drawFormat(Ecc ecc, int mask, int size, byte[] modules) {
+    drawFormatBits(
+        formatBits(ecc, mask), size, (x, y, dark) -> modules[y * size + x] = (byte) (dark ? 1 : 0));
+  }
+
+  private static boolean masked(int mask, int x, int y) {
+    switch (mask) {
+      case 0:
+        return (x + y) % 2 == 0;
+      case 1:
+        return y % 2 == 0;
+      case 2:
+        return x % 3 == 0;
+      case 3:
+        return (x + y) % 3 == 0;
+      case 4:
+        return (x / 3 + y / 2) % 2 == 0;
+      case 5:
+        return x * y % 2 + x * y % 3 == 0;
+      case 6:
+        return (x * y % 2 + x * y % 3) % 2 == 0;
+      default:
+        return ((x + y) % 2 + x * y % 3) % 2 == 0;
+    }
+  }
+
+  private static void applyMask(byte[] mask, byte[] modules) {
+    for (int i = 0; i < modules.length; i++) {
+      modules[i] ^= mask[i];
+    }
+  }
+
+  /** Encodes the bytes, in the smallest version that holds them. */
+  static QrCode encode(byte[] data, Ecc ecc) {
+    int version = MIN_VERSION;
+    while (getByteCapacity(version, ecc) < data.length) {
+      if (++version > MAX_VERSION) {
+        throw new IllegalStateException("the data is too long for a QR code");
+      }
+    }
+    return encode(data, ecc, version);
+  }
+
+  static QrCode encode(byte[] data, Ecc ecc, int version) {
+    // the bit stream: mode, count, data, terminator, padding
+    int dataCodewords = getNumDataCodewords(version, ecc);
+    byte[] codewords = new byte[dataCodewords];
+    int countBits = (version <= 9) ? 8 : 16;
+    BitWriter writer = new BitWriter(codewords);
+    writer.write(0x4, 4);
+    writer.write(data.length, countBits);
+    for (byte b : data) {
+      writer.write(b & 0xff, 8);
+    }
+    writer.write(0, Math.min(4, dataCodewords * 8 - writer.length));
+    writer.write(0, (8 - writer.length % 8) % 8);
+    for (int pad = 0xec; writer.length < dataCodewords * 8; pad ^= 0xec ^ 0x11) {
+      writer.write(pad, 8);
+    }
+
+    byte[] interleaved = addEccAndInterleave(codewords, version, ecc);
+
+    Template template = template(version);
+    int size = version * 4 + 17;
+    byte[] modules = template.modules.clone();
+    boolean[] isFunction = template.isFunction;
+    drawCodewords(interleaved, size, modules, isFunction);
+
+    int bestMask = 0;
+    int bestPenalty = Integer.MAX_VALUE;
+    for (int mask = 0; mask < 8; mask++) {
+      applyMask(template.masks[mask], modules);
+      drawFormat(ecc, mask, size, modules);
+      int penalty = penalty(size, modules);
+      if (penalty < bestPenalty) {
+        bestMask = mask;
+        bestPenalty = penalty;
+      }
+      applyMask(template.masks[mask], modules); // undoes it
+    }
+    applyMask(template.masks[bestMask], modules);
+    drawFormat(ecc, bestMask, size, modules);
+    return new QrCode(version, ecc, bestMask, modules);
+  }
+
+  private static final class BitWriter {
+    final byte[] out;
+    int length;
+
+    BitWriter(byte[] out) {
+      this.out = out;
+    }
+
+    void write(int value, int bits) {
+      for (int i = bits - 1; i >= 0; i--) {
+        if (((value >>> i) & 1) != 0) {
+          out[length >>> 3] |= (byte) (0x80 >>> (length & 7));
+        }
+        length++;
+      }
+    }
+  }
+
+  static byte[] addEccAndInterleave(byte[] data, int version, Ecc ecc) {
+    int numBlocks = getNumBlocks(version, ecc);
+    int blockEccLen = getEccCodewordsPerBlock(version, ecc);
+    int rawCodewords = getNumRawDataModules(version) / 8;
+    int numShortBlocks = numBlocks - rawCodewords % numBlocks;
+    int shortBlockLen = rawCodewords / numBlocks;
+    int shortDataLen = shortBlockLen - blockEccLen;
+    byte[] divisor = divisor(blockEccLen);
+
+    // the data and then the error correction codewords of each block, in the order of the blocks
+    int[] dataOffsets = new int[numBlocks];
+    byte[][] eccs = new byte[numBlocks][blockEccLen];
+    for (int i = 0, k = 0; i < numBlocks; i++) {
+      int length = shortDataLen + (i < numShortBlocks ? 0 : 1);
+      dataOffsets[i] = k;
+      remainder(data, k, length, divisor, eccs[i]);
+      k += length;
+    }
+    byte[] result = new byte[rawCodewords];
+    int n = 0;
+    for (int i = 0; i <= shortDataLen; i++) {
+      for (int j = 0; j < numBlocks; j++) {
+        // short blocks have one fewer data codeword
+        if (i < shortDataLen || j >= numShortBlocks) {
+          result[n++] = data[dataOffsets[j] + i];
+        }
+      }
+    }
+    for (int i = 0; i < blockEccLen; i++) {
+      for (int j = 0; j < numBlocks; j++) {
+        result[n++] = eccs[j][i];
+      }
+    }
+    return result;
+  }
+
+  private static void drawCodewords(byte[] data, int size, byte[] modules, boolean[] isFunction) {
+    int i = 0;
+    for (int right = size - 1; right >= 1; right -= 2) {
+      if (right == 6) right = 5; // skip the vertical timing pattern
+      boolean upward = ((right + 1) & 2) == 0;
+      for (int vertical = 0; vertical < size; vertical++) {
+        int y = upward ? size - 1 - vertical : vertical;
+        for (int j = 0; j < 2; j++) {
+          int x = right - j;
+          if (!isFunction[y * size + x] && i < data.length * 8) {
+            modules[y * size + x] = (byte) ((data[i >>> 3] >>> (7 - (i & 7))) & 1);
+            i++;
+          }
+        }
+      }
+    }
+  }
+
+  // The penalty rules of ISO/IEC 18004, 7.8.3.
+  private static int penalty(int size, byte[] modules) {
+    int result = 0;
+    int dark = 0;
+    for (int a = 0; a < size; a++) {
+      int rowRun = 0;
+      int columnRun = 0;
+      int rowPattern = 0;
+      int columnPattern = 0;
+      for (int b = 0; b < size; b++) {
+        byte row = modules[a * size + b];
+        byte column = modules[b * size + a];
+        dark += row;
+        if (b > 0 && row == modules[a * size + b - 1]) {
+          rowRun++;
+          if (rowRun == 5) result += PENALTY_N1;
+          else if (rowRun > 5) result++;
+        } else {
+          rowRun = 1;
+        }
+        if (b > 0 && column == modules[(b - 1) * size + a]) {
+          columnRun++;
+          if (columnRun == 5) result += PENALTY_N1;
+          else if (columnRun > 5) result++;
+        } else {
+          columnRun = 1;
+        }
+        // the last 11 modules, as bits, against 1:1:3:1:1 with four light modules on one side
+        rowPattern = ((rowPattern << 1) | row) & 0x7ff;
+        columnPattern = ((columnPattern << 1) | column) & 0x7ff;
+        if (b >= 10) {
+          if (rowPattern == 0x5d0 || rowPattern == 0x05d) result += PENALTY_N3;
+          if (columnPattern == 0x5d0 || columnPattern == 0x05d) result += PENALTY_N3;
+        }
+        if (a > 0 && b > 0) {
+          int c = modules[a * size + b];
+          if (c == modules[a * size + b - 1]
+              && c == modules[(a - 1) * size + b]
+              && c == modules[(a - 1) * size + b - 1]) {
+            result += PENALTY_N2;
+          }
+        }
+      }
+    }
+    int total = size * size;
+    int k = (int) ((Math.abs(dark * 20L - total * 10L) + total - 1) / total - 1);
+    return result + k * PENALTY_N4;
+  }
+}
@@ -0,0 +1,197 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Renders a {@link QrCode} as a PNG or SVG image. Each thread keeps its own Deflater, CRC and
+ * buffers, which grow to the largest image it has rendered and are then reused, so rendering an
+ * image allocates little beyond the result.
+ *
+ * <p>The PNG is a 1-bit grayscale image, with scale pixels per module and a light border of the
+ * given number of modules. The SVG draws each horizontal run of dark modules as one rectangle,
+ * in a view box of one unit per module.
+ */
+final class QrImage {
+  static final int MAX_SCALE = 32;
+  static final int MAX_BORDER = 16;
+
+  enum Format {
+    PNG("image/png"),
+    SVG("image/svg+xml");
+
+    final String contentType;
+
+    Format(String contentType) {
+      this.contentType = contentType;
+    }
+
+    /** Returns the format, or null for none. */
+    static Format parse(String value) {
+      String v = value.toLowerCase();
+      if (v.equals("png")) return PNG;
+      if (v.equals("svg")) return SVG;
+      if (v.equals("none")) return null;
+      throw new IllegalStateException("qr-format " + value + " is not supported");
+    }
+  }
+
+  private static final byte[] PNG_SIGNATURE = {
+    (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+  };
+
+  private static final ThreadLocal<QrImage> renderers = ThreadLocal.withInitial(QrImage::new);
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final CRC32 crc = new CRC32();
+  private final StringBuilder svg = new StringBuilder(4096);
+  private byte[] raw = new byte[0]; // the filtered scanlines
+  private byte[] out = new byte[0]; // the PNG being written
+  private int length;
+
+  private QrImage() {}
+
+  static QrImage forCurrentThread() {
+    return renderers.get();
+  }
+
+  /** Returns the image, base64-encoded for PNG. */
+  String render(QrCode code, Format format, int scale, int border) {
+    if (format == Format.SVG) return svg(code, border);
+    return Base64.getEncoder().encodeToString(png(code, scale, border));
+  }
+
+  String svg(QrCode code, int border) {
+    int dimension = code.size + border * 2;
+    svg.setLength(0);
+    svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" viewBox=\"0 0 ")
+        .append(dimension)
+        .append(' ')
+        .append(dimension)
+        .append("\" stroke=\"none\" shape-rendering=\"crispEdges\">")
+        .append("<rect width=\"100%\" height=\"100%\" fill=\"#ffffff\"/><path d=\"");
+    for (int y = 0; y < code.size; y++) {
+      int x = 0;
+      while (x < code.size) {
+        if (!code.isDark(x, y)) {
+          x++;
+          continue;
+        }
+        int start = x;
+        while (x < code.size && code.isDark(x, y)) x++;
+        svg.append('M')
+            .append(start + border)
+            .append(',')
+            .append(y + border)
+            .append('h')
+            .append(x - start)
+            .append("v1h-")
+            .append(x - start)
+            .append('z');
+      }
+    }
+    return svg.append("\" fill=\"#000000\"/></svg>").toString();
+  }
+
+  byte[] png(QrCode code, int scale, int border) {
+    int dimension = (code.size + border * 2) * scale;
+    int rowBytes = (dimension + 7) / 8;
+    int rawLength = (rowBytes + 1) * dimension;
+    if (raw.length < rawLength) raw = new byte[rawLength];
+    // light is 1 in grayscale; start with every row light, then clear the dark modules
+    for (int y = 0; y < dimension; y++) {
+      int row = y * (rowBytes + 1);
+      raw[row] = 0; // filter: none
+      Arrays.fill(raw, row + 1, row + 1 + rowBytes, (byte) 0xff);
+      int moduleY = y / scale - border;
+      if (moduleY < 0 || moduleY >= code.size) continue;
+      for (int moduleX = 0; moduleX < code.size; moduleX++) {
+        if (!code.isDark(moduleX, moduleY)) continue;
+        int from = (moduleX + border) * scale;
+        for (int px = from; px < from + scale; px++) {
+          raw[row + 1 + (px >>> 3)] &= (byte) ~(0x80 >>> (px & 7));
+        }
+      }
+    }
+
+    length = 0;
+    ensure(PNG_SIGNATURE.length + 25 + 12 + 12 + rawLength / 4 + 64);
+    System.arraycopy(PNG_SIGNATURE, 0, out, 0, PNG_SIGNATURE.length);
+    length = PNG_SIGNATURE.length;
+
+    int start = beginChunk("IHDR");
+    putInt(dimension);
+    putInt(dimension);
+    out[length++] = 1; // bit depth
+    out[length++] = 0; // grayscale
+    out[length++] = 0; // deflate
+    out[length++] = 0; // adaptive filtering
+    out[length++] = 0; // no interlace
+    endChunk(start);
+
+    start = beginChunk("IDAT");
+    deflater.reset();
+    deflater.setInput(raw, 0, rawLength);
+    deflater.finish();
+    while (!deflater.finished()) {
+      ensure(length + 4096);
+      length += deflater.deflate(out, length, out.length - length - 4);
+    }
+    endChunk(start);
+
+    start = beginChunk("IEND");
+    endChunk(start);
+    return Arrays.copyOf(out, length);
+  }
+
+  private void ensure(int capacity) {
+    if (out.length < capacity) out = Arrays.copyOf(out, Math.max(capacity, out.length * 2));
+  }
+
+  private void putInt(int value) {
+    ensure(length + 4);
+    out[length++] = (byte) (value >>> 24);
+    out[length++] = (byte) (value >>> 16);
+    out[length++] = (byte) (value >>> 8);
+    out[length++] = (byte) value;
+  }
+
+  // Reserves the length, writes the type, and returns where the type starts.
+  private int beginChunk(String type) {
+    ensure(length + 8);
+    length += 4;
+    int start = length;
+    for (int i = 0; i < 4; i++) {
+      out[length++] = (byte) type.charAt(i);
+    }
+    return start;
+  }
+
+  private void endChunk(int start) {
+    int dataLength = length - start - 4;
+    out[start - 4] = (byte) (dataLength >>> 24);
+    out[start - 3] = (byte) (dataLength >>> 16);
+    out[start - 2] = (byte) (dataLength >>> 8);
+    out[start - 1] = (byte) dataLength;
+    crc.reset();
+    crc.update(out, start, length - start);
+    putInt((int) crc.getValue());
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers which (key, time step) pairs have already been accepted, so that a code cannot be
+ * used twice.
+ *
+ * <p>The table has a fixed number of slots, allocated up front, split into stripes that each have
+ * their own lock. A key is identified by a 64-bit fingerprint, computed with a random seed so that
+ * fingerprints are not predictable from outside. Each (key, step) pair hashes to two buckets of
+ * {@link #BUCKET_SIZE} slots, and is recorded in whichever holds fewer live entries, so that the
+ * entries a key has for the steps of its window are spread over the table, and a bucket fills up
+ * only once the table as a whole is close to full. The table has twice as many slots as its
+ * nominal capacity. An entry expires once its time step can no longer be accepted, and its slot is
+ * then reused. If both buckets hold only live entries, the code cannot be recorded, and is refused
+ * rather than overwriting an entry that could then be replayed.
+ */
+final class ReplayGuard {
+  private static final int MAX_STRIPES = 64;
+  static final int BUCKET_SIZE = 16;
+  static final int MIN_CAPACITY = BUCKET_SIZE / 2;
+  private static final long EMPTY = Long.MIN_VALUE;
+  static final int MAX_CAPACITY = 1 << 24;
+
+  private final long seed;
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final int bucketMask;
+  private final LongAdder replays = new LongAdder();
+  private final LongAdder full = new LongAdder();
+
+  enum Result {
+    RECORDED,
+    REPLAYED,
+    FULL
+  }
+
+  private static final class Stripe {
+    final long[] fingerprints;
+    final long[] steps;
+
+    Stripe(int slots) {
+      fingerprints = new long[slots];
+      steps = new long[slots];
+      Arrays.fill(steps, EMPTY);
+    }
+  }
+
+  ReplayGuard(int capacity) {
+    if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException(
+          "replay-cache-size must be between " + MIN_CAPACITY + " and " + MAX_CAPACITY);
+    }
+    int total = Integer.highestOneBit(capacity - 1) << 2; // twice the next power of two
+    int buckets = total / BUCKET_SIZE;
+    int stripeCount = Math.min(MAX_STRIPES, buckets);
+    int bucketsPerStripe = buckets / stripeCount;
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe(bucketsPerStripe * BUCKET_SIZE);
+    }
+    this.stripeMask = stripeCount - 1;
+    this.bucketMask = bucketsPerStripe - 1;
+    this.seed = new SecureRandom().nextLong();
+  }
+
+  long fingerprint(byte[] key) {
+    return fingerprint(seed, key);
+  }
+
+  static long fingerprint(long seed, byte[] key) {
+    long h = seed;
+    for (byte b : key) {
+      h ^= (b & 0xff);
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  // finalizer from MurmurHash3
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Records that the code for the given step was accepted for the given key. Records nothing if
+   * it had been accepted already, or if there is no free slot for it.
+   *
+   * @param oldestLiveStep the oldest time step for which a code can currently be accepted;
+   *     entries for earlier steps have expired, and their slots can be reused.
+   */
+  Result checkAndRecord(byte[] key, long step, long oldestLiveStep) {
+    long fp = fingerprint(key);
+    long h = mix(fp ^ (step * 0x9e3779b97f4a7c15L));
+    Stripe stripe = stripes[(int) (h >>> 58) & stripeMask];
+    int first = ((int) h & bucketMask) * BUCKET_SIZE;
+    int second = ((int) (h >>> 24) & bucketMask) * BUCKET_SIZE;
+    synchronized (stripe) {
+      int firstFree = -1;
+      int firstLive = 0;
+      for (int slot = first; slot < first + BUCKET_SIZE; slot++) {
+        long s = stripe.steps[slot];
+        if (s < oldestLiveStep) {
+          if (firstFree < 0) firstFree = slot;
+        } else if (s == step && stripe.fingerprints[slot] == fp) {
+          replays.increment();
+          return Result.REPLAYED;
+        } else {
+          firstLive++;
+        }
+      }
+      int secondFree = -1;
+      int secondLive = 0;
+      if (second != first) {
+        for (int slot = second; slot < second + BUCKET_SIZE; slot++) {
+          long s = stripe.steps[slot];
+          if (s < oldestLiveStep) {
+            if (secondFree < 0) secondFree = slot;
+          } else if (s == step && stripe.fingerprints[slot] == fp) {
+            replays.increment();
+            return Result.REPLAYED;
+          } else {
+            secondLive++;
+          }
+        }
+      }
+      boolean useSecond = secondFree >= 0 && (firstFree < 0 || secondLive < firstLive);
+      int free = useSecond ? secondFree : firstFree;
+      if (free < 0) {
+        full.increment();
+        return Result.FULL;
+      }
+      stripe.fingerprints[free] = fp;
+      stripe.steps[free] = step;
+      return Result.RECORDED;
+    }
+  }
+
+  long getReplays() {
+    return replays.sum();
+  }
+
+  long getFull() {
+    return full.sum();
+  }
+}
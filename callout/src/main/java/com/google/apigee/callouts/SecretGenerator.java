@@ -0,0 +1,88 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Random secrets, from a deterministic random bit generator per thread, so that threads that
+ * generate secrets at the same time do not contend for one SecureRandom.
+ *
+ * <p>Each generator is seeded explicitly, before its first use, from the operating system's
+ * non-blocking source where there is one, so that it never waits for the entropy pool; and it is
+ * reseeded after it has produced {@link #RESEED_INTERVAL} bytes.
+ */
+final class SecretGenerator {
+  static final int RESEED_INTERVAL = 1 << 20;
+  private static final int SEED_SIZE = 32;
+
+  private static final SecureRandom seedSource = createSeedSource();
+
+  private static final ThreadLocal<SecretGenerator> generators =
+      ThreadLocal.withInitial(SecretGenerator::new);
+
+  private final SecureRandom random;
+  private int produced;
+
+  private SecretGenerator() {
+    this.random = createGenerator();
+    reseed();
+  }
+
+  private static SecureRandom createSeedSource() {
+    try {
+      return SecureRandom.getInstance("NativePRNGNonBlocking");
+    } catch (NoSuchAlgorithmException e) {
+      // not on this platform, for example Windows; the default does not block there
+      return new SecureRandom();
+    }
+  }
+
+  private static SecureRandom createGenerator() {
+    try {
+      // SHA1PRNG is the hash-based DRBG that every Java 8 runtime has. Seeded before its first
+      // use, it does not seed itself from the system.
+      return SecureRandom.getInstance("SHA1PRNG");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  }
+
+  private void reseed() {
+    byte[] seed = new byte[SEED_SIZE];
+    synchronized (seedSource) {
+      seedSource.nextBytes(seed);
+    }
+    random.setSeed(seed);
+    produced = 0;
+  }
+
+  static SecretGenerator forCurrentThread() {
+    return generators.get();
+  }
+
+  /** Returns a new secret of the given length. */
+  byte[] next(int length) {
+    if (produced >= RESEED_INTERVAL) {
+      reseed();
+    }
+    byte[] secret = new byte[length];
+    random.nextBytes(secret);
+    produced += length;
+    return secret;
+  }
+}
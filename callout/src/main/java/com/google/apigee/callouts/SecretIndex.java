@@ -0,0 +1,335 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+
+/**
+ * A read-only file of TOTP keys, indexed by user ID and encrypted at rest, so that the callout can
+ * find the key for a user without a KVM lookup in the flow.
+ *
+ * <p>The file is a 16-byte header, then an index of 16-byte entries sorted by the fingerprint of
+ * the user ID (as in {@link HotpCounterStore}), then the encrypted keys. An index entry holds the
+ * fingerprint, and the offset and length of a record; a record is a 12-byte nonce followed by the
+ * key, encrypted with AES-GCM under the index key, with the user ID as additional authenticated
+ * data. A lookup is a binary search of the mapped index and one decryption. The user ID must
+ * authenticate the record, so a record that is moved to another entry, or shares a fingerprint
+ * with another user, does not decrypt.
+ *
+ * <p>Every callout that names the same file shares one instance, for as long as any of them is
+ * reachable; the registry of instances holds them weakly, so that the keys of callouts that have
+ * been undeployed can be collected. A task on the scheduler of {@link BackgroundTasks} checks the
+ * file every few seconds and, when it has been replaced, maps the new file and swaps it in with
+ * one volatile write. The task stops once the instance has been collected. A lookup that is in
+ * progress finishes with the file it started with. To replace the file, write the new one beside
+ * it and rename it into place, as {@link #write} does. A file named "resource:/path" is read from
+ * the classpath, once.
+ */
+final class SecretIndex {
+  static final long CHECK_INTERVAL_SECONDS = 5L;
+  private static final int MAGIC = 0x544b4559; // "TKEY"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int ENTRY_SIZE = 16;
+  private static final String RESOURCE_PREFIX = "resource:";
+
+  // guarded by itself
+  private static final Map<String, WeakReference<SecretIndex>> indexes =
+      new HashMap<String, WeakReference<SecretIndex>>();
+
+  private final Path path; // null for a resource
+  private final AtomicLong reloads = new AtomicLong();
+  private final AtomicLong reloadFailures = new AtomicLong();
+  private volatile Snapshot current;
+
+  /** One version of the file: the attributes it was read with, and its contents. */
+  private static final class Snapshot {
+    final Object fileKey;
+    final long lastModified;
+    final long size;
+    final ByteBuffer buffer; // read-only, big-endian
+    final int count;
+
+    Snapshot(Object fileKey, long lastModified, long size, ByteBuffer buffer, String name) {
+      this.fileKey = fileKey;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+      this.count = validate(buffer, name);
+    }
+
+    boolean isCurrent(BasicFileAttributes attributes) {
+      return attributes.lastModifiedTime().toMillis() == lastModified
+          && attributes.size() == size
+          && (fileKey == null || fileKey.equals(attributes.fileKey()));
+    }
+  }
+
+  private static int validate(ByteBuffer buffer, String name) {
+    int limit = buffer.limit();
+    if (limit < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IllegalStateException(name + " is not a secret index");
+    }
+    int count = buffer.getInt(8);
+    long dataStart = HEADER_SIZE + (long) count * ENTRY_SIZE;
+    if (count < 0 || dataStart > limit) {
+      throw new IllegalStateException(name + " is truncated or corrupt");
+    }
+    long previous = 0L;
+    for (int i = 0; i < count; i++) {
+      int entry = HEADER_SIZE + i * ENTRY_SIZE;
+      long fp = buffer.getLong(entry);
+      int offset = buffer.getInt(entry + 8);
+      int length = buffer.getInt(entry + 12);
+      if ((i > 0 && Long.compareUnsigned(fp, previous) < 0)
+          || offset < dataStart
+          || length < KeyWrapping.OVERHEAD
+          || (long) offset + length > limit) {
+        throw new IllegalStateException(name + " is truncated or corrupt");
+      }
+      previous = fp;
+    }
+    return count;
+  }
+
+  /** Returns the index for the file or resource, reading it if this is the first use. */
+  static SecretIndex open(String name) {
+    String n =
+        name.startsWith(RESOURCE_PREFIX) ? name : Paths.get(name).toAbsolutePath().toString();
+    synchronized (indexes) {
+      WeakReference<SecretIndex> ref = indexes.get(n);
+      SecretIndex index = (ref == null) ? null : ref.get();
+      if (index != null) return index;
+      indexes.values().removeIf(r -> r.get() == null);
+      try {
+        index = new SecretIndex(n);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      indexes.put(n, new WeakReference<SecretIndex>(index));
+      return index;
+    }
+  }
+
+  private SecretIndex(String name) throws IOException {
+    if (name.startsWith(RESOURCE_PREFIX)) {
+      this.path = null;
+      this.current = readResource(name);
+    } else {
+      this.path = Paths.get(name);
+      this.current = map(path);
+      startChecker();
+    }
+  }
+
+  private static Snapshot readResource(String name) throws IOException {
+    String resource = name.substring(RESOURCE_PREFIX.length());
+    try (InputStream in = SecretIndex.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IllegalStateException("resource " + resource + " not found");
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      for (int n; (n = in.read(chunk)) > 0; ) {
+        out.write(chunk, 0, n);
+      }
+      byte[] bytes = out.toByteArray();
+      return new Snapshot(null, 0L, bytes.length, ByteBuffer.wrap(bytes).asReadOnlyBuffer(), name);
+    }
+  }
+
+  private static Snapshot map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path)) {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new Snapshot(
+          attributes.fileKey(),
+          attributes.lastModifiedTime().toMillis(),
+          attributes.size(),
+          buffer,
+          path.toString());
+    }
+  }
+
+  private void startChecker() {
+    BackgroundTasks.scheduleWithFixedDelay(
+        this, SecretIndex::reloadIfChanged, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Maps the file again if it has changed since it was last read. If the new file cannot be read,
+   * or is not valid, the previous version stays in use.
+   */
+  void reloadIfChanged() {
+    if (path == null) return;
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (current.isCurrent(attributes)) return;
+      current = map(path);
+      reloads.incrementAndGet();
+    } catch (Exception e) {
+      reloadFailures.incrementAndGet();
+    }
+  }
+
+  long getReloads() {
+    return reloads.get();
+  }
+
+  long getReloadFailures() {
+    return reloadFailures.get();
+  }
+
+  int size() {
+    return current.count;
+  }
+
+  /** Returns the key stored for the user, or null if there is none. */
+  String lookup(String userId, SecretKey indexKey) throws GeneralSecurityException {
+    Snapshot snapshot = current;
+    ByteBuffer buffer = snapshot.buffer;
+    long fp = HotpCounterStore.fingerprint(userId);
+    int low = 0;
+    int high = snapshot.count - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (Long.compareUnsigned(buffer.getLong(HEADER_SIZE + middle * ENTRY_SIZE), fp) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    byte[] aad = userId.getBytes(StandardCharsets.UTF_8);
+    // Entries that share the fingerprint are adjacent; the one that authenticates is the user's.
+    for (int i = low; i < snapshot.count; i++) {
+      int entry = HEADER_SIZE + i * ENTRY_SIZE;
+      if (buffer.getLong(entry) != fp) break;
+      byte[] record = new byte[buffer.getInt(entry + 12)];
+      ByteBuffer view = buffer.duplicate();
+      view.position(buffer.getInt(entry + 8));
+      view.get(record);
+      byte[] plaintext = KeyWrapping.unwrap(record, 0, record.length, indexKey, aad);
+      if (plaintext != null) {
+        try {
+          return new String(plaintext, StandardCharsets.UTF_8);
+        } finally {
+          Arrays.fill(plaintext, (byte) 0);
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Returns the AES key for a secret index, from its hexadecimal encoding. */
+  static SecretKey indexKey(String hex) {
+    return KeyWrapping.aesKey("secret-index-key", hex);
+  }
+
+  /**
+   * Writes a secret index with the given keys, by user ID, to a temporary file beside the target,
+   * and then renames it into place, so that a callout that is using the target sees either the old
+   * file or the new one.
+   */
+  static void write(Map<String, String> keys, SecretKey indexKey, Path target)
+      throws IOException, GeneralSecurityException {
+    TreeMap<Long, List<byte[]>> records = new TreeMap<Long, List<byte[]>>(Long::compareUnsigned);
+    for (Map.Entry<String, String> e : keys.entrySet()) {
+      byte[] plaintext = e.getValue().getBytes(StandardCharsets.UTF_8);
+      byte[] record =
+          KeyWrapping.wrap(plaintext, indexKey, e.getKey().getBytes(StandardCharsets.UTF_8));
+      Arrays.fill(plaintext, (byte) 0);
+      records
+          .computeIfAbsent(HotpCounterStore.fingerprint(e.getKey()), fp -> new ArrayList<byte[]>())
+          .add(record);
+    }
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + keys.size() * ENTRY_SIZE);
+    index.putInt(MAGIC).putInt(VERSION).putInt(keys.size()).putInt(0);
+    for (Map.Entry<Long, List<byte[]>> e : records.entrySet()) {
+      for (byte[] record : e.getValue()) {
+        index.putLong(e.getKey()).putInt(index.capacity() + data.size()).putInt(record.length);
+        data.write(record);
+      }
+    }
+    Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), ".secret-index", ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        index.flip();
+        channel.write(index);
+        channel.write(ByteBuffer.wrap(data.toByteArray()));
+        channel.force(true);
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Builds a secret index from a file of lines of the form {@code user-id,key}, where the key is
+   * as the callout would receive it in the key property, before decode-key applies.
+   *
+   * <pre>
+   *   java -cp apigee-google-authenticator-totp-20230628.jar \
+   *       com.google.apigee.callouts.SecretIndex \
+   *       INDEX_KEY_HEX keys.csv secrets.idx
+   * </pre>
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 3) {
+      System.err.println("usage: SecretIndex INDEX_KEY_HEX INPUT OUTPUT");
+      System.exit(1);
+    }
+    Map<String, String> keys = new TreeMap<String, String>();
+    List<String> lines = Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      if (line.trim().isEmpty()) continue;
+      int comma = line.indexOf(',');
+      if (comma <= 0) {
+        // the line holds a key, so it is not repeated in the message
+        throw new IllegalArgumentException("expected user-id,key at line " + (i + 1));
+      }
+      keys.put(line.substring(0, comma).trim(), line.substring(comma + 1).trim());
+    }
+    write(keys, indexKey(args[0]), Paths.get(args[2]));
+    System.out.println("wrote " + keys.size() + " keys to " + args[2]);
+  }
+}
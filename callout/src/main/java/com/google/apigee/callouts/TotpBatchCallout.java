@@ -0,0 +1,263 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.MessageContext;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKey;
+
+/**
+ * Verifies many (key, code) pairs in one execution. The pairs are read from a JSON array in a
+ * context variable, and verified in parallel on a fork-join pool that belongs to the policy. Each
+ * worker thread keeps its own generators, so a Mac is created once per worker, not per pair.
+ *
+ * <p>The settings of TotpCallout apply to every pair, except that a pair can specify its own
+ * decode-key.
+ */
+public class TotpBatchCallout extends CalloutBase implements Execution {
+  static final String DEFAULT_SOURCE = "message.content";
+  static final int DEFAULT_MAX_ITEMS = 1000;
+  static final int MAX_PARALLELISM = 64;
+  // Each task verifies at most this many items; a batch this small is verified on the calling
+  // thread.
+  static final int ITEMS_PER_TASK = 16;
+
+  private static final AtomicInteger poolCount = new AtomicInteger();
+
+  private final TotpConfig config;
+  private final int maxItems;
+  private final ForkJoinPool pool; // null when parallelism is 1
+
+  public TotpBatchCallout(Map properties) {
+    super(properties);
+    this.config = new TotpConfig(this::getPropertyTemplate);
+    this.maxItems = getIntegerProperty("max-items", DEFAULT_MAX_ITEMS, 1, Integer.MAX_VALUE);
+    int parallelism =
+        getIntegerProperty(
+            "parallelism",
+            Math.min(Runtime.getRuntime().availableProcessors(), 8),
+            1,
+            MAX_PARALLELISM);
+    this.pool = (parallelism > 1) ? createPool("batch", parallelism) : null;
+  }
+
+  // Instance-level settings; they size the pool and so cannot refer to context variables.
+  private int getIntegerProperty(String name, int defaultValue, int min, int max) {
+    String value = (String) this.properties.get(name);
+    if (value == null || value.trim().equals("")) return defaultValue;
+    return TotpConfig.parseInteger(name, value.trim(), min, max);
+  }
+
+  // The workers are daemon threads, named totp-NAME-N-worker-M.
+  static ForkJoinPool createPool(String name, int parallelism) {
+    final String prefix = "totp-" + name + "-" + poolCount.incrementAndGet() + "-worker-";
+    return new ForkJoinPool(
+        parallelism,
+        pool -> {
+          ForkJoinWorkerThread thread =
+              ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+          thread.setName(prefix + thread.getPoolIndex());
+          thread.setDaemon(true);
+          return thread;
+        },
+        null,
+        false);
+  }
+
+  /** One pair to verify; null fields mean the item was malformed. */
+  static final class Item {
+    final String key;
+    final String code;
+    final String decodeKey;
+
+    Item(String key, String code, String decodeKey) {
+      this.key = key;
+      this.code = code;
+      this.decodeKey = decodeKey;
+    }
+
+    static Item from(Object element) {
+      if (!(element instanceof Map)) {
+        return new Item(null, null, null);
+      }
+      Map map = (Map) element;
+      return new Item(
+          asString(map.get("key")), asString(map.get("code")), asString(map.get("decode-key")));
+    }
+
+    private static String asString(Object value) {
+      if (value instanceof String) return (String) value;
+      // A code can be given as a JSON number, which cannot have leading zeros.
+      if (value instanceof Long) return value.toString();
+      return null;
+    }
+  }
+
+  Item[] readItems(MessageContext msgCtxt) {
+    String source = resolveProperty("source", msgCtxt);
+    if (source == null || source.equals("")) {
+      source = DEFAULT_SOURCE;
+    }
+    Object content = msgCtxt.getVariable(source);
+    if (content == null) {
+      throw new IllegalStateException("source variable " + source + " is not set");
+    }
+    Object parsed = Json.parse(content.toString(), maxItems);
+    if (!(parsed instanceof List)) {
+      throw new IllegalStateException("the batch must be a JSON array");
+    }
+    List elements = (List) parsed;
+    Item[] items = new Item[elements.size()];
+    for (int i = 0; i < items.length; i++) {
+      items[i] = Item.from(elements.get(i));
+    }
+    return items;
+  }
+
+  /** The settings for one execution, resolved once and shared by all workers. */
+  static final class Batch {
+    final Item[] items;
+    final boolean[] results;
+    final String hashFunction;
+    final int timeStep;
+    final int codeDigits;
+    final boolean builtinEngine;
+    final boolean leadingZeros;
+    final int windowBehind;
+    final int windowAhead;
+    final KeyEncoding defaultEncoding;
+    final SecretKey keyEncryptionKey; // null unless key-wrapping is set
+    final long now;
+
+    Batch(Item[] items, TotpConfig config, MessageContext msgCtxt, long now) {
+      this.items = items;
+      this.results = new boolean[items.length];
+      this.hashFunction = config.hashFunction.get(msgCtxt);
+      this.timeStep = config.timeStep.get(msgCtxt);
+      this.codeDigits = config.codeDigits.get(msgCtxt);
+      this.builtinEngine = config.builtinEngine.get(msgCtxt);
+      this.leadingZeros = config.leadingZeros.get(msgCtxt);
+      this.windowBehind = config.windowBehind.get(msgCtxt);
+      this.windowAhead = config.windowAhead.get(msgCtxt);
+      this.defaultEncoding = config.decodeKey.get(msgCtxt);
+      this.keyEncryptionKey = CalloutBase.getKeyEncryptionKey(config, msgCtxt);
+      this.now = now;
+    }
+
+    void verify(int from, int to) throws NoSuchAlgorithmException {
+      OtpGenerator totp =
+          OtpGenerator.forCurrentThread(hashFunction, timeStep, codeDigits, builtinEngine);
+      long currentStep = totp.timeStepFor(now);
+      for (int i = from; i < to; i++) {
+        results[i] = verify(totp, currentStep, items[i]);
+      }
+    }
+
+    // A malformed item, or one whose key cannot be decoded, does not match.
+    private boolean verify(OtpGenerator totp, long currentStep, Item item) {
+      if (item.key == null || item.key.isEmpty() || item.code == null) {
+        return false;
+      }
+      byte[] key = null;
+      try {
+        KeyEncoding encoding =
+            (item.decodeKey == null) ? defaultEncoding : KeyEncoding.parse(item.decodeKey);
+        key = CalloutBase.decodeKey(encoding, item.key, keyEncryptionKey);
+        int code = totp.generateForCounter(key, currentStep);
+        return TotpCallout.findMatchingOffset(
+                item.code, totp, key, currentStep, code, leadingZeros, windowBehind, windowAhead)
+            != null;
+      } catch (Exception e) {
+        return false;
+      } finally {
+        if (key != null) {
+          Arrays.fill(key, (byte) 0);
+        }
+      }
+    }
+  }
+
+  private static final class VerifyTask extends RecursiveAction {
+    private final Batch batch;
+    private final int from;
+    private final int to;
+
+    VerifyTask(Batch batch, int from, int to) {
+      this.batch = batch;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= ITEMS_PER_TASK) {
+        try {
+          batch.verify(from, to);
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException(e);
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new VerifyTask(batch, from, middle), new VerifyTask(batch, middle, to));
+    }
+  }
+
+  static String render(boolean[] results) {
+    StringBuilder sb = new StringBuilder(2 + results.length * 6);
+    sb.append('[');
+    for (int i = 0; i < results.length; i++) {
+      if (i > 0) sb.append(',');
+      sb.append(results[i]);
+    }
+    return sb.append(']').toString();
+  }
+
+  public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    try {
+      Item[] items = readItems(msgCtxt);
+      long now = currentTimeMillis(msgCtxt);
+      Batch batch = new Batch(items, config, msgCtxt, now);
+      if (pool == null || items.length <= ITEMS_PER_TASK) {
+        batch.verify(0, items.length);
+      } else {
+        pool.invoke(new VerifyTask(batch, 0, items.length));
+      }
+      int valid = 0;
+      for (boolean result : batch.results) {
+        if (result) valid++;
+      }
+      msgCtxt.setVariable(varName("time"), Long.toString(Math.floorDiv(now, 1000L)));
+      msgCtxt.setVariable(varName("batch_result"), render(batch.results));
+      msgCtxt.setVariable(varName("batch_count"), Integer.toString(items.length));
+      msgCtxt.setVariable(varName("batch_valid"), Integer.toString(valid));
+      return ExecutionResult.SUCCESS;
+    } catch (Exception e) {
+      setExceptionVariables(e, msgCtxt);
+      return ExecutionResult.ABORT;
+    }
+  }
+}
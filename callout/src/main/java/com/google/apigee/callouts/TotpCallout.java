@@ -19,134 +19,486 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
-import com.eatthepath.otp.TimeBasedOneTimePasswordGenerator;
-import com.google.apigee.encoding.Base16;
-import com.google.apigee.encoding.Base32;
-import java.nio.charset.StandardCharsets;
-import java.security.Key;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.Base64;
+import java.nio.file.Paths;
 import java.util.Map;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.SecretKey;
 
 public class TotpCallout extends CalloutBase implements Execution {
-  private static final int DEFAULT_TIME_STEP_SECONDS = 30;
-  private static final int DEFAULT_CODE_DIGITS = 6;
-  private final String DEFAULT_HASH_FUNCTION = "HmacSHA1";
+  private static final long DEFAULT_KEY_CACHE_TTL_SECONDS = 300;
+  private static final int DEFAULT_REPLAY_CACHE_SIZE = 65536;
+  private static final int DEFAULT_WRAPPED_KEY_CACHE_SIZE = 1024;
+  private static final int DEFAULT_FAILURE_WINDOW_SECONDS = 300;
+  private static final int DEFAULT_FAILURE_TABLE_SIZE = 65536;
+  private static final int DEFAULT_OFFSET_TABLE_SIZE = 65536;
+  private static final int MAX_RESYNC_RANGE_SECONDS = 86400;
+  private final TotpConfig config;
+  private final DecodedKeyCache keyCache;
+  private final ReplayGuard replayGuard;
+  private final HotKeyPrecomputer precomputer;
+  private final FailureLimiter failureLimiter;
+  private final SecretKey auditKey; // null if audit-key refers to variables
+  private final AuditLog auditLog;
+  private final int resyncRange;
+  private final ClockOffsets clockOffsets;
+  private final ForkJoinPool resyncPool; // null when resync-parallelism is 1
+  private final boolean debug;
+  private final CalloutMetrics metrics;
 
   public TotpCallout(Map properties) {
     super(properties);
+    this.config = new TotpConfig(this::getPropertyTemplate);
+    this.keyCache = createKeyCache();
+    this.replayGuard = createReplayGuard();
+    this.precomputer = createPrecomputer();
+    this.failureLimiter = createFailureLimiter();
+    this.auditKey = createAuditKey();
+    this.auditLog = createAuditLog();
+    this.resyncRange = createResyncRange();
+    this.clockOffsets = (resyncRange > 0) ? createClockOffsets() : null;
+    this.resyncPool = (resyncRange > 0) ? createResyncPool() : null;
+    if (clockOffsets == null && getPropertyTemplate("next-value") != null) {
+      throw new IllegalStateException("resync-range must be set when next-value is set");
+    }
+    this.debug = getDebug();
+    this.metrics = createMetrics();
+  }
+
+  // Metrics are collected when debug is true, or when they are exported periodically.
+  private CalloutMetrics createMetrics() {
+    String interval = (String) this.properties.get("metrics-interval");
+    long intervalSeconds = 0L;
+    if (interval != null && !interval.trim().equals("")) {
+      intervalSeconds =
+          TotpConfig.parseInteger("metrics-interval", interval.trim(), 0, Integer.MAX_VALUE);
+    }
+    if (!debug && intervalSeconds == 0L) return CalloutMetrics.DISABLED;
+    return new CalloutMetrics(true, intervalSeconds);
+  }
+
+  // The key cache is opt-in, and sized when the callout is created. When key-wrapping is aes-gcm,
+  // or refers to a variable that may resolve to it, the cache is on unless disabled, so that a
+  // wrapped key is not unwrapped on every request.
+  private DecodedKeyCache createKeyCache() {
+    String size = (String) this.properties.get("key-cache-size");
+    int maxEntries = 0;
+    if (size != null && !size.trim().equals("")) {
+      maxEntries =
+          TotpConfig.parseInteger("key-cache-size", size.trim(), 0, DecodedKeyCache.MAX_ENTRIES);
+    } else if (!config.keyWrapping.isFixed() || config.keyWrapping.get(null)) {
+      maxEntries = DEFAULT_WRAPPED_KEY_CACHE_SIZE;
+    }
+    if (maxEntries == 0) return null;
+    long ttlSeconds = DEFAULT_KEY_CACHE_TTL_SECONDS;
+    String ttl = (String) this.properties.get("key-cache-ttl");
+    if (ttl != null && !ttl.trim().equals("")) {
+      ttlSeconds = TotpConfig.parseInteger("key-cache-ttl", ttl.trim(), 1, Integer.MAX_VALUE);
+    }
+    return new DecodedKeyCache(maxEntries, ttlSeconds);
   }
 
-  private int getTimeStep(MessageContext msgCtxt) throws Exception {
-    return getIntegerWithDefault(msgCtxt, "time-step", DEFAULT_TIME_STEP_SECONDS);
+  // Replay protection is opt-in. The table it uses is allocated when the callout is created.
+  private ReplayGuard createReplayGuard() {
+    String enabled = (String) this.properties.get("replay-protection");
+    if (enabled == null || enabled.trim().equals("")) return null;
+    if (!TotpConfig.parseBoolean("replay-protection", enabled)) return null;
+    int capacity = DEFAULT_REPLAY_CACHE_SIZE;
+    String size = (String) this.properties.get("replay-cache-size");
+    if (size != null && !size.trim().equals("")) {
+      capacity =
+          TotpConfig.parseInteger(
+              "replay-cache-size",
+              size.trim(),
+              ReplayGuard.MIN_CAPACITY,
+              ReplayGuard.MAX_CAPACITY);
+    }
+    return new ReplayGuard(capacity);
   }
 
-  private int getCodeDigits(MessageContext msgCtxt) throws Exception {
-    return getIntegerWithDefault(msgCtxt, "code-digits", DEFAULT_CODE_DIGITS);
+  // Precomputation for hot keys is opt-in. It runs on a background thread owned by this policy.
+  private HotKeyPrecomputer createPrecomputer() {
+    String size = (String) this.properties.get("precompute-hot-keys");
+    if (size == null || size.trim().equals("")) return null;
+    int maxHotKeys =
+        TotpConfig.parseInteger(
+            "precompute-hot-keys", size.trim(), 0, HotKeyPrecomputer.MAX_HOT_KEYS);
+    if (maxHotKeys == 0) return null;
+    HotKeyPrecomputer precomputer = new HotKeyPrecomputer(maxHotKeys);
+    precomputer.start();
+    return precomputer;
   }
 
-  private byte[] decodeKey(String initialKey) {
-    String value = (String) this.properties.get("decode-key");
-    if ("hex".equals(value) || "base16".equals(value)) {
-      return Base16.decode(initialKey);
+  // Lockout is opt-in. The table that counts failures is allocated when the callout is created.
+  private FailureLimiter createFailureLimiter() {
+    String max = (String) this.properties.get("max-failures");
+    if (max == null || max.trim().equals("")) return null;
+    int maxFailures =
+        TotpConfig.parseInteger("max-failures", max.trim(), 0, FailureLimiter.MAX_FAILURES);
+    if (maxFailures == 0) return null;
+    int windowSeconds = DEFAULT_FAILURE_WINDOW_SECONDS;
+    String window = (String) this.properties.get("failure-window");
+    if (window != null && !window.trim().equals("")) {
+      windowSeconds = TotpConfig.parseInteger("failure-window", window.trim(), 1, 86400);
+    }
+    int capacity = DEFAULT_FAILURE_TABLE_SIZE;
+    String size = (String) this.properties.get("failure-table-size");
+    if (size != null && !size.trim().equals("")) {
+      capacity =
+          TotpConfig.parseInteger(
+              "failure-table-size", size.trim(), 4, FailureLimiter.MAX_CAPACITY);
     }
-    if ("base32".equals(value)) {
-      return Base32.decode(initialKey);
+    return new FailureLimiter(maxFailures, windowSeconds, capacity);
+  }
+
+  // The audit log is opt-in. It is opened, with its writer thread, when the callout is created.
+  private AuditLog createAuditLog() {
+    String file = (String) this.properties.get("audit-file");
+    if (file == null || file.trim().equals("")) return null;
+    int bufferSize = AuditLog.DEFAULT_BUFFER_SIZE;
+    String size = (String) this.properties.get("audit-buffer-size");
+    if (size != null && !size.trim().equals("")) {
+      bufferSize =
+          TotpConfig.parseInteger(
+              "audit-buffer-size",
+              size.trim(),
+              AuditLog.MIN_BUFFER_SIZE,
+              AuditLog.MAX_BUFFER_SIZE);
     }
-    if ("base64url".equals(value)) {
-      return Base64.getUrlDecoder().decode(initialKey);
+    long maxFileSize = AuditLog.DEFAULT_MAX_FILE_SIZE;
+    String fileSize = (String) this.properties.get("audit-max-file-size");
+    if (fileSize != null && !fileSize.trim().equals("")) {
+      maxFileSize =
+          TotpConfig.parseInteger("audit-max-file-size", fileSize.trim(), 4096, Integer.MAX_VALUE);
     }
-    if ("base64".equals(value)) {
-      return Base64.getDecoder().decode(initialKey);
+    int maxFiles = AuditLog.DEFAULT_MAX_FILES;
+    String files = (String) this.properties.get("audit-max-files");
+    if (files != null && !files.trim().equals("")) {
+      maxFiles = TotpConfig.parseInteger("audit-max-files", files.trim(), 1, 100);
     }
-    // utf-8 encoded
-    return initialKey.getBytes(StandardCharsets.UTF_8);
+    return AuditLog.open(Paths.get(file.trim()), bufferSize, maxFileSize, maxFiles);
   }
 
-  private byte[] getDecodedKey(MessageContext msgCtxt) throws Exception {
-    String keyString = getSimpleRequiredProperty("key", msgCtxt);
-    return decodeKey(keyString);
+  // The audit key is checked before the log is opened.
+  private SecretKey createAuditKey() {
+    String file = (String) this.properties.get("audit-file");
+    if (file == null || file.trim().equals("")) return null;
+    PropertyTemplate template = getPropertyTemplate("audit-key");
+    if (template == null) {
+      throw new IllegalStateException("audit-key must be set when audit-file is set");
+    }
+    return template.isConstant() ? AuditLog.auditKey(template.getConstant()) : null;
   }
 
-  private Instant getTime(MessageContext msgCtxt) {
-    String value = (String) this.properties.get("fake-time-millis");
-    if (value != null) {
-      try {
-        value = value.trim();
-        value = resolvePropertyValue(value, msgCtxt);
-        return Instant.ofEpochMilli(Long.parseLong(value));
-      } catch (Exception ignoredException) {
-        return java.time.Instant.now();
-      }
+  // A record whose key cannot be fingerprinted, because the audit key does not resolve, has the
+  // fingerprint 0, as a record without a key does.
+  private long auditFingerprint(byte[] key, MessageContext msgCtxt) {
+    if (key == null) return 0L;
+    try {
+      SecretKey k =
+          (auditKey != null)
+              ? auditKey
+              : AuditLog.auditKey(getSimpleRequiredProperty("audit-key", msgCtxt));
+      return AuditLog.fingerprint(k, key);
+    } catch (Exception e) {
+      return 0L;
+    }
+  }
+
+  // Resync is opt-in. The range is in seconds, and is converted to time steps on each request.
+  private int createResyncRange() {
+    String range = (String) this.properties.get("resync-range");
+    if (range == null || range.trim().equals("")) return 0;
+    return TotpConfig.parseInteger("resync-range", range.trim(), 0, MAX_RESYNC_RANGE_SECONDS);
+  }
+
+  // The table of learned offsets is allocated when the callout is created.
+  private ClockOffsets createClockOffsets() {
+    int capacity = DEFAULT_OFFSET_TABLE_SIZE;
+    String size = (String) this.properties.get("offset-table-size");
+    if (size != null && !size.trim().equals("")) {
+      capacity =
+          TotpConfig.parseInteger("offset-table-size", size.trim(), 4, ClockOffsets.MAX_CAPACITY);
+    }
+    return new ClockOffsets(capacity);
+  }
+
+  private ForkJoinPool createResyncPool() {
+    int parallelism = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+    String value = (String) this.properties.get("resync-parallelism");
+    if (value != null && !value.trim().equals("")) {
+      parallelism =
+          TotpConfig.parseInteger(
+              "resync-parallelism", value.trim(), 1, TotpBatchCallout.MAX_PARALLELISM);
+    }
+    return (parallelism > 1) ? TotpBatchCallout.createPool("resync", parallelism) : null;
+  }
+
+  // A wrapped key is cached under a digest of the key-encryption key and the wrapped key, so that
+  // it is unwrapped only on a miss.
+  private DecodedKeyCache.Entry getCachedDecodedKey(MessageContext msgCtxt, KeyEncoding encoding)
+      throws Exception {
+    String keyString = getKeyString(msgCtxt);
+    SecretKey kek = getKeyEncryptionKey(config, msgCtxt);
+    if (kek == null) {
+      return keyCache.acquire(encoding.name(), keyString, encoding::decode);
+    }
+    return keyCache.acquire(
+        "aes-gcm:" + encoding.name(),
+        KeyWrapping.cacheKey(kek, keyString),
+        digest -> decodeKey(encoding, keyString, kek));
+  }
+
+  /**
+   * Checks the expected value against the codes for the current step, and then for the steps
+   * around it, nearest first. Returns the offset of the first step that matches, or null if none
+   * does. All candidates use the same generator, so the Mac is initialized at most once.
+   */
+  static Integer findMatchingOffset(
+      String expectedValue,
+      OtpGenerator totp,
+      byte[] key,
+      long currentStep,
+      int currentCode,
+      boolean leadingZeros,
+      int windowBehind,
+      int windowAhead)
+      throws Exception {
+    final long expected = CodeFormat.parse(expectedValue);
+    final int expectedLength = expectedValue.length();
+    final int codeDigits = totp.getCodeDigits();
+    if (CodeFormat.matches(expected, expectedLength, currentCode, codeDigits, leadingZeros)) {
+      return 0;
+    }
+    if (expected < 0) {
+      return null;
     }
-    value = (String) this.properties.get("fake-time-seconds");
-    if (value != null) {
-      try {
-        value = value.trim();
-        value = resolvePropertyValue(value, msgCtxt);
-        return Instant.ofEpochSecond(Long.parseLong(value));
-      } catch (Exception ignoredException) {
-        return java.time.Instant.now();
+    for (int distance = 1; distance <= Math.max(windowBehind, windowAhead); distance++) {
+      if (distance <= windowBehind) {
+        int code = totp.generateForCounter(key, currentStep - distance);
+        if (CodeFormat.matches(expected, expectedLength, code, codeDigits, leadingZeros)) {
+          return -distance;
+        }
+      }
+      if (distance <= windowAhead) {
+        int code = totp.generateForCounter(key, currentStep + distance);
+        if (CodeFormat.matches(expected, expectedLength, code, codeDigits, leadingZeros)) {
+          return distance;
+        }
       }
     }
-    return java.time.Instant.now();
+    return null;
   }
 
-  private boolean getWantLeadingZeros() {
-    String value = (String) this.properties.get("leading-zeros");
-    if (value == null) return false;
-    if (value.trim().toLowerCase().equals("true")) return true;
-    return false;
+  private ReplayGuard.Result record(byte[] key, long step, long oldestLiveStep) {
+    if (replayGuard == null) return ReplayGuard.Result.RECORDED;
+    return replayGuard.checkAndRecord(key, step, oldestLiveStep);
   }
 
-  private String getHashFunction(MessageContext msgCtxt) throws Exception {
-    String value = getSimpleOptionalProperty("hash-function", msgCtxt);
-    if (value == null) return DEFAULT_HASH_FUNCTION;
-    value = value.toLowerCase();
-    if ("sha1".equals(value) || "hmacsha1".equals(value)) return "HmacSHA1";
-    if ("sha256".equals(value) || "hmacsha256".equals(value)) return "HmacSHA256";
-    if ("sha512".equals(value) || "hmacsha512".equals(value)) return "HmacSHA512";
-    return DEFAULT_HASH_FUNCTION;
+  // A code that cannot be recorded is refused like a replay, so that a full table fails closed.
+  private void setReplayFault(ReplayGuard.Result result, MessageContext msgCtxt) {
+    String error = (result == ReplayGuard.Result.FULL) ? "TOTP replay cache full" : "TOTP replay";
+    msgCtxt.setVariable(varName("error"), error);
+    msgCtxt.setVariable("fault.name", "totp_replay");
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    DecodedKeyCache.Entry cachedKey = null;
+    final long started = (auditLog != null) ? System.nanoTime() : 0L;
+    long mark = metrics.start();
+    CalloutMetrics.Outcome outcome = CalloutMetrics.Outcome.EXCEPTION;
+    String expectedValue = null;
+    byte[] key = null;
+    long auditStep = 0L;
+    long now = 0L;
     try {
-      final int timeStepSizeInSeconds = getTimeStep(msgCtxt);
-      final int codeDigits = getCodeDigits(msgCtxt);
-      final Key key = new SecretKeySpec(getDecodedKey(msgCtxt), "RAW");
-      final String hashAlgorithm = getHashFunction(msgCtxt);
-      msgCtxt.setVariable(varName("hashfunction"), hashAlgorithm);
+      final int timeStepSizeInSeconds = config.timeStep.get(msgCtxt);
+      final int codeDigits = config.codeDigits.get(msgCtxt);
+      final KeyEncoding keyEncoding = config.decodeKey.get(msgCtxt);
+      final String hashAlgorithm = config.hashFunction.get(msgCtxt);
+      final boolean builtinEngine = config.builtinEngine.get(msgCtxt);
+      final boolean leadingZeros = config.leadingZeros.get(msgCtxt);
+      final int windowBehind = config.windowBehind.get(msgCtxt);
+      final int windowAhead = config.windowAhead.get(msgCtxt);
+      expectedValue = getSimpleOptionalProperty("expected-value", msgCtxt);
+      final String nextValue =
+          (clockOffsets != null) ? getSimpleOptionalProperty("next-value", msgCtxt) : null;
+      if (nextValue != null && expectedValue == null) {
+        throw new IllegalStateException("expected-value must be set when next-value is set");
+      }
+      now = currentTimeMillis(msgCtxt);
+      mark = metrics.lap(CalloutMetrics.Phase.RESOLVE, mark);
 
-      final TimeBasedOneTimePasswordGenerator totp =
-          new TimeBasedOneTimePasswordGenerator(
-              Duration.ofSeconds(timeStepSizeInSeconds), codeDigits, hashAlgorithm);
+      if (keyCache != null) {
+        cachedKey = getCachedDecodedKey(msgCtxt, keyEncoding);
+        key = cachedKey.getKey();
+        msgCtxt.setVariable(varName("keycache_hits"), Long.toString(keyCache.getHits()));
+        msgCtxt.setVariable(varName("keycache_misses"), Long.toString(keyCache.getMisses()));
+      } else {
+        key = getDecodedKey(config, keyEncoding, msgCtxt);
+      }
+      mark = metrics.lap(CalloutMetrics.Phase.DECODE, mark);
 
-      final Instant timestamp = getTime(msgCtxt);
+      // A locked key is rejected before any HMAC is computed for it. Otherwise the attempt counts
+      // as a failure until the code verifies.
+      if (expectedValue != null && failureLimiter != null) {
+        if (failureLimiter.acquire(key, now) == FailureLimiter.Result.LOCKED) {
+          outcome = CalloutMetrics.Outcome.LOCKED;
+          msgCtxt.setVariable(varName("error"), "TOTP locked");
+          msgCtxt.setVariable("fault.name", "totp_locked");
+          return ExecutionResult.ABORT;
+        }
+      }
 
-      int integerCode = totp.generateOneTimePassword(key, timestamp);
-      String code =
-          (getWantLeadingZeros())
-              ? String.format(String.format("%%0%dd", codeDigits), integerCode)
-              : Integer.toString(integerCode);
+      msgCtxt.setVariable(varName("hashfunction"), hashAlgorithm);
+      final OtpGenerator totp =
+          OtpGenerator.forCurrentThread(
+              hashAlgorithm, timeStepSizeInSeconds, codeDigits, builtinEngine);
+      mark = metrics.lap(CalloutMetrics.Phase.GENERATOR, mark);
 
-      msgCtxt.setVariable(varName("time"), Long.toString(timestamp.getEpochSecond()));
+      final long serverStep = totp.timeStepFor(now);
+      auditStep = serverStep;
+      if (nextValue != null) {
+        // A resync: find the step the device is at, and remember its offset from ours.
+        int rangeSteps = (resyncRange + timeStepSizeInSeconds - 1) / timeStepSizeInSeconds;
+        Long step =
+            new ClockResync(
+                    hashAlgorithm,
+                    timeStepSizeInSeconds,
+                    codeDigits,
+                    builtinEngine,
+                    leadingZeros,
+                    key,
+                    expectedValue,
+                    nextValue,
+                    serverStep)
+                .find(resyncPool, rangeSteps);
+        msgCtxt.setVariable(varName("time"), Long.toString(Math.floorDiv(now, 1000L)));
+        if (step == null) {
+          metrics.lap(CalloutMetrics.Phase.VERIFY, mark);
+          outcome = CalloutMetrics.Outcome.MISMATCH;
+          msgCtxt.setVariable(varName("error"), "TOTP resync mismatch");
+          msgCtxt.setVariable("fault.name", "totp_mismatch");
+          return ExecutionResult.ABORT;
+        }
+        auditStep = step;
+        // Both codes are used up. They are recorded at the steps they matched, which stay the
+        // same however late the pair is replayed, and the pair is refused unless it is for a
+        // later step than any code accepted before for the key.
+        int clockOffset = (int) (step - serverStep);
+        ReplayGuard.Result recorded =
+            record(key, serverStep + (step - 1 - serverStep), serverStep - windowBehind);
+        if (recorded == ReplayGuard.Result.RECORDED) {
+          recorded = record(key, serverStep + (step - serverStep), serverStep - windowBehind);
+        }
+        if (recorded == ReplayGuard.Result.RECORDED
+            && !clockOffsets.resync(key, step, clockOffset)) {
+          recorded = ReplayGuard.Result.REPLAYED;
+        }
+        if (recorded != ReplayGuard.Result.RECORDED) {
+          metrics.lap(CalloutMetrics.Phase.VERIFY, mark);
+          outcome = CalloutMetrics.Outcome.REPLAY;
+          setReplayFault(recorded, msgCtxt);
+          return ExecutionResult.ABORT;
+        }
+        msgCtxt.setVariable(varName("clock_offset"), Integer.toString(clockOffset));
+        if (failureLimiter != null) {
+          failureLimiter.reset(key);
+        }
+        metrics.lap(CalloutMetrics.Phase.VERIFY, mark);
+        outcome = CalloutMetrics.Outcome.SUCCESS;
+        return ExecutionResult.SUCCESS;
+      }
+
+      // A verification is centered on the step the device is at, if its offset has been learned.
+      int clockOffset = 0;
+      if (clockOffsets != null && expectedValue != null) {
+        clockOffset = clockOffsets.get(key);
+        msgCtxt.setVariable(varName("clock_offset"), Integer.toString(clockOffset));
+      }
+      final long timeStep = serverStep + clockOffset;
+      auditStep = timeStep;
+      int integerCode = -1;
+      if (precomputer != null) {
+        integerCode =
+            precomputer.lookup(key, hashAlgorithm, timeStepSizeInSeconds, codeDigits, timeStep);
+        msgCtxt.setVariable(varName("precompute_hits"), Long.toString(precomputer.getHits()));
+        msgCtxt.setVariable(varName("precompute_misses"), Long.toString(precomputer.getMisses()));
+        msgCtxt.setVariable(
+            varName("precompute_hot_keys"), Integer.toString(precomputer.getHotSetSize()));
+      }
+      if (integerCode < 0) {
+        integerCode = totp.generateForCounter(key, timeStep);
+      }
+      mark = metrics.lap(CalloutMetrics.Phase.HMAC, mark);
+
+      String code = CodeFormat.format(integerCode, codeDigits, leadingZeros);
+      msgCtxt.setVariable(varName("time"), Long.toString(Math.floorDiv(now, 1000L)));
       msgCtxt.setVariable(varName("code"), code);
+      mark = metrics.lap(CalloutMetrics.Phase.FORMAT, mark);
 
-      final String expectedValue = getSimpleOptionalProperty("expected-value", msgCtxt);
       if (expectedValue != null) {
-        if (!expectedValue.equals(code)) {
+        Integer offset =
+            findMatchingOffset(
+                expectedValue,
+                totp,
+                key,
+                timeStep,
+                integerCode,
+                leadingZeros,
+                windowBehind,
+                windowAhead);
+        if (offset == null) {
+          metrics.lap(CalloutMetrics.Phase.VERIFY, mark);
+          outcome = CalloutMetrics.Outcome.MISMATCH;
           msgCtxt.setVariable(varName("error"), "TOTP mismatch");
           msgCtxt.setVariable("fault.name", "totp_mismatch");
           return ExecutionResult.ABORT;
         }
+        msgCtxt.setVariable(varName("offset"), offset.toString());
+        auditStep = timeStep + offset;
+        // steps are recorded on our clock, so that the entries of all keys expire alike
+        ReplayGuard.Result recorded = record(key, serverStep + offset, serverStep - windowBehind);
+        // the step of the device is remembered, so that the code cannot open a later resync
+        if (recorded == ReplayGuard.Result.RECORDED
+            && replayGuard != null
+            && clockOffsets != null
+            && !clockOffsets.accept(key, timeStep + offset)) {
+          recorded = ReplayGuard.Result.REPLAYED;
+        }
+        if (recorded != ReplayGuard.Result.RECORDED) {
+          metrics.lap(CalloutMetrics.Phase.VERIFY, mark);
+          outcome = CalloutMetrics.Outcome.REPLAY;
+          setReplayFault(recorded, msgCtxt);
+          return ExecutionResult.ABORT;
+        }
+        if (failureLimiter != null) {
+          failureLimiter.reset(key);
+        }
+        metrics.lap(CalloutMetrics.Phase.VERIFY, mark);
       }
 
+      outcome = CalloutMetrics.Outcome.SUCCESS;
       return ExecutionResult.SUCCESS;
     } catch (Exception e) {
       setExceptionVariables(e, msgCtxt);
       return ExecutionResult.ABORT;
+    } finally {
+      metrics.count(outcome);
+      // Only verifications are audited. The key is fingerprinted before it is released.
+      if (auditLog != null && expectedValue != null) {
+        auditLog.record(
+            now,
+            auditFingerprint(key, msgCtxt),
+            auditStep,
+            System.nanoTime() - started,
+            outcome);
+      }
+      if (cachedKey != null) {
+        cachedKey.release();
+      }
+      if (debug || metrics.snapshotDue()) {
+        msgCtxt.setVariable(varName("metrics"), metrics.snapshot());
+      }
     }
   }
 }
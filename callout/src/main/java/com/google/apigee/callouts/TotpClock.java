@@ -0,0 +1,42 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.function.Function;
+
+/**
+ * The source of the current time for a policy. Policies use the {@link SystemClock}, unless
+ * the fake-time-millis or fake-time-seconds property is set, in which case they use a
+ * {@link FakeClock}.
+ */
+interface TotpClock {
+
+  /** The current time in milliseconds since the epoch, for the given request. */
+  long currentTimeMillis(MessageContext msgCtxt);
+
+  static TotpClock fromProperties(Function<String, PropertyTemplate> properties) {
+    PropertyTemplate millis = properties.apply("fake-time-millis");
+    if (millis != null) {
+      return new FakeClock(millis, 1L);
+    }
+    PropertyTemplate seconds = properties.apply("fake-time-seconds");
+    if (seconds != null) {
+      return new FakeClock(seconds, 1000L);
+    }
+    return SystemClock.INSTANCE;
+  }
+}
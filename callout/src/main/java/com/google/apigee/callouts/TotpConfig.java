@@ -0,0 +1,176 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.function.Function;
+import javax.crypto.SecretKey;
+
+/**
+ * The settings of a TotpCallout, parsed and validated once, when the callout is created.
+ *
+ * <p>A setting whose property refers to context variables is resolved on each request, and
+ * validated then. Every other setting is fixed for the life of the callout. Either way, an invalid
+ * value is an error, rather than a silent fallback to the default.
+ */
+final class TotpConfig {
+  static final int DEFAULT_TIME_STEP_SECONDS = 30;
+  static final int DEFAULT_CODE_DIGITS = 6;
+  static final int MIN_CODE_DIGITS = 6;
+  static final int MAX_CODE_DIGITS = 10;
+  static final String DEFAULT_HASH_FUNCTION = "HmacSHA1";
+  static final int MAX_WINDOW_STEPS = 10;
+
+  final Setting<String> hashFunction;
+  final Setting<Integer> codeDigits;
+  final Setting<Integer> timeStep;
+  final Setting<Boolean> leadingZeros;
+  final Setting<KeyEncoding> decodeKey;
+  final Setting<Boolean> builtinEngine;
+  final Setting<Integer> windowBehind;
+  final Setting<Integer> windowAhead;
+  final Setting<Boolean> keyWrapping;
+  final Setting<SecretKey> keyEncryptionKey;
+
+  TotpConfig(Function<String, PropertyTemplate> properties) {
+    hashFunction =
+        new Setting<String>(
+            "hash-function", properties, DEFAULT_HASH_FUNCTION, TotpConfig::parseHashFunction);
+    codeDigits =
+        new Setting<Integer>(
+            "code-digits",
+            properties,
+            DEFAULT_CODE_DIGITS,
+            v -> parseInteger("code-digits", v, MIN_CODE_DIGITS, MAX_CODE_DIGITS));
+    timeStep =
+        new Setting<Integer>(
+            "time-step",
+            properties,
+            DEFAULT_TIME_STEP_SECONDS,
+            v -> parseInteger("time-step", v, 1, Integer.MAX_VALUE));
+    leadingZeros =
+        new Setting<Boolean>(
+            "leading-zeros", properties, false, v -> parseBoolean("leading-zeros", v));
+    decodeKey =
+        new Setting<KeyEncoding>("decode-key", properties, KeyEncoding.UTF8, KeyEncoding::parse);
+    builtinEngine =
+        new Setting<Boolean>("hmac-engine", properties, false, TotpConfig::parseHmacEngine);
+    windowBehind =
+        new Setting<Integer>(
+            "window-behind",
+            properties,
+            0,
+            v -> parseInteger("window-behind", v, 0, MAX_WINDOW_STEPS));
+    windowAhead =
+        new Setting<Integer>(
+            "window-ahead",
+            properties,
+            0,
+            v -> parseInteger("window-ahead", v, 0, MAX_WINDOW_STEPS));
+    keyWrapping =
+        new Setting<Boolean>("key-wrapping", properties, false, KeyWrapping::parseKeyWrapping);
+    keyEncryptionKey =
+        new Setting<SecretKey>(
+            "key-encryption-key",
+            properties,
+            null,
+            v -> KeyWrapping.aesKey("key-encryption-key", v));
+  }
+
+  /** A single setting: either a fixed value, or a template that is resolved per request. */
+  static final class Setting<T> {
+    private final String name;
+    private final T defaultValue;
+    private final Function<String, T> parser;
+    private final PropertyTemplate template; // null if the value is fixed
+    private final T value;
+
+    Setting(
+        String name,
+        Function<String, PropertyTemplate> properties,
+        T defaultValue,
+        Function<String, T> parser) {
+      this.name = name;
+      this.defaultValue = defaultValue;
+      this.parser = parser;
+      PropertyTemplate t = properties.apply(name);
+      if (t == null) {
+        this.template = null;
+        this.value = defaultValue;
+      } else if (t.isConstant()) {
+        this.template = null;
+        this.value = parse(t.getConstant());
+      } else {
+        this.template = t;
+        this.value = null;
+      }
+    }
+
+    private T parse(String v) {
+      return v.equals("") ? defaultValue : parser.apply(v);
+    }
+
+    boolean isFixed() {
+      return template == null;
+    }
+
+    T get(MessageContext msgCtxt) {
+      return (template == null) ? value : parse(template.resolve(msgCtxt));
+    }
+
+    String getName() {
+      return name;
+    }
+  }
+
+  static String parseHashFunction(String value) {
+    String v = value.toLowerCase();
+    if ("sha1".equals(v) || "hmacsha1".equals(v)) return "HmacSHA1";
+    if ("sha256".equals(v) || "hmacsha256".equals(v)) return "HmacSHA256";
+    if ("sha512".equals(v) || "hmacsha512".equals(v)) return "HmacSHA512";
+    throw new IllegalStateException("hash-function " + value + " is not supported");
+  }
+
+  static int parseInteger(String name, String value, int min, int max) {
+    int n;
+    try {
+      n = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException(name + " " + value + " is not an integer");
+    }
+    if (n < min || n > max) {
+      throw new IllegalStateException(
+          (max == Integer.MAX_VALUE)
+              ? name + " must be at least " + min + ", found " + value
+              : name + " must be between " + min + " and " + max + ", found " + value);
+    }
+    return n;
+  }
+
+  static boolean parseBoolean(String name, String value) {
+    String v = value.trim().toLowerCase();
+    if (v.equals("true")) return true;
+    if (v.equals("false")) return false;
+    throw new IllegalStateException(name + " must be true or false, found " + value);
+  }
+
+  static boolean parseHmacEngine(String value) {
+    String v = value.toLowerCase();
+    if ("builtin".equals(v)) return true;
+    if ("jca".equals(v)) return false;
+    throw new IllegalStateException("hmac-engine " + value + " is not supported");
+  }
+}
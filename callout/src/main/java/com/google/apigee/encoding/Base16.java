@@ -1,52 +1,104 @@
 package com.google.apigee.encoding;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public class Base16 {
 
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    // Maps each ASCII character to its hexadecimal value, or to -1.
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            DECODE_TABLE[Character.forDigit(i, 16)] = (byte) i;
+            DECODE_TABLE[Character.toUpperCase(Character.forDigit(i, 16))] = (byte) i;
+        }
+    }
+
     /**
-     * Create a byte Array from String of hexadecimal digits using Character conversion
+     * Create a byte Array from String of hexadecimal digits using a lookup table
      * @param hexString - Hexadecimal digits as String
      * @return Desired byte Array
      */
     public static byte[] decode(String hexString) {
-        if (hexString.length() % 2 == 1) {
-            throw new IllegalArgumentException("Invalid hexadecimal String supplied.");
+        return decode((CharSequence) hexString);
+    }
+
+    public static byte[] decode(CharSequence hexString) {
+        byte[] bytes = new byte[decodedLength(hexString)];
+        decode(hexString, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Decode hexadecimal digits into a caller-supplied byte Array
+     * @param hexString - Hexadecimal digits
+     * @param out - The array to write into, with room for hexString.length() / 2 bytes
+     * @param offset - The index in out at which to write the first byte
+     * @return The number of bytes written
+     */
+    public static int decode(CharSequence hexString, byte[] out, int offset) {
+        int length = decodedLength(hexString);
+        if (offset < 0 || out.length - offset < length) {
+            throw new IllegalArgumentException("Output array too small.");
+        }
+        for (int i = 0, j = offset; i < hexString.length(); i += 2, j++) {
+            out[j] = hexToByte(hexString.charAt(i), hexString.charAt(i + 1));
         }
-        byte[] bytes = new byte[hexString.length() / 2];
+        return length;
+    }
 
+    /**
+     * Decode hexadecimal digits into a ByteBuffer, starting at its position, and
+     * advance the position past the bytes written
+     * @param hexString - Hexadecimal digits
+     * @param out - The buffer to write into
+     * @return The number of bytes written
+     */
+    public static int decode(CharSequence hexString, ByteBuffer out) {
+        int length = decodedLength(hexString);
+        if (out.remaining() < length) {
+            throw new BufferOverflowException();
+        }
         for (int i = 0; i < hexString.length(); i += 2) {
-            bytes[i / 2] = hexToByte(hexString.substring(i, i + 2));
+            out.put(hexToByte(hexString.charAt(i), hexString.charAt(i + 1)));
         }
-        return bytes;
+        return length;
+    }
+
+    private static int decodedLength(CharSequence hexString) {
+        if (hexString.length() % 2 == 1) {
+            throw new IllegalArgumentException("Invalid hexadecimal String supplied.");
+        }
+        return hexString.length() / 2;
     }
 
     /**
-     * Create a String of hexadecimal digits from a byte Array using Character conversion
+     * Create a String of hexadecimal digits from a byte Array using a lookup table
      * @param byteArray - The byte Array
      * @return Desired String of hexadecimal digits in lower case
      */
     public static String encode(byte[] byteArray) {
-        StringBuffer hexStringBuffer = new StringBuffer();
-        for (int i = 0; i < byteArray.length; i++) {
-            hexStringBuffer.append(byteToHex(byteArray[i]));
+        char[] hexDigits = new char[byteArray.length * 2];
+        for (int i = 0, j = 0; i < byteArray.length; i++) {
+            hexDigits[j++] = DIGITS[(byteArray[i] >> 4) & 0xF];
+            hexDigits[j++] = DIGITS[byteArray[i] & 0xF];
         }
-        return hexStringBuffer.toString();
-    }
-
-    private static String byteToHex(byte num) {
-        char[] hexDigits = new char[2];
-        hexDigits[0] = Character.forDigit((num >> 4) & 0xF, 16);
-        hexDigits[1] = Character.forDigit((num & 0xF), 16);
         return new String(hexDigits);
     }
 
-    private static byte hexToByte(String hexString) {
-        int firstDigit = toDigit(hexString.charAt(0));
-        int secondDigit = toDigit(hexString.charAt(1));
+    private static byte hexToByte(char high, char low) {
+        int firstDigit = toDigit(high);
+        int secondDigit = toDigit(low);
         return (byte) ((firstDigit << 4) + secondDigit);
     }
 
     private static int toDigit(char hexChar) {
-        int digit = Character.digit(hexChar, 16);
+        int digit = (hexChar < 128) ? DECODE_TABLE[hexChar] : -1;
         if(digit == -1) {
             throw new IllegalArgumentException("Invalid Hexadecimal Character: "+ hexChar);
         }
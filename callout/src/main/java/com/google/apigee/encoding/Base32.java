@@ -18,8 +18,6 @@ package com.google.apigee.encoding;
 
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Locale;
 
 /**
  * Encodes arbitrary byte arrays as case-insensitive base-32 strings.
@@ -53,7 +51,13 @@ public class Base32 {
     private char[] DIGITS;
     private int MASK;
     private int SHIFT;
-    private HashMap<Character, Integer> CHAR_MAP;
+    // Maps each ASCII character to its value in the alphabet, or to one of the
+    // negative markers below. Letters map the same in either case.
+    private int[] DECODE_TABLE;
+
+    private static final int INVALID = -1;
+    private static final int SKIP = -2; // separators, removed wherever they appear
+    private static final int PAD = -3;
 
     static final String SEPARATOR = "-";
 
@@ -62,54 +66,112 @@ public class Base32 {
         DIGITS = ALPHABET.toCharArray();
         MASK = DIGITS.length - 1;
         SHIFT = Integer.numberOfTrailingZeros(DIGITS.length);
-        CHAR_MAP = new HashMap<Character, Integer>();
+        DECODE_TABLE = new int[128];
+        Arrays.fill(DECODE_TABLE, INVALID);
         for (int i = 0; i < DIGITS.length; i++) {
-            CHAR_MAP.put(DIGITS[i], i);
+            DECODE_TABLE[Character.toUpperCase(DIGITS[i])] = i;
+            DECODE_TABLE[Character.toLowerCase(DIGITS[i])] = i;
         }
+        DECODE_TABLE[SEPARATOR.charAt(0)] = SKIP;
+        DECODE_TABLE[' '] = SKIP;
+        DECODE_TABLE['='] = PAD;
     }
 
     public static byte[] decode(String encoded) throws DecodingException {
-        return getInstance().decodeInternal(encoded);
+        return getInstance().decodeInternal(encoded, false);
     }
 
-    protected byte[] decodeInternal(String encoded) throws DecodingException {
-        // Remove whitespace and separators
-        encoded = encoded.trim().replaceAll(SEPARATOR, "").replaceAll(" ", "");
+    public static byte[] decode(CharSequence encoded) throws DecodingException {
+        return getInstance().decodeInternal(encoded, false);
+    }
 
-        // Remove padding. Note: the padding is used as hint to determine how many
-        // bits to decode from the last incomplete chunk (which is commented out
-        // below, so this may have been wrong to start with).
-        encoded = encoded.replaceFirst("[=]*$", "");
+    /**
+     * Decodes strictly per RFC 4648: the number of characters must be one that
+     * an encoder can produce, and the bits left over in the last character must
+     * be zero. Padding is optional, but if present it must be complete.
+     */
+    public static byte[] decodeStrict(CharSequence encoded) throws DecodingException {
+        return getInstance().decodeInternal(encoded, true);
+    }
+
+    /**
+     * Decodes into a caller-supplied array, starting at offset, and returns the
+     * number of bytes written. The array needs room for at most
+     * {@code encoded.length() * 5 / 8} bytes.
+     */
+    public static int decode(CharSequence encoded, byte[] out, int offset)
+            throws DecodingException {
+        return getInstance().decodeInternal(encoded, out, offset, false);
+    }
+
+    public static int decodeStrict(CharSequence encoded, byte[] out, int offset)
+            throws DecodingException {
+        return getInstance().decodeInternal(encoded, out, offset, true);
+    }
+
+    protected byte[] decodeInternal(CharSequence encoded, boolean strict)
+            throws DecodingException {
+        // An upper bound; it is exact unless there are separators or padding.
+        byte[] result = new byte[encoded.length() * SHIFT / 8];
+        int length = decodeInternal(encoded, result, 0, strict);
+        return (length == result.length) ? result : Arrays.copyOf(result, length);
+    }
 
-        // Canonicalize to all upper case
-        encoded = encoded.toUpperCase(Locale.US);
-        if (encoded.length() == 0) {
-            return new byte[0];
+    protected int decodeInternal(CharSequence encoded, byte[] out, int offset, boolean strict)
+            throws DecodingException {
+        // Ignore leading and trailing whitespace, as String.trim() does.
+        int start = 0;
+        int end = encoded.length();
+        while (start < end && encoded.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && encoded.charAt(end - 1) <= ' ') {
+            end--;
         }
-        int encodedLength = encoded.length();
-        int outLength = encodedLength * SHIFT / 8;
-        byte[] result = new byte[outLength];
         int buffer = 0;
-        int next = 0;
+        int next = offset;
         int bitsLeft = 0;
-        for (char c : encoded.toCharArray()) {
-            if (!CHAR_MAP.containsKey(c)) {
+        int chars = 0;
+        int padding = 0;
+        for (int i = start; i < end; i++) {
+            char c = encoded.charAt(i);
+            int value = (c < 128) ? DECODE_TABLE[c] : INVALID;
+            if (value >= 0 && padding == 0) {
+                buffer <<= SHIFT;
+                buffer |= value;
+                bitsLeft += SHIFT;
+                chars++;
+                if (bitsLeft >= 8) {
+                    out[next++] = (byte) (buffer >> (bitsLeft - 8));
+                    bitsLeft -= 8;
+                }
+            } else if (value == PAD) {
+                padding++;
+            } else if (value != SKIP) {
+                // a data character after padding is also illegal
                 throw new DecodingException("Illegal character: " + c);
             }
-            buffer <<= SHIFT;
-            buffer |= CHAR_MAP.get(c) & MASK;
-            bitsLeft += SHIFT;
-            if (bitsLeft >= 8) {
-                result[next++] = (byte) (buffer >> (bitsLeft - 8));
-                bitsLeft -= 8;
-            }
         }
-        // We'll ignore leftover bits for now.
-        //
-        // if (next != outLength || bitsLeft >= SHIFT) {
-        //  throw new DecodingException("Bits left: " + bitsLeft);
-        // }
-        return result;
+        if (strict) {
+            checkStrict(chars, padding, buffer, bitsLeft);
+        }
+        // Otherwise, ignore leftover bits.
+        return next - offset;
+    }
+
+    private void checkStrict(int chars, int padding, int buffer, int bitsLeft)
+            throws DecodingException {
+        // Per RFC 4648 section 6, a final quantum of 1, 3 or 6 characters is impossible.
+        int remainder = chars % 8;
+        if (remainder == 1 || remainder == 3 || remainder == 6) {
+            throw new DecodingException("Invalid length: " + chars);
+        }
+        if (padding != 0 && (chars + padding) % 8 != 0) {
+            throw new DecodingException("Invalid padding: " + padding);
+        }
+        if (bitsLeft >= SHIFT || (buffer & ((1 << bitsLeft) - 1)) != 0) {
+            throw new DecodingException("Bits left: " + bitsLeft);
+        }
     }
 
     public static String encode(byte[] data) {
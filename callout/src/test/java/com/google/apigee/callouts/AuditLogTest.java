@@ -0,0 +1,221 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AuditLogTest {
+
+  private static Path newFile() throws Exception {
+    Path path = Files.createTempFile("totp-audit", ".bin");
+    Files.delete(path);
+    path.toFile().deleteOnExit();
+    path.resolveSibling(path.getFileName() + ".lock").toFile().deleteOnExit();
+    return path;
+  }
+
+  /** Returns the records of the file, each as time, fingerprint, step, latency, outcome. */
+  static List<long[]> read(Path path) throws Exception {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+    Assert.assertEquals(buffer.getInt(), AuditLog.MAGIC);
+    Assert.assertEquals(buffer.getInt(), AuditLog.VERSION);
+    Assert.assertEquals(buffer.getInt(), AuditLog.RECORD_SIZE);
+    buffer.position(AuditLog.HEADER_SIZE);
+    Assert.assertEquals(buffer.remaining() % AuditLog.RECORD_SIZE, 0);
+    List<long[]> records = new ArrayList<long[]>();
+    while (buffer.hasRemaining()) {
+      long[] record = {
+        buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.get() & 0xff
+      };
+      buffer.position(buffer.position() + 3);
+      records.add(record);
+    }
+    return records;
+  }
+
+  @Test
+  public void test_RecordsAreWrittenInOrder() throws Exception {
+    Path path = newFile();
+    AuditLog log = AuditLog.open(path, 1024, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(log.record(1000L + i, 7L, i, 250L, CalloutMetrics.Outcome.MISMATCH));
+    }
+    log.close();
+    List<long[]> records = read(path);
+    Assert.assertEquals(records.size(), 100);
+    for (int i = 0; i < 100; i++) {
+      long[] record = records.get(i);
+      Assert.assertEquals(record[0], 1000L + i);
+      Assert.assertEquals(record[1], 7L);
+      Assert.assertEquals(record[2], (long) i);
+      Assert.assertEquals(record[3], 250L);
+      Assert.assertEquals(record[4], (long) CalloutMetrics.Outcome.MISMATCH.ordinal());
+    }
+    Assert.assertEquals(log.getWritten(), 100L);
+    Assert.assertEquals(log.getDropped(), 0L);
+  }
+
+  @Test
+  public void test_ConcurrentRecordsAreAllWrittenOrCounted() throws Exception {
+    Path path = newFile();
+    final AuditLog log = AuditLog.open(path, 64, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final long fingerprint = t;
+      threads[t] =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 20000; i++) {
+                  log.record(1L, fingerprint, i, 1L, CalloutMetrics.Outcome.SUCCESS);
+                }
+              });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    log.close();
+    Assert.assertEquals(log.getRecorded() + log.getDropped(), 80000L);
+    long events = 0L;
+    long reportedDrops = 0L;
+    long[] lastStep = {-1L, -1L, -1L, -1L};
+    for (long[] record : read(path)) {
+      if (record[4] == AuditLog.DROPPED) {
+        reportedDrops += record[2];
+        continue;
+      }
+      events++;
+      int thread = (int) record[1];
+      // events from one thread keep their order
+      Assert.assertTrue(record[2] > lastStep[thread]);
+      lastStep[thread] = record[2];
+    }
+    Assert.assertEquals(events, log.getRecorded());
+    Assert.assertEquals(reportedDrops, log.getDropped());
+  }
+
+  @Test
+  public void test_RecordAfterCloseIsDropped() throws Exception {
+    AuditLog log = AuditLog.open(newFile(), 64, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+    log.close();
+    Assert.assertFalse(log.record(1L, 2L, 3L, 4L, CalloutMetrics.Outcome.SUCCESS));
+    Assert.assertEquals(log.getDropped(), 1L);
+  }
+
+  @Test
+  public void test_SecondWriterWaitsForLock() throws Exception {
+    Path path = newFile();
+    AuditLog first = AuditLog.create(path, 64, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+    Assert.assertTrue(first.record(1L, 1L, 1L, 1L, CalloutMetrics.Outcome.SUCCESS));
+    // as after a redeploy, when the policies of the old deployment still hold their log
+    AuditLog second = AuditLog.create(path, 64, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+    Assert.assertTrue(second.record(2L, 2L, 2L, 2L, CalloutMetrics.Outcome.SUCCESS));
+    Thread.sleep(100L);
+    Assert.assertEquals(second.getWritten(), 0L);
+    first.close();
+    second.close();
+    List<long[]> records = read(path);
+    Assert.assertEquals(records.size(), 2);
+    Assert.assertEquals(records.get(0)[1], 1L);
+    Assert.assertEquals(records.get(1)[1], 2L);
+  }
+
+  @Test
+  public void test_CollectedLogStopsItsWriter() throws Exception {
+    Path path = newFile();
+    AuditLog first = AuditLog.create(path, 64, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+    Assert.assertTrue(first.record(1L, 1L, 1L, 1L, CalloutMetrics.Outcome.SUCCESS));
+    first = null;
+    AuditLog second = AuditLog.create(path, 64, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+    Assert.assertTrue(second.record(2L, 2L, 2L, 2L, CalloutMetrics.Outcome.SUCCESS));
+    for (int i = 0; i < 100 && second.getWritten() == 0L; i++) {
+      System.gc();
+      Thread.sleep(50L);
+    }
+    Assert.assertEquals(second.getWritten(), 1L);
+    second.close();
+    List<long[]> records = read(path);
+    Assert.assertEquals(records.size(), 2);
+    Assert.assertEquals(records.get(0)[1], 1L);
+  }
+
+  @Test
+  public void test_FingerprintIsKeyed() {
+    SecretKey auditKey = AuditLog.auditKey("000102030405060708090a0b0c0d0e0f");
+    SecretKey otherKey = AuditLog.auditKey("0f0e0d0c0b0a09080706050403020100");
+    byte[] key = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(AuditLog.fingerprint(auditKey, key), AuditLog.fingerprint(auditKey, key));
+    Assert.assertNotEquals(
+        AuditLog.fingerprint(auditKey, key), AuditLog.fingerprint(otherKey, key));
+    try {
+      AuditLog.auditKey("0011");
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "audit-key must be at least 16 bytes");
+    }
+  }
+
+  @Test
+  public void test_FingerprintReusesMacAcrossKeys() throws Exception {
+    SecretKey auditKey = AuditLog.auditKey("000102030405060708090a0b0c0d0e0f");
+    SecretKey sameKey = AuditLog.auditKey("000102030405060708090a0b0c0d0e0f");
+    SecretKey otherKey = AuditLog.auditKey("0f0e0d0c0b0a09080706050403020100");
+    byte[] key = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(auditKey);
+    long expected = ByteBuffer.wrap(mac.doFinal(key)).getLong();
+    Assert.assertEquals(AuditLog.fingerprint(auditKey, key), expected);
+    Assert.assertNotEquals(AuditLog.fingerprint(otherKey, key), expected);
+    Assert.assertEquals(AuditLog.fingerprint(sameKey, key), expected);
+    Assert.assertEquals(AuditLog.fingerprint(auditKey, key), expected);
+  }
+
+  @Test
+  public void test_Roll() throws Exception {
+    Path path = newFile();
+    AuditLog log = AuditLog.open(path, 1024, 4096, 2);
+    // 127 records and the header fill a file of 4096 bytes, so each round gets a file of its own
+    for (int round = 0; round < 4; round++) {
+      for (int i = 0; i < 127; i++) {
+        Assert.assertTrue(log.record(1L, 2L, round * 127 + i, 4L, CalloutMetrics.Outcome.SUCCESS));
+      }
+      long deadline = System.currentTimeMillis() + 5000L;
+      while (log.getWritten() < (round + 1) * 127L && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5L);
+      }
+    }
+    log.close();
+    Assert.assertEquals(log.getRolls(), 3L);
+    Path first = path.resolveSibling(path.getFileName() + ".1");
+    Path second = path.resolveSibling(path.getFileName() + ".2");
+    first.toFile().deleteOnExit();
+    second.toFile().deleteOnExit();
+    Assert.assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".3")));
+    Assert.assertEquals(read(path).size(), 127);
+    Assert.assertEquals(read(path).get(0)[2], 381L);
+    Assert.assertEquals(read(first).get(0)[2], 254L);
+    Assert.assertEquals(read(second).get(0)[2], 127L);
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BackgroundTasksTest {
+
+  @Test
+  public void test_TaskStopsOnceOwnerIsCollected() throws Exception {
+    AtomicInteger runs = new AtomicInteger();
+    Object owner = new Object();
+    ScheduledFuture<?> task =
+        BackgroundTasks.scheduleAtFixedRate(
+            owner, o -> runs.incrementAndGet(), 10L, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 100 && runs.get() < 3; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(runs.get() >= 3, "ran " + runs.get() + " times");
+    Assert.assertFalse(task.isDone());
+
+    owner = null;
+    for (int i = 0; i < 100 && !task.isDone(); i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(task.isCancelled());
+    int stopped = runs.get();
+    Thread.sleep(50);
+    Assert.assertEquals(runs.get(), stopped);
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BulkToolTest {
+  // RFC 6238, Appendix B: the SHA1 key, at T = 59 seconds
+  private static final String KEY = "3132333435363738393031323334353637383930";
+  private static final String CODE = "94287082";
+
+  private static Path newFile(String suffix, String content) throws Exception {
+    Path path = Files.createTempFile("bulk", suffix);
+    path.toFile().deleteOnExit();
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  private static Map<String, String> options() {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("decode-key", "hex");
+    options.put("code-digits", "8");
+    options.put("time", "59");
+    return options;
+  }
+
+  private static String run(Map<String, String> options, Path input, BulkTool.Summary[] summary)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    summary[0] = new BulkTool(options, input).run(input, out);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void test_Csv() throws Exception {
+    Path input =
+        newFile(
+            ".csv",
+            "id,key,code\n"
+                + "alice,"
+                + KEY
+                + "\n"
+                + "bob,"
+                + KEY
+                + ","
+                + CODE
+                + "\r\n"
+                + "carol,"
+                + KEY
+                + ",12345678\n"
+                + "\n"
+                + "dave,not-hex,"
+                + CODE
+                + "\n");
+    BulkTool.Summary[] summary = new BulkTool.Summary[1];
+    String output = run(options(), input, summary);
+    String[] lines = output.split("\n");
+    Assert.assertEquals(lines.length, 4, output);
+    Assert.assertEquals(lines[0], "alice," + CODE);
+    Assert.assertEquals(lines[1], "bob,true");
+    Assert.assertEquals(lines[2], "carol,false");
+    Assert.assertTrue(lines[3].startsWith("dave,error "), lines[3]);
+    Assert.assertEquals(summary[0].records, 4L);
+    Assert.assertEquals(summary[0].valid, 1L);
+    Assert.assertEquals(summary[0].invalid, 1L);
+    Assert.assertEquals(summary[0].errors, 1L);
+  }
+
+  @Test
+  public void test_Jsonl() throws Exception {
+    Path input =
+        newFile(
+            ".jsonl",
+            "{\"id\":\"alice\",\"key\":\""
+                + KEY
+                + "\"}\n"
+                + "{\"id\":\"bob\",\"key\":\"12345678901234567890\",\"decode-key\":\"utf8\","
+                + "\"code\":\""
+                + CODE
+                + "\"}\n"
+                + "[1,2]\n");
+    BulkTool.Summary[] summary = new BulkTool.Summary[1];
+    String output = run(options(), input, summary);
+    String[] lines = output.split("\n");
+    Assert.assertEquals(lines.length, 3, output);
+    Assert.assertEquals(lines[0], "{\"id\":\"alice\",\"code\":\"" + CODE + "\"}");
+    Assert.assertEquals(lines[1], "{\"id\":\"bob\",\"valid\":true}");
+    Assert.assertEquals(
+        lines[2], "{\"id\":null,\"error\":\"a record must be a JSON object\"}");
+  }
+
+  @Test
+  public void test_ManyChunksKeepTheirOrder() throws Exception {
+    StringBuilder content = new StringBuilder();
+    int records = 20000;
+    for (int i = 0; i < records; i++) {
+      content.append("user").append(i).append(',').append(KEY);
+      if (i % 3 == 0) {
+        content.append(',').append(CODE);
+      } else if (i % 3 == 1) {
+        content.append(",00000000");
+      }
+      content.append('\n');
+    }
+    Path input = newFile(".csv", content.toString());
+    Map<String, String> options = options();
+    options.put("chunk-size", "1024");
+    options.put("parallelism", "4");
+    BulkTool.Summary[] summary = new BulkTool.Summary[1];
+    String[] lines = run(options, input, summary).split("\n");
+    Assert.assertEquals(lines.length, records);
+    for (int i = 0; i < records; i++) {
+      String expected =
+          "user" + i + "," + ((i % 3 == 0) ? "true" : (i % 3 == 1) ? "false" : CODE);
+      Assert.assertEquals(lines[i], expected);
+    }
+    Assert.assertEquals(summary[0].records, (long) records);
+    Assert.assertEquals(summary[0].errors, 0L);
+  }
+
+  @Test
+  public void test_OptionsMustBeConstant() throws Exception {
+    Map<String, String> options = options();
+    options.put("code-digits", "{digits}");
+    try {
+      new BulkTool(options, newFile(".csv", ""));
+      Assert.fail("expected an exception");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(e.getMessage(), "code-digits cannot refer to variables");
+    }
+  }
+
+  @Test
+  public void test_LineLongerThanChunk() throws Exception {
+    StringBuilder id = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      id.append('x');
+    }
+    Path input = newFile(".csv", "a," + KEY + "\n" + id + "," + KEY + "," + CODE + "\nb," + KEY);
+    Map<String, String> options = options();
+    options.put("chunk-size", "1024");
+    BulkTool.Summary[] summary = new BulkTool.Summary[1];
+    String[] lines = run(options, input, summary).split("\n");
+    Assert.assertEquals(lines.length, 3);
+    Assert.assertEquals(lines[0], "a," + CODE);
+    Assert.assertEquals(lines[1], id + ",true");
+    Assert.assertEquals(lines[2], "b," + CODE);
+  }
+
+  @Test
+  public void test_InvalidTime() throws Exception {
+    Map<String, String> options = options();
+    options.put("time", "yesterday");
+    try {
+      new BulkTool(options, newFile(".csv", ""));
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "time yesterday is not an integer");
+    }
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CalloutMetricsTest {
+  private static final String EMPTY_PHASES =
+      ";resolve=0/0/0/0;decode=0/0/0/0;generator=0/0/0/0"
+          + ";hmac=0/0/0/0;format=0/0/0/0;verify=0/0/0/0";
+
+  @Test
+  public void test_Disabled() {
+    CalloutMetrics metrics = CalloutMetrics.DISABLED;
+    long mark = metrics.start();
+    Assert.assertEquals(mark, 0L);
+    Assert.assertEquals(metrics.lap(CalloutMetrics.Phase.HMAC, mark), 0L);
+    metrics.count(CalloutMetrics.Outcome.SUCCESS);
+    Assert.assertFalse(metrics.snapshotDue());
+    Assert.assertEquals(
+        metrics.snapshot(), "success=0,mismatch=0,replay=0,locked=0,exception=0" + EMPTY_PHASES);
+  }
+
+  @Test
+  public void test_Snapshot() {
+    CalloutMetrics metrics = new CalloutMetrics(true, 0L);
+    long mark = metrics.start();
+    for (int i = 0; i < 98; i++) {
+      metrics.lap(CalloutMetrics.Phase.HMAC, mark);
+    }
+    long next = metrics.lap(CalloutMetrics.Phase.DECODE, mark);
+    Assert.assertTrue(next >= mark);
+    metrics.count(CalloutMetrics.Outcome.SUCCESS);
+    metrics.count(CalloutMetrics.Outcome.SUCCESS);
+    metrics.count(CalloutMetrics.Outcome.MISMATCH);
+    String snapshot = metrics.snapshot();
+    Assert.assertTrue(
+        snapshot.startsWith(
+            "success=2,mismatch=1,replay=0,locked=0,exception=0;resolve=0/0/0/0;decode=1/"),
+        snapshot);
+    Assert.assertTrue(snapshot.contains(";hmac=98/"), snapshot);
+  }
+
+  @Test
+  public void test_Percentiles() throws Exception {
+    CalloutMetrics metrics = new CalloutMetrics(true, 0L);
+    // 99 quick phases, then one slow one
+    for (int i = 0; i < 99; i++) {
+      long mark = metrics.start();
+      metrics.lap(CalloutMetrics.Phase.FORMAT, mark);
+    }
+    long mark = metrics.start();
+    Thread.sleep(5);
+    metrics.lap(CalloutMetrics.Phase.FORMAT, mark);
+
+    String snapshot = metrics.snapshot();
+    String format = snapshot.substring(snapshot.indexOf(";format=") + 8);
+    format = format.substring(0, format.indexOf(';'));
+    String[] parts = format.split("/");
+    Assert.assertEquals(parts[0], "100");
+    long p50 = Long.parseLong(parts[1]);
+    long p99 = Long.parseLong(parts[2]);
+    long max = Long.parseLong(parts[3]);
+    // the percentiles are bucket bounds, one less than a power of two
+    Assert.assertEquals(Long.bitCount(p50 + 1), 1, format);
+    Assert.assertTrue(p50 < 1000000L, format);
+    Assert.assertTrue(p99 < 1000000L, format);
+    Assert.assertTrue(max >= 5000000L, format);
+  }
+
+  @Test
+  public void test_SnapshotDueOncePerInterval() throws Exception {
+    CalloutMetrics metrics = new CalloutMetrics(true, 20L, TimeUnit.MILLISECONDS);
+    Assert.assertFalse(metrics.snapshotDue());
+    Thread.sleep(30);
+    Assert.assertTrue(metrics.snapshotDue());
+    Assert.assertFalse(metrics.snapshotDue());
+    Assert.assertFalse(new CalloutMetrics(true, 0L).snapshotDue());
+  }
+}
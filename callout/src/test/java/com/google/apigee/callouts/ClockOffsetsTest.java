@@ -0,0 +1,142 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ClockOffsetsTest {
+  private static final byte[] KEY = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+  private static final long STEP = 1234567890L / 30L;
+
+  private static byte[] key(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String code(long step) throws Exception {
+    OtpGenerator totp = OtpGenerator.forCurrentThread("HmacSHA1", 30, 6);
+    return CodeFormat.format(totp.generateForCounter(KEY, step), 6, true);
+  }
+
+  private static Long resync(ForkJoinPool pool, long deviceStep, int rangeSteps)
+      throws Exception {
+    return new ClockResync(
+            "HmacSHA1", 30, 6, false, true, KEY, code(deviceStep - 1), code(deviceStep), STEP)
+        .find(pool, rangeSteps);
+  }
+
+  @Test
+  public void test_ResyncAndGet() {
+    ClockOffsets offsets = new ClockOffsets(1024);
+    Assert.assertEquals(offsets.get(key("alice")), 0);
+    Assert.assertTrue(offsets.resync(key("alice"), STEP - 240, -240));
+    Assert.assertTrue(offsets.resync(key("bob"), STEP + 17, 17));
+    Assert.assertEquals(offsets.get(key("alice")), -240);
+    Assert.assertEquals(offsets.get(key("bob")), 17);
+    Assert.assertTrue(offsets.resync(key("alice"), STEP + 10, 3));
+    Assert.assertEquals(offsets.get(key("alice")), 3);
+    Assert.assertTrue(offsets.resync(key("alice"), STEP + 20, 0));
+    Assert.assertEquals(offsets.get(key("alice")), 0);
+    Assert.assertEquals(offsets.get(key("bob")), 17);
+    Assert.assertEquals(offsets.getEvictions(), 0L);
+  }
+
+  @Test
+  public void test_StepAtOrBeforeLastAcceptedIsRefused() {
+    ClockOffsets offsets = new ClockOffsets(1024);
+    Assert.assertTrue(offsets.resync(key("alice"), STEP + 100, 100));
+    // the same pair, replayed later, finds the same step of the device
+    Assert.assertFalse(offsets.resync(key("alice"), STEP + 100, 97));
+    Assert.assertEquals(offsets.get(key("alice")), 100);
+    Assert.assertFalse(offsets.accept(key("alice"), STEP + 99));
+    Assert.assertTrue(offsets.accept(key("alice"), STEP + 101));
+    Assert.assertFalse(offsets.accept(key("alice"), STEP + 101));
+    Assert.assertFalse(offsets.resync(key("alice"), STEP + 101, 100));
+    // a key without an entry has no last step
+    Assert.assertTrue(offsets.accept(key("bob"), STEP));
+    Assert.assertFalse(offsets.resync(key("bob"), STEP, 0));
+    Assert.assertEquals(offsets.get(key("bob")), 0);
+  }
+
+  @Test
+  public void test_Eviction() {
+    ClockOffsets offsets = new ClockOffsets(4);
+    for (int i = 0; i < 5; i++) {
+      offsets.resync(key("user" + i), STEP + i + 1, i + 1);
+    }
+    Assert.assertEquals(offsets.getEvictions(), 1L);
+    int found = 0;
+    for (int i = 0; i < 5; i++) {
+      int offset = offsets.get(key("user" + i));
+      if (offset != 0) {
+        Assert.assertEquals(offset, i + 1);
+        found++;
+      }
+    }
+    Assert.assertEquals(found, 4);
+  }
+
+  @Test
+  public void test_EvictionPrefersKeysWithoutOffset() {
+    ClockOffsets offsets = new ClockOffsets(4);
+    offsets.accept(key("alice"), STEP);
+    for (int i = 0; i < 4; i++) {
+      offsets.resync(key("user" + i), STEP + i + 1, i + 1);
+    }
+    Assert.assertEquals(offsets.getEvictions(), 1L);
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals(offsets.get(key("user" + i)), i + 1);
+    }
+  }
+
+  @Test
+  public void test_InvalidCapacity() {
+    try {
+      new ClockOffsets(2);
+      Assert.fail("expected an exception");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(e.getMessage(), "offset-table-size must be between 4 and 16777216");
+    }
+  }
+
+  @Test
+  public void test_Resync() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int offset : new int[] {0, 1, -1, 100, -239, 240}) {
+        Assert.assertEquals(resync(pool, STEP + offset, 240), Long.valueOf(STEP + offset));
+        Assert.assertEquals(resync(null, STEP + offset, 240), Long.valueOf(STEP + offset));
+      }
+      Assert.assertNull(resync(pool, STEP + 241, 240));
+      Assert.assertNull(resync(pool, STEP - 241, 240));
+      Assert.assertNull(resync(null, STEP + 20, 10));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void test_ResyncNeedsConsecutiveCodes() throws Exception {
+    ClockResync resync =
+        new ClockResync(
+            "HmacSHA1", 30, 6, false, true, KEY, code(STEP + 40), code(STEP + 42), STEP);
+    Assert.assertNull(resync.find(ForkJoinPool.commonPool(), 240));
+    resync = new ClockResync("HmacSHA1", 30, 6, false, true, KEY, "12a456", code(STEP), STEP);
+    Assert.assertNull(resync.find(null, 240));
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.lang.management.ManagementFactory;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+public class CodeFormatTest {
+
+  private static String legacyFormat(int code, int codeDigits, boolean leadingZeros) {
+    return (leadingZeros)
+        ? String.format(String.format("%%0%dd", codeDigits), code)
+        : Integer.toString(code);
+  }
+
+  @Test
+  public void test_MatchesLegacyFormat() {
+    int[] codes = {0, 7, 42, 12345, 123456, 9999999, 89005924, 1094287082, Integer.MAX_VALUE};
+    for (int codeDigits = 6; codeDigits <= 10; codeDigits++) {
+      for (int code : codes) {
+        for (boolean leadingZeros : new boolean[] {false, true}) {
+          String expected = legacyFormat(code, codeDigits, leadingZeros);
+          Assert.assertEquals(CodeFormat.format(code, codeDigits, leadingZeros), expected);
+          Assert.assertEquals(CodeFormat.digitCount(code), Integer.toString(code).length());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void test_Matches() {
+    Assert.assertTrue(CodeFormat.matches("012345", 12345, 6, true));
+    Assert.assertFalse(CodeFormat.matches("12345", 12345, 6, true));
+    Assert.assertTrue(CodeFormat.matches("12345", 12345, 6, false));
+    Assert.assertFalse(CodeFormat.matches("012345", 12345, 6, false));
+    Assert.assertTrue(CodeFormat.matches("0", 0, 6, false));
+    Assert.assertTrue(CodeFormat.matches("000000", 0, 6, true));
+    Assert.assertFalse(CodeFormat.matches("", 0, 6, false));
+    Assert.assertFalse(CodeFormat.matches("12a456", 12456, 6, false));
+    Assert.assertFalse(CodeFormat.matches("-12345", 12345, 6, false));
+    Assert.assertFalse(CodeFormat.matches("99999999999", 1, 10, false));
+    Assert.assertFalse(CodeFormat.matches("not-correct-value", 89005924, 8, false));
+    Assert.assertTrue(CodeFormat.matches("2147483647", Integer.MAX_VALUE, 10, false));
+  }
+
+  @Test
+  public void test_VerifyPathDoesNotAllocate() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      throw new SkipException("thread allocation counters are not available");
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+      throw new SkipException("thread allocation counters are disabled");
+    }
+    long threadId = Thread.currentThread().getId();
+    char[] buf = new char[CodeFormat.MAX_DIGITS];
+    String expected = "089005924";
+    int iterations = 100000;
+    int matches = 0;
+    // warm up, so that the measured loop does not include class loading or the like
+    for (int i = 0; i < iterations; i++) {
+      matches += CodeFormat.render(89005924 + i, 9, true, buf);
+      matches += CodeFormat.matches(expected, 89005924, 9, true) ? 1 : 0;
+    }
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      matches += CodeFormat.render(89005924 + i, 9, true, buf);
+      matches += CodeFormat.matches(expected, 89005924, 9, true) ? 1 : 0;
+    }
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+    Assert.assertTrue(matches > 0);
+    // Allow for the measurement itself; anything per-iteration would be far more than this.
+    Assert.assertTrue(allocated < 1024, "allocated " + allocated + " bytes");
+  }
+}
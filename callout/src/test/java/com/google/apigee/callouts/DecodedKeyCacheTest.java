@@ -0,0 +1,109 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DecodedKeyCacheTest {
+
+  private final AtomicInteger decodeCount = new AtomicInteger();
+  private final Function<String, byte[]> decoder =
+      s -> {
+        decodeCount.incrementAndGet();
+        return s.getBytes(StandardCharsets.UTF_8);
+      };
+
+  @BeforeMethod()
+  public void beforeMethod() {
+    decodeCount.set(0);
+  }
+
+  @Test
+  public void test_HitsAndMisses() {
+    DecodedKeyCache cache = new DecodedKeyCache(10, 60);
+    cache.acquire("base32", "AAAA", decoder).release();
+    cache.acquire("base32", "AAAA", decoder).release();
+    cache.acquire("base16", "AAAA", decoder).release();
+    Assert.assertEquals(cache.getHits(), 1L);
+    Assert.assertEquals(cache.getMisses(), 2L);
+    Assert.assertEquals(decodeCount.get(), 2);
+  }
+
+  @Test
+  public void test_ModeIsPartOfTheKey() {
+    DecodedKeyCache cache = new DecodedKeyCache(10, 60);
+    cache.acquire("a", "bc", decoder).release();
+    cache.acquire("ab", "c", decoder).release();
+    cache.acquire("a", new String("bc"), decoder).release();
+    Assert.assertEquals(cache.getHits(), 1L);
+    Assert.assertEquals(decodeCount.get(), 2);
+  }
+
+  @Test
+  public void test_SizeIsBounded() {
+    DecodedKeyCache cache = new DecodedKeyCache(16, 60);
+    for (int i = 0; i < 1000; i++) {
+      cache.acquire("none", "key-" + i, decoder).release();
+    }
+    Assert.assertTrue(cache.size() <= 16, "size: " + cache.size());
+  }
+
+  @Test
+  public void test_EvictedEntryZeroizedAfterRelease() {
+    DecodedKeyCache cache = new DecodedKeyCache(1, 60);
+    DecodedKeyCache.Entry first = cache.acquire("none", "first", decoder);
+    byte[] firstKey = first.getKey();
+    // evicts "first" while it is still in use
+    cache.acquire("none", "second", decoder).release();
+    Assert.assertEquals(new String(firstKey, StandardCharsets.UTF_8), "first");
+    first.release();
+    for (byte b : firstKey) {
+      Assert.assertEquals(b, (byte) 0);
+    }
+  }
+
+  @Test
+  public void test_Expiry() throws Exception {
+    DecodedKeyCache cache = new DecodedKeyCache(10, 20, TimeUnit.MILLISECONDS);
+    DecodedKeyCache.Entry entry = cache.acquire("none", "AAAA", decoder);
+    byte[] key = entry.getKey();
+    entry.release();
+    Thread.sleep(50);
+    cache.acquire("none", "AAAA", decoder).release();
+    Assert.assertEquals(cache.getHits(), 0L);
+    Assert.assertEquals(cache.getMisses(), 2L);
+    Assert.assertEquals(key[0], (byte) 0);
+  }
+
+  @Test
+  public void test_ExpiredEntriesAreZeroedWithoutLookup() throws Exception {
+    DecodedKeyCache cache = new DecodedKeyCache(10, 20, TimeUnit.MILLISECONDS);
+    DecodedKeyCache.Entry entry = cache.acquire("none", "AAAA", decoder);
+    byte[] key = entry.getKey();
+    entry.release();
+    for (int i = 0; i < 100 && cache.size() > 0; i++) {
+      Thread.sleep(20);
+    }
+    Assert.assertEquals(cache.size(), 0);
+    Assert.assertEquals(key[0], (byte) 0);
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.encoding.Base16;
+import com.google.apigee.encoding.Base32;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class EnrollmentCalloutTest {
+  private Map<String, Object> variables;
+  private MessageContext msgCtxt;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    variables = new HashMap<String, Object>();
+    msgCtxt = MessageContextFixture.backedBy(variables);
+  }
+
+  @Test
+  public void test_Uri() {
+    String uri =
+        EnrollmentCallout.uri("alice@example.com", "Example Co", "JBSWY3DP", "HmacSHA256", 8, 60);
+    Assert.assertEquals(
+        uri,
+        "otpauth://totp/Example%20Co:alice%40example.com?secret=JBSWY3DP&issuer=Example%20Co"
+            + "&algorithm=SHA256&digits=8&period=60");
+  }
+
+  @Test
+  public void test_Single() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("label", "{user}");
+    props.put("issuer", "Example");
+    variables.put("user", "alice");
+
+    EnrollmentCallout callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    String secret = (String) variables.get("totp_secret");
+    Assert.assertEquals(Base32.decode(secret).length, EnrollmentCallout.DEFAULT_SECRET_LENGTH);
+    Assert.assertEquals(
+        variables.get("totp_uri"),
+        "otpauth://totp/Example:alice?secret="
+            + secret
+            + "&issuer=Example&algorithm=SHA1&digits=6&period=30");
+
+    // the secret works as a key for TotpCallout
+    Map<String, String> totpProps = new HashMap<String, String>();
+    totpProps.put("key", secret);
+    totpProps.put("decode-key", "base32");
+    Assert.assertEquals(new TotpCallout(totpProps).execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertNotNull(variables.get("totp_code"));
+
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertNotEquals(variables.get("totp_secret"), secret);
+  }
+
+  @Test
+  public void test_LengthAndEncoding() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("label", "alice");
+    props.put("secret-length", "32");
+    props.put("encode-key", "hex");
+    EnrollmentCallout callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    byte[] secret = Base16.decode((String) variables.get("totp_secret"));
+    Assert.assertEquals(secret.length, 32);
+    Assert.assertTrue(((String) variables.get("totp_uri")).contains(Base32.encode(secret)));
+  }
+
+  @Test
+  public void test_Batch() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "labels");
+    StringBuilder labels = new StringBuilder("[");
+    for (int i = 0; i < 2000; i++) {
+      if (i > 0) labels.append(',');
+      labels.append("\"user").append(i).append('"');
+    }
+    variables.put("labels", labels.append(']').toString());
+
+    EnrollmentCallout callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_batch_count"), "2000");
+    List results = (List) Json.parse((String) variables.get("totp_enroll_batch"));
+    Assert.assertEquals(results.size(), 2000);
+    Set<String> secrets = new HashSet<String>();
+    for (int i = 0; i < results.size(); i++) {
+      Map result = (Map) results.get(i);
+      Assert.assertEquals(result.get("label"), "user" + i);
+      String secret = (String) result.get("secret");
+      Assert.assertTrue(secrets.add(secret));
+      Assert.assertEquals(
+          result.get("uri"),
+          "otpauth://totp/user" + i + "?secret=" + secret + "&algorithm=SHA1&digits=6&period=30");
+    }
+  }
+
+  @Test
+  public void test_BatchLimits() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "labels");
+    props.put("max-items", "2");
+    variables.put("labels", "[\"a\",\"b\",\"c\"]");
+    EnrollmentCallout callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        variables.get("totp_error"), "the batch has more items than max-items 2");
+
+    variables.put("labels", "[\"a\",7]");
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.ABORT);
+    Assert.assertEquals(variables.get("totp_error"), "each label must be a non-empty string");
+  }
+
+  @Test
+  public void test_QrCode() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("label", "alice");
+    props.put("qr-format", "{format}");
+    variables.put("format", "png");
+    EnrollmentCallout callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_qr_content_type"), "image/png");
+    byte[] png = Base64.getDecoder().decode((String) variables.get("totp_qr"));
+    Assert.assertEquals(Arrays.copyOf(png, 4), new byte[] {(byte) 0x89, 'P', 'N', 'G'});
+
+    variables.put("format", "svg");
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_qr_content_type"), "image/svg+xml");
+    Assert.assertTrue(((String) variables.get("totp_qr")).startsWith("<svg "));
+
+    variables.put("format", "gif");
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.ABORT);
+    Assert.assertEquals(variables.get("totp_error"), "qr-format gif is not supported");
+  }
+
+  @Test
+  public void test_ExistingKey() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("label", "alice");
+    props.put("key", "12345678901234567890");
+    props.put("code-digits", "8");
+    props.put("qr-format", "svg");
+    EnrollmentCallout callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertNull(variables.get("totp_secret"));
+    Assert.assertEquals(
+        variables.get("totp_uri"),
+        "otpauth://totp/alice?secret=GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ"
+            + "&algorithm=SHA1&digits=8&period=30");
+    Assert.assertNotNull(variables.get("totp_qr"));
+  }
+
+  @Test
+  public void test_ExistingWrappedKey() throws Exception {
+    String kekHex = "000102030405060708090a0b0c0d0e0f";
+    byte[] wrapped =
+        KeyWrapping.wrap(
+            "12345678901234567890".getBytes(StandardCharsets.UTF_8),
+            KeyWrapping.aesKey("key-encryption-key", kekHex),
+            null);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("label", "alice");
+    props.put("key", Base64.getEncoder().encodeToString(wrapped));
+    props.put("decode-key", "base64");
+    props.put("key-wrapping", "aes-gcm");
+    props.put("key-encryption-key", kekHex);
+    EnrollmentCallout callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    // the URI has the unwrapped key, not the wrapped one
+    Assert.assertEquals(
+        variables.get("totp_uri"),
+        "otpauth://totp/alice?secret=GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ"
+            + "&algorithm=SHA1&digits=6&period=30");
+
+    props.remove("key-encryption-key");
+    callout = new EnrollmentCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        variables.get("totp_error"), "key-encryption-key must be set when key-wrapping is set");
+  }
+
+  @Test
+  public void test_InvalidSecretLength() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("label", "alice");
+    props.put("secret-length", "8");
+    try {
+      new EnrollmentCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "secret-length must be between 10 and 64, found 8");
+    }
+  }
+
+  @Test
+  public void test_GeneratorsPerThread() throws Exception {
+    final SecretGenerator[] other = new SecretGenerator[1];
+    Thread thread = new Thread(() -> other[0] = SecretGenerator.forCurrentThread());
+    thread.start();
+    thread.join();
+    SecretGenerator mine = SecretGenerator.forCurrentThread();
+    Assert.assertSame(SecretGenerator.forCurrentThread(), mine);
+    Assert.assertNotSame(other[0], mine);
+    Assert.assertNotEquals(Base16.encode(other[0].next(20)), Base16.encode(mine.next(20)));
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FailureLimiterTest {
+  private static final long T0 = 1_700_000_200_000L; // 100 seconds into a 300-second window
+
+  private static byte[] key(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static FailureLimiter.Result acquire(FailureLimiter limiter, String key, long now) {
+    return limiter.acquire(key(key), now);
+  }
+
+  @Test
+  public void test_LocksAtThreshold() {
+    FailureLimiter limiter = new FailureLimiter(3, 300, 1024);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(acquire(limiter, "alice", T0), FailureLimiter.Result.ALLOWED);
+    }
+    Assert.assertEquals(acquire(limiter, "alice", T0), FailureLimiter.Result.LOCKED);
+    Assert.assertEquals(acquire(limiter, "bob", T0), FailureLimiter.Result.ALLOWED);
+    Assert.assertEquals(limiter.getLockedOut(), 1L);
+  }
+
+  @Test
+  public void test_ResetClearsFailures() {
+    FailureLimiter limiter = new FailureLimiter(3, 300, 1024);
+    acquire(limiter, "alice", T0);
+    acquire(limiter, "alice", T0);
+    limiter.reset(key("alice"));
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(acquire(limiter, "alice", T0), FailureLimiter.Result.ALLOWED);
+    }
+    Assert.assertEquals(acquire(limiter, "alice", T0), FailureLimiter.Result.LOCKED);
+  }
+
+  @Test
+  public void test_SlidingWindow() {
+    FailureLimiter limiter = new FailureLimiter(4, 300, 1024);
+    for (int i = 0; i < 4; i++) {
+      acquire(limiter, "alice", T0);
+    }
+    Assert.assertEquals(acquire(limiter, "alice", T0), FailureLimiter.Result.LOCKED);
+    // 350 seconds later, in the next window: half of the previous window still counts, 4 * 0.5
+    long later = T0 + 350_000L;
+    Assert.assertEquals(acquire(limiter, "alice", later), FailureLimiter.Result.ALLOWED);
+    Assert.assertEquals(acquire(limiter, "alice", later), FailureLimiter.Result.ALLOWED);
+    Assert.assertEquals(acquire(limiter, "alice", later), FailureLimiter.Result.LOCKED);
+    // two windows later, everything has expired
+    Assert.assertEquals(acquire(limiter, "alice", T0 + 700_000L), FailureLimiter.Result.ALLOWED);
+  }
+
+  @Test
+  public void test_ConcurrentAttemptsStopAtLimit() throws Exception {
+    final FailureLimiter limiter = new FailureLimiter(1000, 300, 1024);
+    final AtomicInteger allowed = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 500; i++) {
+                  if (acquire(limiter, "alice", T0) == FailureLimiter.Result.ALLOWED) {
+                    allowed.incrementAndGet();
+                  }
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(allowed.get(), 1000);
+    Assert.assertEquals(limiter.getLockedOut(), 3000L);
+  }
+
+  @Test
+  public void test_FullTableEvictsFewestFailures() {
+    FailureLimiter limiter = new FailureLimiter(3, 300, 16);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(acquire(limiter, "alice", T0), FailureLimiter.Result.ALLOWED);
+    }
+    // far more keys than slots, each with one failure: none is refused
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(acquire(limiter, "user-" + i, T0), FailureLimiter.Result.ALLOWED);
+    }
+    Assert.assertTrue(limiter.getEvictions() > 0);
+    // the keys with a single failure were evicted, rather than alice
+    Assert.assertEquals(acquire(limiter, "alice", T0), FailureLimiter.Result.LOCKED);
+  }
+
+  @Test
+  public void test_AgedOutSlotsAreTakenWithoutEviction() {
+    FailureLimiter limiter = new FailureLimiter(1, 300, 16);
+    for (int i = 0; i < 16; i++) {
+      acquire(limiter, "user-" + i, T0);
+    }
+    long evictions = limiter.getEvictions();
+    Assert.assertEquals(acquire(limiter, "carol", T0 + 700_000L), FailureLimiter.Result.ALLOWED);
+    Assert.assertEquals(limiter.getEvictions(), evictions);
+  }
+}
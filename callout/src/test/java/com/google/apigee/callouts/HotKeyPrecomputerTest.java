@@ -0,0 +1,132 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HotKeyPrecomputerTest {
+  private static final String SHA1 = "HmacSHA1";
+  private static final long NOW_MILLIS = 1234567890000L;
+  private static final long STEP = NOW_MILLIS / 30000L;
+
+  private static byte[] key(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int lookup(HotKeyPrecomputer precomputer, byte[] key, long step) {
+    return precomputer.lookup(key, SHA1, 30, 6, step);
+  }
+
+  private static int expected(byte[] key, long step) throws Exception {
+    return OtpGenerator.forCurrentThread(SHA1, 30, 6).generateForCounter(key, step);
+  }
+
+  @Test
+  public void test_HotKeyIsPrecomputed() throws Exception {
+    HotKeyPrecomputer precomputer = new HotKeyPrecomputer(4);
+    byte[] key = key("12345678901234567890");
+    Assert.assertEquals(lookup(precomputer, key, STEP), -1);
+    Assert.assertEquals(lookup(precomputer, key, STEP), -1);
+    Assert.assertEquals(precomputer.getHotSetSize(), 0);
+
+    precomputer.refresh(NOW_MILLIS);
+    Assert.assertEquals(precomputer.getHotSetSize(), 1);
+    Assert.assertEquals(lookup(precomputer, key, STEP), expected(key, STEP));
+    Assert.assertEquals(lookup(precomputer, key, STEP + 1), expected(key, STEP + 1));
+    Assert.assertEquals(lookup(precomputer, key, STEP + 2), -1);
+    Assert.assertEquals(lookup(precomputer, key, STEP - 1), -1);
+    Assert.assertEquals(precomputer.getHits(), 2);
+    Assert.assertEquals(precomputer.getMisses(), 4);
+
+    // a copy of the key hits; other settings, or other keys, do not
+    Assert.assertEquals(lookup(precomputer, key.clone(), STEP), expected(key, STEP));
+    Assert.assertEquals(precomputer.lookup(key, "HmacSHA256", 30, 6, STEP), -1);
+    Assert.assertEquals(precomputer.lookup(key, SHA1, 60, 6, STEP), -1);
+    Assert.assertEquals(precomputer.lookup(key, SHA1, 30, 8, STEP), -1);
+    Assert.assertEquals(lookup(precomputer, key("12345678901234567891"), STEP), -1);
+  }
+
+  @Test
+  public void test_ColdKeyIsNotPrecomputed() {
+    HotKeyPrecomputer precomputer = new HotKeyPrecomputer(4);
+    lookup(precomputer, key("used-once"), STEP);
+    precomputer.refresh(NOW_MILLIS);
+    Assert.assertEquals(precomputer.getHotSetSize(), 0);
+  }
+
+  @Test
+  public void test_OnlyTheHottestKeys() throws Exception {
+    HotKeyPrecomputer precomputer = new HotKeyPrecomputer(2);
+    byte[][] keys = {key("key-a"), key("key-b"), key("key-c")};
+    int[] uses = {3, 6, 5};
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = 0; j < uses[i]; j++) {
+        lookup(precomputer, keys[i], STEP);
+      }
+    }
+    precomputer.refresh(NOW_MILLIS);
+    Assert.assertEquals(precomputer.getHotSetSize(), 2);
+    Assert.assertEquals(lookup(precomputer, keys[0], STEP), -1);
+    Assert.assertEquals(lookup(precomputer, keys[1], STEP), expected(keys[1], STEP));
+    Assert.assertEquals(lookup(precomputer, keys[2], STEP), expected(keys[2], STEP));
+  }
+
+  @Test
+  public void test_UnusedKeysDropOut() throws Exception {
+    HotKeyPrecomputer precomputer = new HotKeyPrecomputer(4);
+    byte[] key = key("12345678901234567890");
+    for (int i = 0; i < 4; i++) {
+      lookup(precomputer, key, STEP);
+    }
+    precomputer.refresh(NOW_MILLIS);
+    Assert.assertEquals(precomputer.getHotSetSize(), 1);
+
+    // still in use, at the next step
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals(lookup(precomputer, key, STEP + 1), expected(key, STEP + 1));
+    }
+    precomputer.refresh(NOW_MILLIS + 30000L);
+    Assert.assertEquals(precomputer.getHotSetSize(), 1);
+    Assert.assertEquals(lookup(precomputer, key, STEP + 2), expected(key, STEP + 2));
+
+    for (int i = 0; i < 4; i++) {
+      precomputer.refresh(NOW_MILLIS + 30000L);
+    }
+    Assert.assertEquals(precomputer.getHotSetSize(), 0);
+    Assert.assertEquals(lookup(precomputer, key, STEP + 1), -1);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_InvalidSize() {
+    new HotKeyPrecomputer(HotKeyPrecomputer.MAX_HOT_KEYS + 1);
+  }
+
+  @Test
+  public void test_TaskDoesNotKeepPrecomputer() throws Exception {
+    HotKeyPrecomputer precomputer = new HotKeyPrecomputer(4);
+    precomputer.start();
+    WeakReference<HotKeyPrecomputer> ref = new WeakReference<HotKeyPrecomputer>(precomputer);
+    precomputer = null;
+    for (int i = 0; i < 100 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    Assert.assertNull(ref.get());
+  }
+}
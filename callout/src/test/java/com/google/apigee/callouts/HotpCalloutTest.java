@@ -0,0 +1,168 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class HotpCalloutTest {
+  // RFC 4226, Appendix D: the key, and the 6-digit codes for counters 0 to 9
+  private static final String KEY = "12345678901234567890";
+  private static final String[] CODES = {
+    "755224", "287082", "359152", "969429", "338314",
+    "254676", "287922", "162583", "399871", "520489"
+  };
+
+  private Map<String, Object> variables;
+  private MessageContext msgCtxt;
+  private Path counterFile;
+
+  @BeforeMethod
+  public void beforeMethod() throws Exception {
+    variables = new HashMap<String, Object>();
+    msgCtxt = MessageContextFixture.backedBy(variables);
+    counterFile = Files.createTempFile("hotp-callout", ".bin");
+    Files.delete(counterFile);
+    counterFile.toFile().deleteOnExit();
+  }
+
+  private HotpCallout callout(String expectedValue, String lookAhead) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", KEY);
+    props.put("user-id", "{user}");
+    props.put("counter-file", counterFile.toString());
+    props.put("counter-slots", "128");
+    if (expectedValue != null) props.put("expected-value", expectedValue);
+    if (lookAhead != null) props.put("look-ahead", lookAhead);
+    return new HotpCallout(props);
+  }
+
+  private ExecutionResult verify(String user, String code, String lookAhead) {
+    variables.put("user", user);
+    return callout(code, lookAhead).execute(msgCtxt, null);
+  }
+
+  @Test
+  public void test_GenerateDoesNotAdvance() {
+    variables.put("user", "alice");
+    HotpCallout callout = callout(null, null);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_code"), CODES[0]);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_code"), CODES[0]);
+    Assert.assertEquals(variables.get("totp_counter"), "0");
+  }
+
+  @Test
+  public void test_VerifyAdvancesCounter() {
+    Assert.assertEquals(verify("alice", CODES[0], null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_counter"), "1");
+    Assert.assertEquals(variables.get("totp_offset"), "0");
+    // the same code is not accepted twice
+    Assert.assertEquals(verify("alice", CODES[0], null), ExecutionResult.ABORT);
+    Assert.assertEquals(variables.get("totp_error"), "HOTP mismatch");
+    Assert.assertEquals(variables.get("fault.name"), "totp_mismatch");
+    Assert.assertEquals(verify("alice", CODES[1], null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_counter"), "2");
+  }
+
+  @Test
+  public void test_MismatchesDoNotClaimSlots() {
+    // far more unknown users than the store has slots
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(verify("unknown-" + i, "000000", null), ExecutionResult.ABORT);
+    }
+    variables.put("user", "unknown-0");
+    Assert.assertEquals(callout(null, null).execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    HotpCounterStore store = HotpCounterStore.open(counterFile, 128);
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(store.findSlot("unknown-" + i), -1);
+    }
+    Assert.assertEquals(verify("alice", CODES[0], null), ExecutionResult.SUCCESS);
+    Assert.assertTrue(store.findSlot("alice") >= 0);
+  }
+
+  @Test
+  public void test_WrappedKey() throws Exception {
+    String kekHex = "000102030405060708090a0b0c0d0e0f";
+    byte[] wrapped =
+        KeyWrapping.wrap(
+            KEY.getBytes(StandardCharsets.UTF_8),
+            KeyWrapping.aesKey("key-encryption-key", kekHex),
+            null);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", Base64.getEncoder().encodeToString(wrapped));
+    props.put("decode-key", "base64");
+    props.put("key-wrapping", "aes-gcm");
+    props.put("key-encryption-key", kekHex);
+    props.put("user-id", "alice");
+    props.put("counter-file", counterFile.toString());
+    props.put("counter-slots", "128");
+    props.put("expected-value", CODES[0]);
+    Assert.assertEquals(new HotpCallout(props).execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_counter"), "1");
+
+    props.put("key-encryption-key", "0f0e0d0c0b0a09080706050403020100");
+    props.put("expected-value", CODES[1]);
+    Assert.assertEquals(new HotpCallout(props).execute(msgCtxt, null), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        variables.get("totp_error"), "the key does not unwrap with key-encryption-key");
+  }
+
+  @Test
+  public void test_CountersArePerUser() {
+    Assert.assertEquals(verify("alice", CODES[0], null), ExecutionResult.SUCCESS);
+    Assert.assertEquals(verify("bob", CODES[0], null), ExecutionResult.SUCCESS);
+  }
+
+  @Test
+  public void test_LookAhead() {
+    Assert.assertEquals(verify("alice", CODES[4], "3"), ExecutionResult.ABORT);
+    Assert.assertEquals(variables.get("totp_counter"), "0");
+    Assert.assertEquals(verify("alice", CODES[4], "4"), ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_offset"), "4");
+    Assert.assertEquals(variables.get("totp_counter"), "5");
+    // codes skipped over by look-ahead are no longer valid
+    Assert.assertEquals(verify("alice", CODES[2], "9"), ExecutionResult.ABORT);
+    Assert.assertEquals(verify("alice", CODES[5], "0"), ExecutionResult.SUCCESS);
+  }
+
+  @Test
+  public void test_InvalidLookAhead() {
+    variables.put("user", "alice");
+    variables.put("la", "1001");
+    Assert.assertEquals(callout(CODES[0], "{la}").execute(msgCtxt, null), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        variables.get("totp_error"), "look-ahead must be between 0 and 1000, found 1001");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void test_CounterFileIsRequired() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", KEY);
+    props.put("user-id", "alice");
+    new HotpCallout(props);
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HotpCounterStoreTest {
+
+  private static Path newFile() throws Exception {
+    Path path = Files.createTempFile("hotp-counters", ".bin");
+    Files.delete(path);
+    path.toFile().deleteOnExit();
+    return path;
+  }
+
+  @Test
+  public void test_SlotsAreStablePerUser() throws Exception {
+    HotpCounterStore store = HotpCounterStore.open(newFile(), 64);
+    Assert.assertEquals(store.findSlot("alice"), -1);
+    int alice = store.slotFor("alice");
+    Assert.assertEquals(store.findSlot("alice"), alice);
+    int bob = store.slotFor("bob");
+    Assert.assertNotEquals(alice, bob);
+    Assert.assertEquals(store.slotFor("alice"), alice);
+    Assert.assertEquals(store.getCounter(alice), 0L);
+  }
+
+  @Test
+  public void test_CompareAndSet() throws Exception {
+    HotpCounterStore store = HotpCounterStore.open(newFile(), 64);
+    int slot = store.slotFor("alice");
+    Assert.assertTrue(store.compareAndSetCounter(slot, 0L, 5L));
+    Assert.assertFalse(store.compareAndSetCounter(slot, 0L, 7L));
+    Assert.assertEquals(store.getCounter(slot), 5L);
+  }
+
+  @Test
+  public void test_CountersSurviveReopening() throws Exception {
+    Path first = newFile();
+    HotpCounterStore store = HotpCounterStore.open(first, 64);
+    int slot = store.slotFor("alice");
+    store.compareAndSetCounter(slot, 0L, 42L);
+
+    // a copy of the file stands in for the same file after a restart
+    Path second = newFile();
+    Files.copy(first, second);
+    HotpCounterStore reopened = HotpCounterStore.open(second, 1024);
+    Assert.assertEquals(reopened.getSlots(), 64);
+    Assert.assertEquals(reopened.slotFor("alice"), slot);
+    Assert.assertEquals(reopened.getCounter(slot), 42L);
+  }
+
+  @Test
+  public void test_RejectsOtherFiles() throws Exception {
+    Path path = newFile();
+    Files.write(path, "this is not a counter file".getBytes("UTF-8"));
+    try {
+      HotpCounterStore.open(path, 64);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().endsWith("is not a HOTP counter file"), e.getMessage());
+    }
+  }
+
+  @Test
+  public void test_FullStore() throws Exception {
+    HotpCounterStore store = HotpCounterStore.open(newFile(), 16);
+    Set<Integer> slots = new HashSet<Integer>();
+    for (int i = 0; i < 16; i++) {
+      slots.add(store.slotFor("user-" + i));
+    }
+    Assert.assertEquals(slots.size(), 16);
+    try {
+      store.slotFor("one-too-many");
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().endsWith("is full"), e.getMessage());
+    }
+  }
+
+  @Test
+  public void test_ConcurrentIncrementsAreNotLost() throws Exception {
+    final HotpCounterStore store = HotpCounterStore.open(newFile(), 64);
+    final int slot = store.slotFor("alice");
+    final AtomicInteger failures = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 10000; i++) {
+                  long counter;
+                  do {
+                    counter = store.getCounter(slot);
+                  } while (!store.compareAndSetCounter(slot, counter, counter + 1));
+                }
+              });
+      thread.setUncaughtExceptionHandler((th, e) -> failures.incrementAndGet());
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(failures.get(), 0);
+    Assert.assertEquals(store.getCounter(slot), 40000L);
+  }
+}
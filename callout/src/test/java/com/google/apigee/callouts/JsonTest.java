@@ -0,0 +1,95 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class JsonTest {
+
+  @Test
+  public void parse_Values() {
+    Assert.assertEquals(Json.parse("true"), Boolean.TRUE);
+    Assert.assertEquals(Json.parse(" false "), Boolean.FALSE);
+    Assert.assertNull(Json.parse("null"));
+    Assert.assertEquals(Json.parse("-42"), Long.valueOf(-42));
+    Assert.assertEquals(Json.parse("1.5e3"), Double.valueOf(1500));
+    Assert.assertEquals(Json.parse("12345678901234567890"), Double.valueOf(12345678901234567890d));
+    Assert.assertEquals(Json.parse("\"a\\\"b\\\\c\\/d\\n\\u00e9\""), "a\"b\\c/d\n\u00e9");
+    Assert.assertEquals(Json.parse("[]"), Collections.emptyList());
+    Assert.assertEquals(Json.parse("{}"), Collections.emptyMap());
+  }
+
+  @Test
+  public void parse_Nested() {
+    Object parsed = Json.parse("[ {\"key\" : \"abc\", \"code\": 123456, \"x\": [1, {}]}, 7 ]");
+    List list = (List) parsed;
+    Assert.assertEquals(list.size(), 2);
+    Map map = (Map) list.get(0);
+    Assert.assertEquals(map.get("key"), "abc");
+    Assert.assertEquals(map.get("code"), Long.valueOf(123456));
+    Assert.assertEquals(map.get("x"), Arrays.asList(1L, Collections.emptyMap()));
+    Assert.assertEquals(list.get(1), Long.valueOf(7));
+  }
+
+  @Test
+  public void parse_DepthIsLimited() {
+    StringBuilder nested = new StringBuilder();
+    for (int i = 0; i < Json.MAX_DEPTH; i++) nested.append('[');
+    for (int i = 0; i < Json.MAX_DEPTH; i++) nested.append(']');
+    Json.parse(nested);
+
+    StringBuilder deep = new StringBuilder();
+    for (int i = 0; i < 10000; i++) deep.append("[{\"a\":");
+    try {
+      Json.parse(deep);
+      Assert.fail("expected an exception");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(e.getMessage(), "invalid JSON at offset " + (Json.MAX_DEPTH / 2 * 6));
+    }
+  }
+
+  @Test
+  public void parse_MaxItems() {
+    Assert.assertEquals(((List) Json.parse("[[1,2,3],[4]]", 2)).size(), 2);
+    Assert.assertEquals(((Map) Json.parse("{\"a\":1,\"b\":2,\"c\":3}", 2)).size(), 3);
+    // the limit applies as the elements are read, before the rest of the text is parsed
+    try {
+      Json.parse("[1,2,3,{{{ not JSON", 2);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "the batch has more items than max-items 2");
+    }
+  }
+
+  @DataProvider(name = "invalid")
+  public Object[][] invalid() {
+    return new Object[][] {
+      {""}, {"["}, {"[1,]"}, {"{\"a\"}"}, {"{\"a\":1,}"}, {"{a:1}"}, {"tru"}, {"nul"},
+      {"\"abc"}, {"\"\\x\""}, {"\"\\u12\""}, {"\"a\nb\""}, {"-"}, {"1 2"}, {"[1] x"}
+    };
+  }
+
+  @Test(dataProvider = "invalid", expectedExceptions = IllegalArgumentException.class)
+  public void parse_Invalid(String text) {
+    Json.parse(text);
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import javax.crypto.SecretKey;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class KeyWrappingTest {
+  private static final SecretKey KEK =
+      KeyWrapping.aesKey("key-encryption-key", "000102030405060708090a0b0c0d0e0f");
+  private static final SecretKey OTHER_KEK =
+      KeyWrapping.aesKey("key-encryption-key", "0f0e0d0c0b0a09080706050403020100");
+
+  @Test
+  public void test_RoundTrip() throws Exception {
+    byte[] key = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+    byte[] wrapped = KeyWrapping.wrap(key, KEK, null);
+    Assert.assertEquals(wrapped.length, key.length + KeyWrapping.OVERHEAD);
+    Assert.assertEquals(KeyWrapping.unwrap(wrapped, KEK), key);
+    // a fresh nonce each time
+    Assert.assertNotEquals(KeyWrapping.wrap(key, KEK, null), wrapped);
+  }
+
+  @Test
+  public void test_WrongKeyOrTampered() throws Exception {
+    byte[] wrapped = KeyWrapping.wrap(new byte[20], KEK, null);
+    Assert.assertNull(KeyWrapping.unwrap(wrapped, 0, wrapped.length, OTHER_KEK, null));
+    wrapped[wrapped.length - 1] ^= 1;
+    Assert.assertNull(KeyWrapping.unwrap(wrapped, 0, wrapped.length, KEK, null));
+    try {
+      KeyWrapping.unwrap(wrapped, KEK);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "the key does not unwrap with key-encryption-key");
+    }
+  }
+
+  @Test
+  public void test_AdditionalData() throws Exception {
+    byte[] aad = "alice".getBytes(StandardCharsets.UTF_8);
+    byte[] wrapped = KeyWrapping.wrap(new byte[20], KEK, aad);
+    Assert.assertNotNull(KeyWrapping.unwrap(wrapped, 0, wrapped.length, KEK, aad));
+    byte[] other = "bob".getBytes(StandardCharsets.UTF_8);
+    Assert.assertNull(KeyWrapping.unwrap(wrapped, 0, wrapped.length, KEK, other));
+  }
+
+  @Test
+  public void test_CacheKeyDependsOnKek() {
+    Assert.assertEquals(KeyWrapping.cacheKey(KEK, "abc"), KeyWrapping.cacheKey(KEK, "abc"));
+    Assert.assertNotEquals(KeyWrapping.cacheKey(KEK, "abc"), KeyWrapping.cacheKey(KEK, "abd"));
+    Assert.assertNotEquals(
+        KeyWrapping.cacheKey(KEK, "abc"), KeyWrapping.cacheKey(OTHER_KEK, "abc"));
+  }
+
+  @Test
+  public void test_InvalidSettings() {
+    try {
+      KeyWrapping.aesKey("key-encryption-key", "0011");
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "key-encryption-key must be 16, 24 or 32 bytes");
+    }
+    try {
+      KeyWrapping.parseKeyWrapping("rsa");
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "key-wrapping rsa is not supported");
+    }
+  }
+}
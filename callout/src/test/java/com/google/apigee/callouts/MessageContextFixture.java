@@ -0,0 +1,52 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.Map;
+import mockit.Mock;
+import mockit.MockUp;
+
+/**
+ * A MessageContext whose variables are the entries of a map, for tests that need no message. Like
+ * the one in TestTotpCallout, it is a JMockit mock-up, so it must be created in a test method or
+ * in a BeforeMethod.
+ */
+final class MessageContextFixture {
+  private MessageContextFixture() {}
+
+  static MessageContext backedBy(final Map<String, Object> variables) {
+    return new MockUp<MessageContext>() {
+      @Mock()
+      @SuppressWarnings("unchecked")
+      public <T> T getVariable(final String name) {
+        return (T) variables.get(name);
+      }
+
+      @Mock()
+      public boolean setVariable(final String name, final Object value) {
+        variables.put(name, value);
+        return true;
+      }
+
+      @Mock()
+      public boolean removeVariable(final String name) {
+        variables.remove(name);
+        return true;
+      }
+    }.getMockInstance();
+  }
+}
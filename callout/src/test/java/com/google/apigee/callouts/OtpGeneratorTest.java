@@ -0,0 +1,79 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class OtpGeneratorTest {
+
+  private static final byte[] RFC4226_KEY = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+
+  @DataProvider(name = "rfc4226-test-vectors")
+  public Object[][] rfc4226_Data() {
+    // these values are taken from RFC 4226, Appendix D
+    return new Object[][] {
+      {0L, 755224}, {1L, 287082}, {2L, 359152}, {3L, 969429}, {4L, 338314},
+      {5L, 254676}, {6L, 287922}, {7L, 162583}, {8L, 399871}, {9L, 520489}
+    };
+  }
+
+  @Test(dataProvider = "rfc4226-test-vectors")
+  public void rfc4226_Test(long counter, int expectedValue) throws Exception {
+    OtpGenerator generator = OtpGenerator.forCurrentThread("HmacSHA1", 30, 6);
+    Assert.assertEquals(generator.generateForCounter(RFC4226_KEY, counter), expectedValue);
+  }
+
+  @Test
+  public void test_ReusedPerThread() throws Exception {
+    OtpGenerator g1 = OtpGenerator.forCurrentThread("HmacSHA256", 30, 6);
+    OtpGenerator g2 = OtpGenerator.forCurrentThread("HmacSHA256", 30, 6);
+    OtpGenerator g3 = OtpGenerator.forCurrentThread("HmacSHA256", 60, 6);
+    Assert.assertSame(g1, g2);
+    Assert.assertNotSame(g1, g3);
+  }
+
+  @Test
+  public void test_KeyChangeReinitializesMac() throws Exception {
+    OtpGenerator generator = OtpGenerator.forCurrentThread("HmacSHA1", 30, 6);
+    byte[] otherKey = "abcdefghijabcdefghij".getBytes(StandardCharsets.UTF_8);
+    int other = generator.generateForCounter(otherKey, 1L);
+    Assert.assertEquals(generator.generateForCounter(RFC4226_KEY, 1L), 287082);
+    Assert.assertEquals(generator.generateForCounter(otherKey, 1L), other);
+    Assert.assertNotEquals(other, 287082);
+  }
+
+  @Test
+  public void test_KeyZeroedByCallerIsNotReused() throws Exception {
+    for (boolean builtin : new boolean[] {false, true}) {
+      OtpGenerator generator = OtpGenerator.forCurrentThread("HmacSHA1", 30, 6, builtin);
+      byte[] key = RFC4226_KEY.clone();
+      Assert.assertEquals(generator.generateForCounter(key, 1L), 287082);
+      // the same array, once zeroed, is a different key
+      Arrays.fill(key, (byte) 0);
+      Assert.assertNotEquals(generator.generateForCounter(key, 1L), 287082);
+      Assert.assertEquals(generator.generateForCounter(RFC4226_KEY.clone(), 1L), 287082);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_InvalidDigits() throws Exception {
+    OtpGenerator.forCurrentThread("HmacSHA1", 30, 11);
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class PrecomputedHmacTest {
+
+  @DataProvider(name = "algorithms")
+  public Object[][] algorithms() {
+    return new Object[][] {{"HmacSHA1"}, {"HmacSHA256"}, {"HmacSHA512"}};
+  }
+
+  private static int jcaTruncatedHmac(String alg, byte[] key, long counter) throws Exception {
+    Mac mac = Mac.getInstance(alg);
+    mac.init(new SecretKeySpec(key, "RAW"));
+    byte[] hash = mac.doFinal(ByteBuffer.allocate(8).putLong(counter).array());
+    int offset = hash[hash.length - 1] & 0x0f;
+    return ((hash[offset] & 0x7f) << 24)
+        | ((hash[offset + 1] & 0xff) << 16)
+        | ((hash[offset + 2] & 0xff) << 8)
+        | (hash[offset + 3] & 0xff);
+  }
+
+  @Test(dataProvider = "algorithms")
+  public void test_MatchesJca(String alg) throws Exception {
+    Random random = new Random(42);
+    // key lengths below, at and above the block sizes of all three hashes
+    int[] keyLengths = {1, 10, 20, 32, 63, 64, 65, 127, 128, 129, 200};
+    for (int keyLength : keyLengths) {
+      byte[] key = new byte[keyLength];
+      random.nextBytes(key);
+      PrecomputedHmac hmac = PrecomputedHmac.forKey(alg, key);
+      for (int i = 0; i < 50; i++) {
+        long counter = (i < 5) ? i : random.nextLong();
+        Assert.assertEquals(
+            hmac.truncatedHmac(counter),
+            jcaTruncatedHmac(alg, key, counter),
+            alg + " keyLength=" + keyLength + " counter=" + counter);
+      }
+    }
+  }
+
+  @Test(dataProvider = "algorithms")
+  public void test_GeneratorEnginesAgree(String alg) throws Exception {
+    byte[] key = "12345678901234567890".getBytes("UTF-8");
+    OtpGenerator jca = OtpGenerator.forCurrentThread(alg, 30, 8, false);
+    OtpGenerator builtin = OtpGenerator.forCurrentThread(alg, 30, 8, true);
+    for (long counter = 0; counter < 100; counter++) {
+      Assert.assertEquals(
+          builtin.generateForCounter(key, counter), jca.generateForCounter(key, counter));
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class PropertyTemplateTest {
+
+  private static final Map<String, Object> variables = new HashMap<String, Object>();
+
+  static {
+    variables.put("a", "AAA");
+    variables.put("b.c", "BC");
+    variables.put("empty", "");
+  }
+
+  private MessageContext msgCtxt;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    msgCtxt = MessageContextFixture.backedBy(variables);
+  }
+
+  // The regex-based resolution that PropertyTemplate replaces.
+  private static final Pattern variableReferencePattern =
+      Pattern.compile("(.*?)\\{([^\\{\\} ]+?)\\}(.*?)");
+
+  private String legacyResolve(String spec) {
+    Matcher matcher = variableReferencePattern.matcher(spec);
+    StringBuffer sb = new StringBuffer();
+    while (matcher.find()) {
+      matcher.appendReplacement(sb, "");
+      sb.append(matcher.group(1));
+      Object v = msgCtxt.getVariable(matcher.group(2));
+      if (v != null) {
+        sb.append((String) v);
+      }
+      sb.append(matcher.group(3));
+    }
+    matcher.appendTail(sb);
+    return sb.toString();
+  }
+
+  @DataProvider(name = "specs")
+  public Object[][] specs() {
+    return new Object[][] {
+      {"", true},
+      {"plain value", true},
+      {"{a}", false},
+      {"{missing}", false},
+      {"x{a}y", false},
+      {"{a}{b.c}", false},
+      {"pre {a} mid {b.c} post", false},
+      {"{}", true},
+      {"{a b}", true},
+      {"{{a}}", false},
+      {"{a{b.c}", false},
+      {"{a", true},
+      {"a}", true},
+      {"$1 \\ {a}", false},
+      {"line1\n{a}\nline2", false},
+      {"{empty}{a}", false}
+    };
+  }
+
+  @Test(dataProvider = "specs")
+  public void test_MatchesLegacyResolution(String spec, boolean constant) {
+    PropertyTemplate template = PropertyTemplate.compile(spec);
+    Assert.assertEquals(template.resolve(msgCtxt), legacyResolve(spec), "spec: " + spec);
+    Assert.assertEquals(template.isConstant(), constant, "spec: " + spec);
+  }
+
+  @Test
+  public void test_ConstantIsNotCopied() {
+    PropertyTemplate template = PropertyTemplate.compile("sha256");
+    Assert.assertSame(template.resolve(msgCtxt), template.resolve(msgCtxt));
+    Assert.assertEquals(template.getConstant(), "sha256");
+  }
+}
@@ -0,0 +1,268 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Inflater;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class QrCodeTest {
+  private static final String URI =
+      "otpauth://totp/Example:alice%40example.com?secret=JBSWY3DPEHPK3PXPJBSWY3DPEHPK3PXP"
+          + "&issuer=Example&algorithm=SHA1&digits=6&period=30";
+
+  @Test
+  public void test_Multiply() {
+    Assert.assertEquals(QrCode.multiply(0x80, 0x02), 0x1d);
+    Assert.assertEquals(QrCode.multiply(0x53, 0x00), 0);
+    Assert.assertEquals(QrCode.multiply(0x01, 0xca), 0xca);
+  }
+
+  @Test
+  public void test_ByteCapacities() {
+    // ISO/IEC 18004, table 7
+    Assert.assertEquals(QrCode.getByteCapacity(1, QrCode.Ecc.L), 17);
+    Assert.assertEquals(QrCode.getByteCapacity(1, QrCode.Ecc.M), 14);
+    Assert.assertEquals(QrCode.getByteCapacity(1, QrCode.Ecc.Q), 11);
+    Assert.assertEquals(QrCode.getByteCapacity(1, QrCode.Ecc.H), 7);
+    Assert.assertEquals(QrCode.getByteCapacity(2, QrCode.Ecc.M), 26);
+    Assert.assertEquals(QrCode.getByteCapacity(5, QrCode.Ecc.M), 84);
+    Assert.assertEquals(QrCode.getByteCapacity(10, QrCode.Ecc.M), 213);
+    Assert.assertEquals(QrCode.getByteCapacity(40, QrCode.Ecc.L), 2953);
+    Assert.assertEquals(QrCode.getByteCapacity(40, QrCode.Ecc.H), 1273);
+  }
+
+  @Test
+  public void test_SmallestVersion() {
+    Assert.assertEquals(QrCode.encode(new byte[14], QrCode.Ecc.M).version, 1);
+    Assert.assertEquals(QrCode.encode(new byte[15], QrCode.Ecc.M).version, 2);
+    try {
+      QrCode.encode(new byte[2954], QrCode.Ecc.L);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "the data is too long for a QR code");
+    }
+  }
+
+  @Test
+  public void test_FunctionPatterns() {
+    QrCode code = QrCode.encode(URI.getBytes(StandardCharsets.UTF_8), QrCode.Ecc.M);
+    int size = code.size;
+    Assert.assertEquals(size, code.version * 4 + 17);
+    int[][] finders = {{0, 0}, {size - 7, 0}, {0, size - 7}};
+    for (int[] finder : finders) {
+      Assert.assertTrue(code.isDark(finder[0], finder[1]));
+      Assert.assertFalse(code.isDark(finder[0] + 1, finder[1] + 1));
+      Assert.assertTrue(code.isDark(finder[0] + 3, finder[1] + 3));
+    }
+    for (int i = 8; i < size - 8; i++) {
+      Assert.assertEquals(code.isDark(6, i), i % 2 == 0);
+      Assert.assertEquals(code.isDark(i, 6), i % 2 == 0);
+    }
+    Assert.assertTrue(code.isDark(8, size - 8));
+  }
+
+  @DataProvider(name = "codes")
+  public Object[][] codes() {
+    StringBuilder longer = new StringBuilder();
+    for (int i = 0; i < 40; i++) longer.append(URI);
+    return new Object[][] {
+      {"JBSWY3DP", QrCode.Ecc.H},
+      {URI, QrCode.Ecc.L},
+      {URI, QrCode.Ecc.M},
+      {URI, QrCode.Ecc.Q},
+      {URI, QrCode.Ecc.H},
+      {longer.substring(0, 400), QrCode.Ecc.M}, // version 7 or more has version information
+      {longer.substring(0, 2300), QrCode.Ecc.L}
+    };
+  }
+
+  // Reads the code back: the format, the codewords, the error correction, and the data.
+  @Test(dataProvider = "codes")
+  public void test_ReadBack(String text, QrCode.Ecc ecc) {
+    byte[] data = text.getBytes(StandardCharsets.UTF_8);
+    QrCode code = QrCode.encode(data, ecc);
+    int size = code.size;
+
+    // the format bits, in both copies
+    int first = 0;
+    for (int i = 0; i <= 5; i++) first |= bit(code, 8, i) << i;
+    first |= bit(code, 8, 7) << 6 | bit(code, 8, 8) << 7 | bit(code, 7, 8) << 8;
+    for (int i = 9; i < 15; i++) first |= bit(code, 14 - i, 8) << i;
+    int second = 0;
+    for (int i = 0; i < 8; i++) second |= bit(code, size - 1 - i, 8) << i;
+    for (int i = 8; i < 15; i++) second |= bit(code, 8, size - 15 + i) << i;
+    Assert.assertEquals(first, QrCode.formatBits(ecc, code.mask));
+    Assert.assertEquals(second, first);
+
+    // the codewords, in placement order, unmasked
+    int raw = QrCode.getNumRawDataModules(code.version) / 8;
+    byte[] codewords = new byte[raw];
+    int n = 0;
+    for (int right = size - 1; right >= 1; right -= 2) {
+      if (right == 6) right = 5;
+      boolean upward = ((right + 1) & 2) == 0;
+      for (int vertical = 0; vertical < size; vertical++) {
+        int y = upward ? size - 1 - vertical : vertical;
+        for (int x = right; x > right - 2; x--) {
+          if (code.isFunction(x, y) || n >= raw * 8) continue;
+          int b = bit(code, x, y) ^ (masked(code.mask, x, y) ? 1 : 0);
+          codewords[n >>> 3] |= (byte) (b << (7 - (n & 7)));
+          n++;
+        }
+      }
+    }
+
+    // de-interleave, and check that every block is a codeword of its Reed-Solomon code
+    int numBlocks = QrCode.getNumBlocks(code.version, ecc);
+    int eccLen = QrCode.getEccCodewordsPerBlock(code.version, ecc);
+    int numShort = numBlocks - raw % numBlocks;
+    int shortDataLen = raw / numBlocks - eccLen;
+    byte[][] blocks = new byte[numBlocks][];
+    for (int j = 0; j < numBlocks; j++) {
+      blocks[j] = new byte[shortDataLen + (j < numShort ? 0 : 1) + eccLen];
+    }
+    n = 0;
+    for (int i = 0; i <= shortDataLen; i++) {
+      for (int j = 0; j < numBlocks; j++) {
+        if (i < shortDataLen || j >= numShort) blocks[j][i] = codewords[n++];
+      }
+    }
+    for (int i = 0; i < eccLen; i++) {
+      for (int j = 0; j < numBlocks; j++) {
+        blocks[j][blocks[j].length - eccLen + i] = codewords[n++];
+      }
+    }
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    for (byte[] block : blocks) {
+      for (int i = 0, alpha = 1; i < eccLen; i++, alpha = QrCode.multiply(alpha, 2)) {
+        int syndrome = 0;
+        for (byte b : block) syndrome = QrCode.multiply(syndrome, alpha) ^ (b & 0xff);
+        Assert.assertEquals(syndrome, 0);
+      }
+      stream.write(block, 0, block.length - eccLen);
+    }
+
+    // the data: byte mode, the count, the bytes
+    byte[] stored = stream.toByteArray();
+    int countBits = (code.version <= 9) ? 8 : 16;
+    Assert.assertEquals(bits(stored, 0, 4), 4);
+    Assert.assertEquals(bits(stored, 4, countBits), data.length);
+    byte[] decoded = new byte[data.length];
+    for (int i = 0; i < data.length; i++) {
+      decoded[i] = (byte) bits(stored, 4 + countBits + i * 8, 8);
+    }
+    Assert.assertEquals(decoded, data);
+  }
+
+  private static int bit(QrCode code, int x, int y) {
+    return code.isDark(x, y) ? 1 : 0;
+  }
+
+  private static int bits(byte[] data, int offset, int count) {
+    int result = 0;
+    for (int i = offset; i < offset + count; i++) {
+      result = (result << 1) | ((data[i >>> 3] >>> (7 - (i & 7))) & 1);
+    }
+    return result;
+  }
+
+  private static boolean masked(int mask, int x, int y) {
+    switch (mask) {
+      case 0:
+        return (x + y) % 2 == 0;
+      case 1:
+        return y % 2 == 0;
+      case 2:
+        return x % 3 == 0;
+      case 3:
+        return (x + y) % 3 == 0;
+      case 4:
+        return (x / 3 + y / 2) % 2 == 0;
+      case 5:
+        return x * y % 2 + x * y % 3 == 0;
+      case 6:
+        return (x * y % 2 + x * y % 3) % 2 == 0;
+      default:
+        return ((x + y) % 2 + x * y % 3) % 2 == 0;
+    }
+  }
+
+  @Test
+  public void test_Png() throws Exception {
+    QrCode code = QrCode.encode(URI.getBytes(StandardCharsets.UTF_8), QrCode.Ecc.M);
+    int scale = 3;
+    int border = 2;
+    byte[] png = QrImage.forCurrentThread().png(code, scale, border);
+    // rendering again reuses the buffers, and gives the same image
+    Assert.assertEquals(QrImage.forCurrentThread().png(code, scale, border), png);
+
+    ByteBuffer buffer = ByteBuffer.wrap(png);
+    byte[] signature = new byte[8];
+    buffer.get(signature);
+    Assert.assertEquals(signature, new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+    int dimension = (code.size + border * 2) * scale;
+    Assert.assertEquals(buffer.getInt(), 13);
+    Assert.assertEquals(buffer.getInt(), 0x49484452); // IHDR
+    Assert.assertEquals(buffer.getInt(), dimension);
+    Assert.assertEquals(buffer.getInt(), dimension);
+    buffer.position(buffer.position() + 5 + 4);
+    int idatLength = buffer.getInt();
+    Assert.assertEquals(buffer.getInt(), 0x49444154); // IDAT
+    Inflater inflater = new Inflater();
+    inflater.setInput(png, buffer.position(), idatLength);
+    int rowBytes = (dimension + 7) / 8;
+    byte[] pixels = new byte[(rowBytes + 1) * dimension];
+    Assert.assertEquals(inflater.inflate(pixels), pixels.length);
+    for (int y = 0; y < dimension; y++) {
+      for (int x = 0; x < dimension; x++) {
+        int moduleX = x / scale - border;
+        int moduleY = y / scale - border;
+        boolean dark =
+            moduleX >= 0
+                && moduleX < code.size
+                && moduleY >= 0
+                && moduleY < code.size
+                && code.isDark(moduleX, moduleY);
+        int pixel = (pixels[y * (rowBytes + 1) + 1 + x / 8] >>> (7 - x % 8)) & 1;
+        Assert.assertEquals(pixel == 0, dark);
+      }
+    }
+    buffer.position(buffer.position() + idatLength + 4);
+    Assert.assertEquals(buffer.getInt(), 0);
+    Assert.assertEquals(buffer.getInt(), 0x49454e44); // IEND
+  }
+
+  @Test
+  public void test_Svg() {
+    QrCode code = QrCode.encode("JBSWY3DP".getBytes(StandardCharsets.UTF_8), QrCode.Ecc.M);
+    String svg = QrImage.forCurrentThread().render(code, QrImage.Format.SVG, 1, 4);
+    Assert.assertTrue(svg.startsWith("<svg "), svg);
+    Assert.assertTrue(svg.contains("viewBox=\"0 0 29 29\""), svg);
+    // the top row of the code starts with the finder pattern, 7 dark modules
+    Assert.assertTrue(svg.contains("M4,4h7v1h-7z"), svg);
+    Assert.assertTrue(svg.endsWith("</svg>"), svg);
+    String png = QrImage.forCurrentThread().render(code, QrImage.Format.PNG, 1, 4);
+    Assert.assertEquals(
+        Arrays.copyOf(Base64.getDecoder().decode(png), 4), new byte[] {(byte) 0x89, 'P', 'N', 'G'});
+  }
+}
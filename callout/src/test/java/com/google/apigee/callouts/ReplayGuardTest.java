@@ -0,0 +1,96 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.nio.charset.StandardCharsets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ReplayGuardTest {
+
+  private static byte[] key(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void test_RejectsReuseWithinStep() {
+    ReplayGuard guard = new ReplayGuard(1024);
+    Assert.assertEquals(
+        guard.checkAndRecord(key("alice"), 100L, 100L), ReplayGuard.Result.RECORDED);
+    Assert.assertEquals(
+        guard.checkAndRecord(key("alice"), 100L, 100L), ReplayGuard.Result.REPLAYED);
+    Assert.assertEquals(guard.checkAndRecord(key("bob"), 100L, 100L), ReplayGuard.Result.RECORDED);
+    Assert.assertEquals(
+        guard.checkAndRecord(key("alice"), 101L, 101L), ReplayGuard.Result.RECORDED);
+    Assert.assertEquals(guard.getReplays(), 1L);
+  }
+
+  @Test
+  public void test_EntriesExpireAsStepsRollOver() {
+    // the smallest table is one bucket
+    ReplayGuard guard = new ReplayGuard(ReplayGuard.MIN_CAPACITY);
+    // fill every slot with live entries for step 100
+    for (int i = 0; i < ReplayGuard.BUCKET_SIZE; i++) {
+      Assert.assertEquals(
+          guard.checkAndRecord(key("user-" + i), 100L, 100L), ReplayGuard.Result.RECORDED);
+    }
+    Assert.assertEquals(guard.checkAndRecord(key("other"), 100L, 100L), ReplayGuard.Result.FULL);
+    // at step 101 with no window, the entries for step 100 have expired, and their slots
+    // are reused
+    for (int i = 0; i < ReplayGuard.BUCKET_SIZE; i++) {
+      Assert.assertEquals(
+          guard.checkAndRecord(key("other-" + i), 101L, 101L), ReplayGuard.Result.RECORDED);
+    }
+    Assert.assertEquals(guard.getFull(), 1L);
+  }
+
+  @Test
+  public void test_FullTableFailsClosed() {
+    ReplayGuard guard = new ReplayGuard(ReplayGuard.MIN_CAPACITY);
+    for (int i = 0; i < ReplayGuard.BUCKET_SIZE; i++) {
+      guard.checkAndRecord(key("user-" + i), 100L, 90L);
+    }
+    // no live entry is overwritten, so none of them can be replayed
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(
+          guard.checkAndRecord(key("flood-" + i), 100L, 90L), ReplayGuard.Result.FULL);
+    }
+    for (int i = 0; i < ReplayGuard.BUCKET_SIZE; i++) {
+      Assert.assertEquals(
+          guard.checkAndRecord(key("user-" + i), 100L, 90L), ReplayGuard.Result.REPLAYED);
+    }
+    Assert.assertEquals(guard.getFull(), 100L);
+  }
+
+  @Test
+  public void test_HoldsNominalCapacity() {
+    int capacity = 1 << 16;
+    int windowSteps = 3;
+    ReplayGuard guard = new ReplayGuard(capacity);
+    // each key has a live entry for every step of its window
+    for (int i = 0; i < capacity / windowSteps; i++) {
+      for (int step = 100; step < 100 + windowSteps; step++) {
+        Assert.assertEquals(
+            guard.checkAndRecord(key("user-" + i), step, 100L), ReplayGuard.Result.RECORDED);
+      }
+    }
+    for (int i = 0; i < capacity / windowSteps; i++) {
+      Assert.assertEquals(
+          guard.checkAndRecord(key("user-" + i), 101L, 100L), ReplayGuard.Result.REPLAYED);
+    }
+    Assert.assertEquals(guard.getFull(), 0L);
+  }
+}
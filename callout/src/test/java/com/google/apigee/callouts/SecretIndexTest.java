@@ -0,0 +1,146 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SecretIndexTest {
+  private static final SecretKey INDEX_KEY =
+      SecretIndex.indexKey("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+
+  private static Path newFile() throws Exception {
+    Path path = Files.createTempFile("secret-index", ".idx");
+    path.toFile().deleteOnExit();
+    return path;
+  }
+
+  private static Map<String, String> keys(int count, String suffix) {
+    Map<String, String> keys = new HashMap<String, String>();
+    for (int i = 0; i < count; i++) {
+      keys.put("user-" + i, "key-" + i + suffix);
+    }
+    return keys;
+  }
+
+  @Test
+  public void test_Lookup() throws Exception {
+    Path path = newFile();
+    SecretIndex.write(keys(1000, ""), INDEX_KEY, path);
+    SecretIndex index = SecretIndex.open(path.toString());
+    Assert.assertEquals(index.size(), 1000);
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(index.lookup("user-" + i, INDEX_KEY), "key-" + i);
+    }
+    Assert.assertNull(index.lookup("user-1000", INDEX_KEY));
+  }
+
+  @Test
+  public void test_EncryptedAtRest() throws Exception {
+    Path path = newFile();
+    Map<String, String> keys = new HashMap<String, String>();
+    keys.put("alice", "JBSWY3DPEHPK3PXP");
+    SecretIndex.write(keys, INDEX_KEY, path);
+    String contents = new String(Files.readAllBytes(path), "ISO-8859-1");
+    Assert.assertFalse(contents.contains("JBSWY3DPEHPK3PXP"));
+    Assert.assertFalse(contents.contains("alice"));
+
+    SecretKey otherKey = SecretIndex.indexKey("ffeeddccbbaa99887766554433221100");
+    Assert.assertNull(SecretIndex.open(path.toString()).lookup("alice", otherKey));
+  }
+
+  @Test
+  public void test_ReloadsReplacedFile() throws Exception {
+    Path path = newFile();
+    SecretIndex.write(keys(10, ""), INDEX_KEY, path);
+    SecretIndex index = SecretIndex.open(path.toString());
+    Assert.assertEquals(index.lookup("user-3", INDEX_KEY), "key-3");
+
+    SecretIndex.write(keys(20, "-v2"), INDEX_KEY, path);
+    index.reloadIfChanged();
+    Assert.assertEquals(index.getReloads(), 1L);
+    Assert.assertEquals(index.size(), 20);
+    Assert.assertEquals(index.lookup("user-3", INDEX_KEY), "key-3-v2");
+    Assert.assertEquals(index.lookup("user-15", INDEX_KEY), "key-15-v2");
+  }
+
+  @Test
+  public void test_InvalidReplacementKeepsPreviousFile() throws Exception {
+    Path path = newFile();
+    SecretIndex.write(keys(10, ""), INDEX_KEY, path);
+    SecretIndex index = SecretIndex.open(path.toString());
+
+    Path garbage = newFile();
+    Files.write(garbage, "not an index".getBytes("UTF-8"));
+    Files.move(garbage, path, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    index.reloadIfChanged();
+    Assert.assertEquals(index.getReloadFailures(), 1L);
+    Assert.assertEquals(index.lookup("user-3", INDEX_KEY), "key-3");
+  }
+
+  @Test
+  public void test_RejectsOtherFiles() throws Exception {
+    Path path = newFile();
+    Files.write(path, "this is not a secret index".getBytes("UTF-8"));
+    try {
+      SecretIndex.open(path.toString());
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().endsWith("is not a secret index"), e.getMessage());
+    }
+  }
+
+  @Test
+  public void test_SharedOnlyWhileReachable() throws Exception {
+    Path path = newFile();
+    SecretIndex.write(keys(10, ""), INDEX_KEY, path);
+    SecretIndex index = SecretIndex.open(path.toString());
+    Assert.assertSame(SecretIndex.open(path.toString()), index);
+
+    // neither the registry nor the checker keeps the index, and its keys, reachable
+    WeakReference<SecretIndex> ref = new WeakReference<SecretIndex>(index);
+    index = null;
+    for (int i = 0; i < 100 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    Assert.assertNull(ref.get());
+    Assert.assertEquals(SecretIndex.open(path.toString()).lookup("user-3", INDEX_KEY), "key-3");
+  }
+
+  @Test
+  public void test_MainDoesNotReportKeys() throws Exception {
+    Path input = newFile();
+    Files.write(input, "alice,JBSWY3DPEHPK3PXP\nJBSWY3DPEHPK3PXQ\n".getBytes("UTF-8"));
+    try {
+      SecretIndex.main(new String[] {"00112233445566778899aabbccddeeff", input.toString(), "x"});
+      Assert.fail("expected an exception");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(e.getMessage(), "expected user-id,key at line 2");
+    }
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void test_InvalidIndexKey() {
+    SecretIndex.indexKey("0011");
+  }
+}
@@ -23,7 +23,11 @@ import com.apigee.flow.message.MessageContext;
 import com.google.apigee.encoding.Base16;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Base64;
 import mockit.Mock;
@@ -237,6 +241,34 @@ public class TestTotpCallout {
     System.out.println("=========================================================");
   }
 
+  @Test(dataProvider = "rfc6238-test-vectors")
+  public void rfc6238_BuiltinEngine_Test(
+      final String alg, final String key, Long epochSeconds, Long expectedValue) throws Exception {
+
+    msgCtxt.setVariable("my-key", key);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("hash-function", alg);
+    props.put("hmac-engine", "builtin");
+    props.put("fake-time-seconds", epochSeconds.toString());
+    props.put("code-digits", "8");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    // execute and retrieve output
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Object errorOutput = msgCtxt.getVariable("totp_error");
+    Assert.assertNull(errorOutput, "errorOutput");
+    Object stacktrace = msgCtxt.getVariable("totp_stacktrace");
+    Assert.assertNull(stacktrace, "rfc6238_BuiltinEngine_Test() stacktrace");
+    Object actualCodeValue = msgCtxt.getVariable("totp_code");
+    Assert.assertNotNull(actualCodeValue, "actualCodeValue");
+    System.out.println("actualCodeValue: " + actualCodeValue);
+    Assert.assertEquals(actualCodeValue, expectedValue.toString());
+    System.out.println("=========================================================");
+  }
+
   @Test
   public void test_GoodResultHexKey_Seconds() throws Exception {
     String rfc6238TestKey = "3132333435363738393031323334353637383930";
@@ -398,6 +430,591 @@ public class TestTotpCallout {
     System.out.println("=========================================================");
   }
 
+  @Test
+  public void test_KeyCache() throws Exception {
+    String rfc6238TestKey = "3132333435363738393031323334353637383930";
+    String expectedCodeValue = "89005924";
+    byte[] keyBytes = Base16.decode(rfc6238TestKey);
+    msgCtxt.setVariable("my-key", Base64.getEncoder().encodeToString(keyBytes));
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("decode-key", "base64");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("key-cache-size", "100");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    for (int i = 0; i < 3; i++) {
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("totp_code"), expectedCodeValue);
+    }
+    Assert.assertEquals(msgCtxt.getVariable("totp_keycache_hits"), "2");
+    Assert.assertEquals(msgCtxt.getVariable("totp_keycache_misses"), "1");
+    System.out.println("=========================================================");
+  }
+
+  @DataProvider(name = "invalid-settings")
+  public Object[][] invalidSettings() {
+    return new Object[][] {
+      {"hash-function", "md5", "hash-function md5 is not supported"},
+      {"code-digits", "5", "code-digits must be between 6 and 10, found 5"},
+      {"code-digits", "11", "code-digits must be between 6 and 10, found 11"},
+      {"code-digits", "six", "code-digits six is not an integer"},
+      {"time-step", "0", "time-step must be at least 1, found 0"},
+      {"decode-key", "base58", "decode-key base58 is not supported"},
+      {"hmac-engine", "native", "hmac-engine native is not supported"}
+    };
+  }
+
+  @Test(dataProvider = "invalid-settings")
+  public void test_InvalidSettingFailsOnCreation(String name, String value, String expectedError) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put(name, value);
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), expectedError);
+    }
+  }
+
+  @Test
+  public void test_InvalidTemplatedSettingFailsOnRequest() {
+    msgCtxt.setVariable("my-key", "ABCDEFGH1234567890");
+    msgCtxt.setVariable("digits", "12");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("code-digits", "{digits}");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("totp_error"), "code-digits must be between 6 and 10, found 12");
+  }
+
+  @Test
+  public void test_TenDigits() throws Exception {
+    msgCtxt.setVariable("my-key", "12345678901234567890");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("fake-time-seconds", "59");
+    props.put("code-digits", "10");
+    props.put("leading-zeros", "true");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    // the last 8 digits match the RFC 6238 value for this time
+    Assert.assertEquals(msgCtxt.getVariable("totp_code"), "1094287082");
+  }
+
+  @DataProvider(name = "window-cases")
+  public Object[][] windowCases() {
+    // step offset of the expected code, window-behind, window-ahead, expected totp_offset
+    return new Object[][] {
+      {0, "0", "0", "0"},
+      {-1, "0", "0", null},
+      {-1, "1", "0", "-1"},
+      {1, "1", "0", null},
+      {1, "0", "1", "1"},
+      {2, "1", "1", null},
+      {2, "0", "2", "2"},
+      {-3, "3", "1", "-3"}
+    };
+  }
+
+  @Test(dataProvider = "window-cases")
+  public void test_VerificationWindow(
+      int stepOffset, String windowBehind, String windowAhead, String expectedOffset)
+      throws Exception {
+    byte[] keyBytes = "12345678901234567890".getBytes("UTF-8");
+    long fakeTime = 1234567890L;
+    long step = fakeTime / 30 + stepOffset;
+    int expected =
+        OtpGenerator.forCurrentThread("HmacSHA1", 30, 8).generateForCounter(keyBytes, step);
+
+    msgCtxt.setVariable("my-key", "12345678901234567890");
+    msgCtxt.setVariable("expected", Integer.toString(expected));
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("fake-time-seconds", Long.toString(fakeTime));
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("window-behind", windowBehind);
+    props.put("window-ahead", windowAhead);
+
+    TotpCallout callout = new TotpCallout(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(msgCtxt.getVariable("totp_code"), "89005924");
+    if (expectedOffset == null) {
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("totp_error"), "TOTP mismatch");
+      Assert.assertNull(msgCtxt.getVariable("totp_offset"));
+    } else {
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("totp_offset"), expectedOffset);
+    }
+  }
+
+  @Test
+  public void test_ReplayProtection() throws Exception {
+    msgCtxt.setVariable("my-key", "12345678901234567890");
+    msgCtxt.setVariable("expected", "89005924");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("replay-protection", "true");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+
+    actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("totp_error"), "TOTP replay");
+    Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_replay");
+  }
+
+  @Test
+  public void test_ReplayCacheFull() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("expected-value", "{expected}");
+    props.put("replay-protection", "true");
+    props.put("replay-cache-size", "8");
+    TotpCallout callout = new TotpCallout(props);
+
+    OtpGenerator totp = OtpGenerator.forCurrentThread("HmacSHA1", 30, 6);
+    long step = 1234567890L / 30L;
+    // the smallest table is one bucket, with twice the nominal capacity
+    for (int i = 0; i <= ReplayGuard.BUCKET_SIZE; i++) {
+      String key = "key-" + i;
+      int code = totp.generateForCounter(key.getBytes(StandardCharsets.UTF_8), step);
+      msgCtxt.setVariable("my-key", key);
+      msgCtxt.setVariable("expected", CodeFormat.format(code, 6, false));
+      if (i < ReplayGuard.BUCKET_SIZE) {
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+      } else {
+        // the table is full of live entries: the code is refused rather than overwrite one
+        Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+        Assert.assertEquals(msgCtxt.getVariable("totp_error"), "TOTP replay cache full");
+        Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_replay");
+      }
+    }
+  }
+
+  @Test
+  public void test_InvalidReplayCacheSize() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("replay-protection", "true");
+    props.put("replay-cache-size", "4");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(
+          e.getMessage(), "replay-cache-size must be between 8 and 16777216, found 4");
+    }
+  }
+
+  @Test
+  public void test_PrecomputeHotKeys() throws Exception {
+    msgCtxt.setVariable("my-key", "12345678901234567890");
+    msgCtxt.setVariable("expected", "89005924");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("precompute-hot-keys", "10");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    for (int i = 1; i <= 3; i++) {
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("totp_code"), "89005924");
+      // the fake time is long past, so the background task never has this step
+      Assert.assertEquals(msgCtxt.getVariable("totp_precompute_hits"), "0");
+      Assert.assertEquals(msgCtxt.getVariable("totp_precompute_misses"), Integer.toString(i));
+      Assert.assertNotNull(msgCtxt.getVariable("totp_precompute_hot_keys"));
+    }
+  }
+
+  @Test
+  public void test_InvalidBooleans() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("replay-protection", "ture");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "replay-protection must be true or false, found ture");
+    }
+    props.put("replay-protection", "FALSE");
+    props.put("leading-zeros", "yes");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "leading-zeros must be true or false, found yes");
+    }
+  }
+
+  @Test
+  public void test_InvalidKeyCacheSettings() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("key-cache-size", "lots");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "key-cache-size lots is not an integer");
+    }
+    props.put("key-cache-size", "16");
+    props.put("key-cache-ttl", "0");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "key-cache-ttl must be at least 1, found 0");
+    }
+  }
+
+  @Test
+  public void test_InvalidPrecomputeHotKeys() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("precompute-hot-keys", "-1");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(
+          e.getMessage(), "precompute-hot-keys must be between 0 and 4096, found -1");
+    }
+  }
+
+  @Test
+  public void test_MetricsWhenDebug() throws Exception {
+    msgCtxt.setVariable("my-key", "12345678901234567890");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{my-key}");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("debug", "true");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    msgCtxt.setVariable("expected", "89005924");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    msgCtxt.setVariable("expected", "89005925");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+
+    String metrics = msgCtxt.getVariable("totp_metrics");
+    Assert.assertTrue(
+        metrics.startsWith("success=1,mismatch=1,replay=0,locked=0,exception=0;resolve=2/"),
+        metrics);
+    for (String phase : new String[] {"decode", "generator", "hmac", "format", "verify"}) {
+      Assert.assertTrue(metrics.contains(";" + phase + "=2/"), metrics);
+    }
+  }
+
+  @Test
+  public void test_NoMetricsByDefault() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    TotpCallout callout = new TotpCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertNull(msgCtxt.getVariable("totp_metrics"));
+  }
+
+  @Test
+  public void test_KeyRef() throws Exception {
+    String indexKeyHex = "000102030405060708090a0b0c0d0e0f";
+    Path index = Files.createTempFile("secrets", ".idx");
+    index.toFile().deleteOnExit();
+    Map<String, String> keys = new HashMap<String, String>();
+    keys.put("alice", "12345678901234567890");
+    keys.put("bob", "some other key");
+    SecretIndex.write(keys, SecretIndex.indexKey(indexKeyHex), index);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key-ref", "{user}");
+    props.put("secret-index", index.toString());
+    props.put("secret-index-key", indexKeyHex);
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "89005924");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    msgCtxt.setVariable("user", "alice");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    msgCtxt.setVariable("user", "bob");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("totp_error"), "TOTP mismatch");
+    msgCtxt.setVariable("user", "carol");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("totp_error"), "key-ref not found in the secret index");
+  }
+
+  @Test
+  public void test_WrappedKey() throws Exception {
+    String kekHex = "000102030405060708090a0b0c0d0e0f";
+    byte[] wrapped =
+        KeyWrapping.wrap(
+            "12345678901234567890".getBytes("UTF-8"),
+            KeyWrapping.aesKey("key-encryption-key", kekHex),
+            null);
+    msgCtxt.setVariable("wrapped-key", Base64.getEncoder().encodeToString(wrapped));
+    msgCtxt.setVariable("kek", kekHex);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "{wrapped-key}");
+    props.put("decode-key", "base64");
+    props.put("key-wrapping", "aes-gcm");
+    props.put("key-encryption-key", "{kek}");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "89005924");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    // the cache is on by default, so the second request does not unwrap the key
+    Assert.assertEquals(msgCtxt.getVariable("totp_keycache_misses"), "1");
+    Assert.assertEquals(msgCtxt.getVariable("totp_keycache_hits"), "1");
+
+    msgCtxt.setVariable("kek", "0f0e0d0c0b0a09080706050403020100");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("totp_error"), "the key does not unwrap with key-encryption-key");
+  }
+
+  @Test
+  public void test_KeyWrappingNoneHasNoCache() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("key-wrapping", "none");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "89005924");
+
+    TotpCallout callout = new TotpCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertNull(msgCtxt.getVariable("totp_keycache_misses"));
+  }
+
+  @Test
+  public void test_Lockout() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("max-failures", "3");
+    props.put("debug", "true");
+
+    TotpCallout callout = new TotpCallout(props);
+
+    msgCtxt.setVariable("expected", "11111111");
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+      Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_mismatch");
+    }
+    // now even the right code is refused, and no code is computed
+    msgCtxt.setVariable("totp_code", null);
+    msgCtxt.setVariable("expected", "89005924");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_locked");
+    Assert.assertEquals(msgCtxt.getVariable("totp_error"), "TOTP locked");
+    Assert.assertNull(msgCtxt.getVariable("totp_code"));
+    String metrics = msgCtxt.getVariable("totp_metrics");
+    Assert.assertTrue(metrics.startsWith("success=0,mismatch=3,replay=0,locked=1,"), metrics);
+    Assert.assertTrue(metrics.contains(";hmac=3/"), metrics);
+  }
+
+  @Test
+  public void test_InvalidMaxFailures() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("max-failures", "5000");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "max-failures must be between 0 and 4095, found 5000");
+    }
+  }
+
+  @Test
+  public void test_Audit() throws Exception {
+    Path file = Files.createTempFile("totp-audit", ".bin");
+    file.toFile().deleteOnExit();
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("audit-file", file.toString());
+    props.put("audit-key", "{audit-key}");
+    msgCtxt.setVariable("audit-key", "000102030405060708090a0b0c0d0e0f");
+
+    TotpCallout callout = new TotpCallout(props);
+    msgCtxt.setVariable("expected", "89005924");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    msgCtxt.setVariable("expected", "11111111");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    // a generation is not audited
+    props.remove("expected-value");
+    Assert.assertEquals(new TotpCallout(props).execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+
+    // the log the callouts share
+    AuditLog.open(file, 64, AuditLog.DEFAULT_MAX_FILE_SIZE, 1).close();
+    List<long[]> records = AuditLogTest.read(file);
+    Assert.assertEquals(records.size(), 2);
+    long fingerprint =
+        AuditLog.fingerprint(
+            AuditLog.auditKey("000102030405060708090a0b0c0d0e0f"),
+            "12345678901234567890".getBytes(StandardCharsets.UTF_8));
+    long step = 1234567890L / 30L;
+    Assert.assertEquals(records.get(0)[0], 1234567890000L);
+    Assert.assertEquals(records.get(0)[1], fingerprint);
+    Assert.assertEquals(records.get(0)[2], step);
+    Assert.assertEquals(records.get(0)[4], (long) CalloutMetrics.Outcome.SUCCESS.ordinal());
+    Assert.assertEquals(records.get(1)[1], fingerprint);
+    Assert.assertEquals(records.get(1)[4], (long) CalloutMetrics.Outcome.MISMATCH.ordinal());
+    Assert.assertTrue(records.get(1)[3] > 0L);
+  }
+
+  @Test
+  public void test_AuditKeyIsRequired() throws Exception {
+    Path file = Files.createTempFile("totp-audit", ".bin");
+    file.toFile().deleteOnExit();
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("audit-file", file.toString());
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "audit-key must be set when audit-file is set");
+    }
+  }
+
+  @Test
+  public void test_Resync() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("fake-time-seconds", "1234567890");
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("next-value", "{next}");
+    props.put("resync-range", "7200");
+    props.put("replay-protection", "true");
+    props.put("window-ahead", "1");
+
+    // the device is 50 minutes ahead, 100 steps
+    byte[] key = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+    long deviceStep = 1234567890L / 30L + 100;
+    OtpGenerator totp = OtpGenerator.forCurrentThread("HmacSHA1", 30, 8);
+    String previous = CodeFormat.format(totp.generateForCounter(key, deviceStep - 1), 8, false);
+    String current = CodeFormat.format(totp.generateForCounter(key, deviceStep), 8, false);
+    String following = CodeFormat.format(totp.generateForCounter(key, deviceStep + 1), 8, false);
+
+    TotpCallout callout = new TotpCallout(props);
+    msgCtxt.setVariable("expected", current);
+    msgCtxt.setVariable("next", "");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_mismatch");
+    Assert.assertEquals(msgCtxt.getVariable("totp_clock_offset"), "0");
+
+    // the codes must be consecutive
+    msgCtxt.setVariable("expected", previous);
+    msgCtxt.setVariable("next", following);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("totp_error"), "TOTP resync mismatch");
+
+    msgCtxt.setVariable("next", current);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("totp_clock_offset"), "100");
+
+    // the next code of the device now verifies, without a search
+    msgCtxt.setVariable("next", "");
+    msgCtxt.setVariable("expected", following);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("totp_clock_offset"), "100");
+    Assert.assertEquals(msgCtxt.getVariable("totp_offset"), "1");
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_replay");
+
+    // the codes used for the resync cannot be used again
+    msgCtxt.setVariable("expected", current);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_replay");
+  }
+
+  @Test
+  public void test_ResyncPairCannotBeReplayedLater() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("fake-time-seconds", "{now}");
+    props.put("code-digits", "8");
+    props.put("expected-value", "{expected}");
+    props.put("next-value", "{next}");
+    props.put("resync-range", "7200");
+    props.put("replay-protection", "true");
+
+    byte[] key = "12345678901234567890".getBytes(StandardCharsets.UTF_8);
+    long deviceStep = 1234567890L / 30L + 100;
+    OtpGenerator totp = OtpGenerator.forCurrentThread("HmacSHA1", 30, 8);
+    String previous = CodeFormat.format(totp.generateForCounter(key, deviceStep - 1), 8, false);
+    String current = CodeFormat.format(totp.generateForCounter(key, deviceStep), 8, false);
+
+    TotpCallout callout = new TotpCallout(props);
+    msgCtxt.setVariable("now", "1234567890");
+    msgCtxt.setVariable("expected", previous);
+    msgCtxt.setVariable("next", current);
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("totp_clock_offset"), "100");
+
+    // three steps later, the same pair is found at the same step of the device
+    msgCtxt.setVariable("now", Long.toString(1234567890L + 90L));
+    Assert.assertEquals(callout.execute(msgCtxt, exeCtxt), ExecutionResult.ABORT);
+    Assert.assertEquals(msgCtxt.getVariable("fault.name"), "totp_replay");
+    Assert.assertEquals(msgCtxt.getVariable("totp_error"), "TOTP replay");
+  }
+
+  @Test
+  public void test_NextValueWithoutResyncRange() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("key", "12345678901234567890");
+    props.put("next-value", "{next}");
+    try {
+      new TotpCallout(props);
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(e.getMessage(), "resync-range must be set when next-value is set");
+    }
+  }
+
   // // This test can be uncommented, modified, and run.
   // // Replace:
   // //  1. the testKeyString with the key used to generate the TOTP barcode
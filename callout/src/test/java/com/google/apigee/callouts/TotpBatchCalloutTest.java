@@ -0,0 +1,189 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.encoding.Base16;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TotpBatchCalloutTest {
+  // RFC 6238 key and the 8-digit SHA1 code for T = 59
+  private static final String KEY = "12345678901234567890";
+  private static final String HEX_KEY = Base16.encode(KEY.getBytes(StandardCharsets.UTF_8));
+  private static final String CODE = "94287082";
+
+  private Map<String, Object> variables;
+  private MessageContext msgCtxt;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    variables = new HashMap<String, Object>();
+    msgCtxt = MessageContextFixture.backedBy(variables);
+  }
+
+  private static Map<String, String> properties(String parallelism) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("code-digits", "8");
+    props.put("fake-time-seconds", "59");
+    props.put("source", "batch");
+    props.put("parallelism", parallelism);
+    return props;
+  }
+
+  private static String item(String key, String code, String decodeKey) {
+    return "{\"key\":\""
+        + key
+        + "\",\"code\":\""
+        + code
+        + "\""
+        + ((decodeKey == null) ? "" : ",\"decode-key\":\"" + decodeKey + "\"")
+        + "}";
+  }
+
+  @Test
+  public void test_SmallBatch() {
+    variables.put(
+        "batch",
+        "["
+            + item(KEY, CODE, null)
+            + ","
+            + item(KEY, "94287083", null)
+            + ","
+            + item(HEX_KEY, CODE, "hex")
+            + ",{\"key\":\""
+            + KEY
+            + "\",\"code\":94287082}"
+            + ", {\"key\":\"zz\",\"code\":\"94287082\",\"decode-key\":\"hex\"}"
+            + ", {\"code\":\"94287082\"}, 17 ]");
+    TotpBatchCallout callout = new TotpBatchCallout(properties("1"));
+    ExecutionResult result = callout.execute(msgCtxt, null);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(
+        variables.get("totp_batch_result"), "[true,false,true,true,false,false,false]");
+    Assert.assertEquals(variables.get("totp_batch_count"), "7");
+    Assert.assertEquals(variables.get("totp_batch_valid"), "3");
+    Assert.assertEquals(variables.get("totp_time"), "59");
+  }
+
+  @Test
+  public void test_ParallelBatch() {
+    int count = 500;
+    StringBuilder sb = new StringBuilder("[");
+    StringBuilder expected = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        sb.append(',');
+        expected.append(',');
+      }
+      boolean valid = (i % 3 != 0);
+      String code = valid ? CODE : "00000000";
+      sb.append((i % 2 == 0) ? item(KEY, code, null) : item(HEX_KEY, code, "base16"));
+      expected.append(valid);
+    }
+    variables.put("batch", sb.append(']').toString());
+    Map<String, String> props = properties("4");
+    props.put("window-behind", "1");
+    TotpBatchCallout callout = new TotpBatchCallout(props);
+    ExecutionResult result = callout.execute(msgCtxt, null);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_batch_result"), expected.append(']').toString());
+    Assert.assertEquals(variables.get("totp_batch_count"), Integer.toString(count));
+    Assert.assertEquals(variables.get("totp_batch_valid"), Integer.toString(count - 167));
+  }
+
+  @Test
+  public void test_WrappedKeys() throws Exception {
+    String kekHex = "000102030405060708090a0b0c0d0e0f";
+    String wrapped =
+        Base64.getEncoder()
+            .encodeToString(
+                KeyWrapping.wrap(
+                    KEY.getBytes(StandardCharsets.UTF_8),
+                    KeyWrapping.aesKey("key-encryption-key", kekHex),
+                    null));
+    variables.put(
+        "batch", "[" + item(wrapped, CODE, "base64") + "," + item(KEY, CODE, null) + "]");
+    Map<String, String> props = properties("1");
+    props.put("key-wrapping", "aes-gcm");
+    props.put("key-encryption-key", kekHex);
+    TotpBatchCallout callout = new TotpBatchCallout(props);
+    Assert.assertEquals(callout.execute(msgCtxt, null), ExecutionResult.SUCCESS);
+    // an item whose key is not wrapped does not unwrap, so it does not match
+    Assert.assertEquals(variables.get("totp_batch_result"), "[true,false]");
+  }
+
+  @Test
+  public void test_EmptyBatch() {
+    variables.put("batch", " [ ] ");
+    TotpBatchCallout callout = new TotpBatchCallout(properties("2"));
+    ExecutionResult result = callout.execute(msgCtxt, null);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(variables.get("totp_batch_result"), "[]");
+    Assert.assertEquals(variables.get("totp_batch_valid"), "0");
+  }
+
+  @Test
+  public void test_NotAnArray() {
+    variables.put("batch", item(KEY, CODE, null));
+    TotpBatchCallout callout = new TotpBatchCallout(properties("2"));
+    ExecutionResult result = callout.execute(msgCtxt, null);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(variables.get("totp_error"), "the batch must be a JSON array");
+  }
+
+  @Test
+  public void test_InvalidJson() {
+    String batch = "[" + item(KEY, CODE, null);
+    variables.put("batch", batch);
+    TotpBatchCallout callout = new TotpBatchCallout(properties("2"));
+    ExecutionResult result = callout.execute(msgCtxt, null);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(
+        variables.get("totp_error"), "invalid JSON at offset " + batch.length());
+  }
+
+  @Test
+  public void test_MissingSource() {
+    TotpBatchCallout callout = new TotpBatchCallout(properties("2"));
+    ExecutionResult result = callout.execute(msgCtxt, null);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(variables.get("totp_error"), "source variable batch is not set");
+  }
+
+  @Test
+  public void test_TooManyItems() {
+    variables.put("batch", "[" + item(KEY, CODE, null) + "," + item(KEY, CODE, null) + "]");
+    Map<String, String> props = properties("2");
+    props.put("max-items", "1");
+    TotpBatchCallout callout = new TotpBatchCallout(props);
+    ExecutionResult result = callout.execute(msgCtxt, null);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(
+        variables.get("totp_error"), "the batch has more items than max-items 1");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void test_InvalidParallelism() {
+    new TotpBatchCallout(properties("0"));
+  }
+}
@@ -0,0 +1,79 @@
+// Copyright 2018-2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TotpClockTest {
+  private static final Map<String, Object> variables = new HashMap<String, Object>();
+
+  private MessageContext msgCtxt;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    msgCtxt = MessageContextFixture.backedBy(variables);
+  }
+
+  private static TotpClock clockFor(String name, String value) {
+    Map<String, PropertyTemplate> properties = new HashMap<String, PropertyTemplate>();
+    if (name != null) {
+      properties.put(name, PropertyTemplate.compile(value));
+    }
+    return TotpClock.fromProperties(properties::get);
+  }
+
+  private static void assertNearNow(long millis) {
+    long now = System.currentTimeMillis();
+    Assert.assertTrue(Math.abs(now - millis) < 1000L, "off by " + (now - millis));
+  }
+
+  @Test
+  public void test_DefaultIsSystemClock() {
+    TotpClock clock = clockFor(null, null);
+    Assert.assertSame(clock, SystemClock.INSTANCE);
+    assertNearNow(clock.currentTimeMillis(msgCtxt));
+  }
+
+  @Test
+  public void test_FixedFakeTime() {
+    Assert.assertEquals(
+        clockFor("fake-time-millis", "1234567890123").currentTimeMillis(msgCtxt), 1234567890123L);
+    Assert.assertEquals(clockFor("fake-time-seconds", "59").currentTimeMillis(msgCtxt), 59000L);
+    Assert.assertEquals(clockFor("fake-time-seconds", "-1").currentTimeMillis(msgCtxt), -1000L);
+  }
+
+  @Test
+  public void test_FakeTimeFromVariable() {
+    TotpClock clock = clockFor("fake-time-seconds", "{faketime}");
+    variables.put("faketime", "1111111109");
+    Assert.assertEquals(clock.currentTimeMillis(msgCtxt), 1111111109000L);
+    variables.put("faketime", "2000000000");
+    Assert.assertEquals(clock.currentTimeMillis(msgCtxt), 2000000000000L);
+    variables.remove("faketime");
+    assertNearNow(clock.currentTimeMillis(msgCtxt));
+  }
+
+  @Test
+  public void test_InvalidFakeTimeMeansNow() {
+    assertNearNow(clockFor("fake-time-millis", "soon").currentTimeMillis(msgCtxt));
+    assertNearNow(clockFor("fake-time-seconds", "").currentTimeMillis(msgCtxt));
+  }
+}
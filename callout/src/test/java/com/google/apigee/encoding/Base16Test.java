@@ -1,7 +1,9 @@
 package com.google.apigee.encoding;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Random;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -34,4 +36,69 @@ public class Base16Test {
             });
     }
 
+    @Test
+    public void roundTrip_AllByteValues() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        String encoded = Base16.encode(data);
+        Assert.assertEquals(encoded.length(), 512);
+        Assert.assertEquals(encoded, encoded.toLowerCase());
+        Assert.assertEquals(Base16.decode(encoded), data);
+        Assert.assertEquals(Base16.decode(encoded.toUpperCase()), data);
+    }
+
+    @Test
+    public void encode_MatchesCharacterConversion() {
+        Random random = new Random(1);
+        byte[] data = new byte[61];
+        random.nextBytes(data);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        Assert.assertEquals(Base16.encode(data), sb.toString());
+    }
+
+    @Test
+    public void decode_IntoCallerArray() {
+        byte[] out = new byte[10];
+        Arrays.fill(out, (byte) 0x55);
+        int length = Base16.decode(new StringBuilder("666F6f626172"), out, 2);
+        Assert.assertEquals(length, 6);
+        Assert.assertEquals(new String(out, 2, 6, StandardCharsets.UTF_8), "foobar");
+        Assert.assertEquals(out[1], (byte) 0x55);
+        Assert.assertEquals(out[8], (byte) 0x55);
+    }
+
+    @Test
+    public void decode_IntoByteBuffer() {
+        ByteBuffer out = ByteBuffer.allocate(8);
+        out.put((byte) 0x55);
+        int length = Base16.decode("666f6f", out);
+        Assert.assertEquals(length, 3);
+        Assert.assertEquals(out.position(), 4);
+        Assert.assertEquals(Arrays.copyOf(out.array(), 4), new byte[] {0x55, 'f', 'o', 'o'});
+    }
+
+    @Test
+    public void decode_InvalidInput() {
+        String[] inputs = { "6", "666", "6G", "zz", "6 ", "\u0666\u0666" };
+        for (String input : inputs) {
+            try {
+                byte[] bytes = Base16.decode(input);
+                Assert.fail("decoded '" + input + "' to " + bytes.length + " bytes");
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void decode_OutputArrayTooSmall() {
+        Base16.decode("666f6f", new byte[4], 2);
+    }
+
 }
@@ -40,4 +40,60 @@ public class Base32Test {
             });
     }
 
+    private static void assertRejected(String input, boolean strict) {
+        try {
+            byte[] bytes = strict ? Base32.decodeStrict(input) : Base32.decode(input);
+            Assert.fail("decoded '" + input + "' to " + bytes.length + " bytes");
+        }
+        catch (Base32.DecodingException expected) {
+        }
+    }
+
+    @Test
+    public void decode_IgnoresCaseSeparatorsAndWhitespace() {
+        byte[] expected = Base32.decode("MZXW6YTBOI");
+        Assert.assertEquals(Base32.decode("mzxw6ytboi"), expected);
+        Assert.assertEquals(Base32.decode(" \tMZXW-6YTB OI======\n"), expected);
+        Assert.assertEquals(Base32.decode(new StringBuilder("mZxW6-yTbOi")), expected);
+    }
+
+    @Test
+    public void decode_IllegalCharacters() {
+        String[] inputs = { "MZXW1", "MZ\tXW", "MY=A", "MZXW\u00e9" };
+        for (String input : inputs) {
+            assertRejected(input, false);
+        }
+    }
+
+    @Test
+    public void decode_IntoCallerBuffer() {
+        byte[] out = new byte[16];
+        Arrays.fill(out, (byte) 0x55);
+        int length = Base32.decode("MZXW6YTBOI======", out, 3);
+        Assert.assertEquals(length, 6);
+        Assert.assertEquals(new String(out, 3, 6, StandardCharsets.UTF_8), "foobar");
+        Assert.assertEquals(out[2], (byte) 0x55);
+        Assert.assertEquals(out[9], (byte) 0x55);
+    }
+
+    @Test
+    public void decodeStrict_AcceptsValidEncodings() {
+        Arrays.stream(testcases).forEach( tc -> {
+                Assert.assertEquals(Base32.decodeStrict(tc[1]), tc[0].getBytes(StandardCharsets.UTF_8));
+                Assert.assertEquals(Base32.decodeStrict(chopPadding(tc[1])), tc[0].getBytes(StandardCharsets.UTF_8));
+            });
+    }
+
+    @Test
+    public void decodeStrict_RejectsNonCanonicalEncodings() {
+        // the two bits left over are zero in "MY", but not in "MZ"
+        Assert.assertEquals(Base32.decode("MZ"), Base32.decode("MY"));
+        assertRejected("MZ", true);
+        // an encoder never produces 1, 3 or 6 characters in the last quantum
+        assertRejected("MZXW6YTBO", true);
+        assertRejected("MZX", true);
+        // incomplete padding
+        assertRejected("MY===", true);
+    }
+
 }